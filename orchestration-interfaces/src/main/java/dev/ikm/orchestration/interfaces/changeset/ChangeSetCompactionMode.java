@@ -0,0 +1,18 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+/**
+ * The ChangeSetCompactionMode enum defines how the records of an entity in the change sets merged by a compaction
+ * are consolidated into the archive.
+ */
+public enum ChangeSetCompactionMode {
+    /**
+     * Keep only the latest record of each entity, which holds its entire chronology if the change sets were written
+     * in chronology mode. Change sets written in delta mode are merged with {@link #UNION} instead.
+     */
+    LATEST,
+    /**
+     * Keep one record of each entity holding the union of the versions of all its records, which suits change sets
+     * written in either mode.
+     */
+    UNION;
+}
@@ -0,0 +1,23 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import java.time.Duration;
+
+/**
+ * The ChangeSetCompactionPolicy record selects the change set files a compaction merges into consolidated archives,
+ * as created with {@link ChangeSetWriterService#newCompactionTask(ChangeSetCompactionPolicy)}. Only sealed files that
+ * have been applied to the datastore, are older than the minimum age and no larger than the maximum file size are
+ * merged, so recent change sets, which may not have been shared yet, and files that are already large are left alone.
+ *
+ * @param minAge          the minimum age of a change set file to merge, by its modification time
+ * @param maxFileBytes    the maximum size of a change set file to merge
+ * @param maxArchiveBytes the maximum total size of the change set files merged into one archive
+ * @param mode            how the records of an entity are consolidated
+ */
+public record ChangeSetCompactionPolicy(Duration minAge, long maxFileBytes, long maxArchiveBytes,
+                                        ChangeSetCompactionMode mode) {
+    public ChangeSetCompactionPolicy {
+        if (minAge.isNegative() || maxFileBytes <= 0 || maxArchiveBytes <= 0) {
+            throw new IllegalArgumentException("Compaction age and sizes must be positive");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * The ChangeSetFileStatus record describes the change set file currently open for writing.
+ * It is provided to a {@link ChangeSetRolloverPolicy} to decide when the file should be sealed.
+ *
+ * @param file         the path of the open change set file
+ * @param bytesWritten the approximate number of bytes written to disk so far
+ * @param entityCount  the number of entities written to the file so far
+ * @param openedAt     the time the file was opened
+ * @param lastWriteAt  the time of the last write to the file, or the time the file was opened if nothing was written
+ */
+public record ChangeSetFileStatus(Path file,
+                                  long bytesWritten,
+                                  long entityCount,
+                                  Instant openedAt,
+                                  Instant lastWriteAt) {
+}
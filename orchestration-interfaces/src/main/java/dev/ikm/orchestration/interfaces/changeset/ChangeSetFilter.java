@@ -0,0 +1,108 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import dev.ikm.tinkar.common.id.PublicId;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The ChangeSetFilter record selects part of the content of change sets, for a partial load with
+ * {@link ChangeSetLoadService#newLoadTask(ChangeSetFilter)}. Each predicate that is set must match:
+ * <ul>
+ *     <li>modules, authors and a stamp time window select the stamps with a version that matches them, and the
+ *     versions of concepts, semantics and patterns written with those stamps;</li>
+ *     <li>patterns select the patterns and the semantics of those patterns.</li>
+ * </ul>
+ * A predicate that is not set matches everything, so {@link #ALL} selects the whole change set.
+ *
+ * @param moduleUuids  the UUIDs of the modules to select, or empty for any module
+ * @param authorUuids  the UUIDs of the authors to select, or empty for any author
+ * @param patternUuids the UUIDs of the patterns to select, or empty for any content
+ * @param sinceTime    the earliest stamp time to select, in epoch milliseconds
+ * @param untilTime    the stamp time before which to select, in epoch milliseconds
+ */
+public record ChangeSetFilter(Set<UUID> moduleUuids, Set<UUID> authorUuids, Set<UUID> patternUuids,
+                              long sinceTime, long untilTime) {
+    /**
+     * The filter that selects everything.
+     */
+    public static final ChangeSetFilter ALL = new ChangeSetFilter(Set.of(), Set.of(), Set.of(), Long.MIN_VALUE, Long.MAX_VALUE);
+
+    public ChangeSetFilter {
+        moduleUuids = Set.copyOf(moduleUuids);
+        authorUuids = Set.copyOf(authorUuids);
+        patternUuids = Set.copyOf(patternUuids);
+        if (sinceTime > untilTime) {
+            throw new IllegalArgumentException("Stamp time window ends before it starts");
+        }
+    }
+
+    /**
+     * Returns a copy of this filter that selects content of the modules.
+     *
+     * @param modules the public ids of the modules
+     * @return the filter
+     */
+    public ChangeSetFilter withModules(PublicId... modules) {
+        return new ChangeSetFilter(uuids(modules), authorUuids, patternUuids, sinceTime, untilTime);
+    }
+
+    /**
+     * Returns a copy of this filter that selects content of the authors.
+     *
+     * @param authors the public ids of the authors
+     * @return the filter
+     */
+    public ChangeSetFilter withAuthors(PublicId... authors) {
+        return new ChangeSetFilter(moduleUuids, uuids(authors), patternUuids, sinceTime, untilTime);
+    }
+
+    /**
+     * Returns a copy of this filter that selects the patterns, and the semantics of the patterns.
+     *
+     * @param patterns the public ids of the patterns
+     * @return the filter
+     */
+    public ChangeSetFilter withPatterns(PublicId... patterns) {
+        return new ChangeSetFilter(moduleUuids, authorUuids, uuids(patterns), sinceTime, untilTime);
+    }
+
+    /**
+     * Returns a copy of this filter that selects content with a stamp time in a window.
+     *
+     * @param since the earliest stamp time to select, or {@code null} for no lower bound
+     * @param until the stamp time before which to select, or {@code null} for no upper bound
+     * @return the filter
+     */
+    public ChangeSetFilter withStampTime(Instant since, Instant until) {
+        return new ChangeSetFilter(moduleUuids, authorUuids, patternUuids,
+                since == null ? Long.MIN_VALUE : since.toEpochMilli(), until == null ? Long.MAX_VALUE : until.toEpochMilli());
+    }
+
+    /**
+     * Returns {@code true} if this filter has a module, author or stamp time predicate, which are evaluated on stamps.
+     *
+     * @return {@code true} if stamps are filtered
+     */
+    public boolean hasStampPredicates() {
+        return !moduleUuids.isEmpty() || !authorUuids.isEmpty() || sinceTime != Long.MIN_VALUE || untilTime != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns {@code true} if this filter selects everything.
+     *
+     * @return {@code true} if no predicate is set
+     */
+    public boolean isAll() {
+        return !hasStampPredicates() && patternUuids.isEmpty();
+    }
+
+    private static Set<UUID> uuids(PublicId... publicIds) {
+        Set<UUID> uuids = new HashSet<>();
+        Arrays.stream(publicIds).forEach(publicId -> uuids.addAll(publicId.asUuidList()));
+        return uuids;
+    }
+}
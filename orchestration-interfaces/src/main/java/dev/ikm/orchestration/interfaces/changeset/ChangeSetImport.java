@@ -0,0 +1,197 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The ChangeSetImport class marks entities that arrive from change sets, so that a {@link ChangeSetWriterService}
+ * does not write them again into a new local change set, which would double the I/O of every import and send
+ * the same data back and forth between the nodes that synchronize change sets.
+ *
+ * An import is begun by the code that loads change sets, and each load task is submitted through it.
+ * While a task runs, its thread is tagged with the import, and the entity service broadcasts the entities
+ * the task puts on that thread, so the writer can recognize them with {@link #isImporting()}. Entities
+ * changed by other threads while the import runs are written as usual.
+ *
+ * The import completes once it is closed and every task submitted through it has finished, so the lifecycle
+ * of an import spanning many load tasks can be followed with {@link #completion()}.
+ * <pre>{@code
+ * try (ChangeSetImport changeSetImport = ChangeSetImport.begin("Load Change Sets")) {
+ *     changeSetFiles.forEach(file -> changeSetImport.submit(executor, new LoadTask(file)));
+ * }
+ * }</pre>
+ */
+public final class ChangeSetImport implements AutoCloseable {
+    private static final ThreadLocal<ChangeSetImport> CURRENT = new ThreadLocal<>();
+    private static final Set<ChangeSetImport> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    private final String origin;
+    // One for the open import, plus one for each task that has not finished.
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicInteger taskCount = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+    private boolean closed = false;
+
+    private ChangeSetImport(String origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Begins an import.
+     *
+     * @param origin a description of where the imported entities come from, such as a folder or a remote
+     * @return the import, which must be closed once every load task has been submitted
+     */
+    public static ChangeSetImport begin(String origin) {
+        ChangeSetImport changeSetImport = new ChangeSetImport(origin);
+        ACTIVE.add(changeSetImport);
+        return changeSetImport;
+    }
+
+    /**
+     * Returns {@code true} if the calling thread is running a task of an import, and the entities it puts
+     * therefore came from a change set.
+     *
+     * @return {@code true} if the calling thread is importing
+     */
+    public static boolean isImporting() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Returns the import whose task the calling thread is running.
+     *
+     * @return the import, or empty if the calling thread is not importing
+     */
+    public static Optional<ChangeSetImport> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    /**
+     * Returns the number of imports that have begun and not yet completed.
+     *
+     * @return the active import count
+     */
+    public static int activeCount() {
+        return ACTIVE.size();
+    }
+
+    /**
+     * Submits a load task to the executor, to run with its thread tagged with this import.
+     *
+     * @param executor the executor to run the task
+     * @param task     the task, which puts the entities of one or more change sets
+     * @param <V>      the result type of the task
+     * @return the future of the task
+     * @throws IllegalStateException if the import has been closed
+     */
+    public <V> Future<V> submit(ExecutorService executor, Callable<V> task) {
+        taskStarted();
+        try {
+            return executor.submit(() -> run(task));
+        } catch (RuntimeException e) {
+            taskFinished(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a load task on the calling thread, tagged with this import.
+     *
+     * @param task the task, which puts the entities of one or more change sets
+     * @param <V>  the result type of the task
+     * @return the result of the task
+     * @throws Exception if the task fails
+     * @throws IllegalStateException if the import has been closed
+     */
+    public <V> V call(Callable<V> task) throws Exception {
+        taskStarted();
+        return run(task);
+    }
+
+    private synchronized void taskStarted() {
+        if (closed) {
+            throw new IllegalStateException("Change set import from " + origin + " is closed");
+        }
+        pending.incrementAndGet();
+        taskCount.incrementAndGet();
+    }
+
+    private <V> V run(Callable<V> task) throws Exception {
+        ChangeSetImport previous = CURRENT.get();
+        CURRENT.set(this);
+        Throwable taskFailure = null;
+        try {
+            return task.call();
+        } catch (Exception | Error e) {
+            taskFailure = e;
+            throw e;
+        } finally {
+            CURRENT.set(previous);
+            taskFinished(taskFailure);
+        }
+    }
+
+    private void taskFinished(Throwable taskFailure) {
+        if (taskFailure != null && !failure.compareAndSet(null, taskFailure)) {
+            failure.get().addSuppressed(taskFailure);
+        }
+        release();
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            ACTIVE.remove(this);
+            if (failure.get() == null) {
+                completion.complete(taskCount.get());
+            } else {
+                completion.completeExceptionally(failure.get());
+            }
+        }
+    }
+
+    /**
+     * Closes the import to further tasks. The import completes once every submitted task has finished.
+     * Closing an already closed import has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        release();
+    }
+
+    /**
+     * Returns a future that completes with the number of tasks once the import is closed and every task has
+     * finished, or completes exceptionally with the first failure of a task.
+     *
+     * @return the completion of the import
+     */
+    public CompletableFuture<Integer> completion() {
+        return completion;
+    }
+
+    /**
+     * Returns a description of where the imported entities come from.
+     *
+     * @return the origin
+     */
+    public String origin() {
+        return origin;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSetImport{" + origin + ", tasks=" + taskCount.get() + ", pending=" + pending.get() + "}";
+    }
+}
@@ -1,6 +1,9 @@
 package dev.ikm.orchestration.interfaces.changeset;
 
+import dev.ikm.tinkar.common.service.TrackingCallable;
+
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -18,6 +21,49 @@ public interface ChangeSetLoadService {
     int readChangesetFiles()
             throws IOException;
 
+    /**
+     * Creates a task that loads the change set files not yet applied to the datastore, reporting its progress,
+     * throughput and estimated time remaining, and which the user may cancel. Calling the task is equivalent to
+     * {@link #readChangesetFiles()}.
+     *
+     * @return the task, whose result is the number of files loaded
+     */
+    TrackingCallable<Integer> newLoadTask();
+
+    /**
+     * Creates a task that loads the content of every change set file selected by a filter, whether or not the file
+     * has been applied to the datastore, such as the content of one module or pattern for a partial refresh. Records
+     * that cannot match the filter are skipped before they become entities. A filtered load does not record the
+     * files as applied, so a later unfiltered load still loads the files not yet applied in full.
+     *
+     * @param filter the filter selecting the content to load
+     * @return the task, whose result is the number of files read
+     */
+    TrackingCallable<Integer> newLoadTask(ChangeSetFilter filter);
+
+    /**
+     * Creates a task that loads the change set files not yet applied to the datastore in two passes: first the
+     * stamps, patterns and concepts of every file, then the semantics, at a lower priority. The navigable callback
+     * is run once between the passes, when the concepts can be navigated, or when the task ends if it ends sooner,
+     * so a large load need not hold up the application until it completes.
+     *
+     * @param navigable run once the stamps, patterns and concepts have been loaded
+     * @return the task, whose result is the number of files loaded
+     */
+    TrackingCallable<Integer> newProgressiveLoadTask(Runnable navigable);
+
+    /**
+     * Creates a task that follows the change set folder of another node, such as an authoring node whose folder is on
+     * a shared mount, applying the records of its open change sets within seconds of their being written, until the
+     * task is cancelled. The position of the follower in each change set is kept with the local datastore, so a
+     * restarted follower continues where it stopped, and change sets sealed or rolled over while it was stopped are
+     * loaded in full.
+     *
+     * @param sourceFolder the change set folder to follow
+     * @return the task, whose result is the number of entities applied; it ends by being cancelled
+     */
+    TrackingCallable<Long> newFollowTask(Path sourceFolder);
+
     /**
      *
      * @return map of the filename of a change set, and the size of the change set
@@ -0,0 +1,87 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The ChangeSetRolloverPolicy interface decides when the change set file currently open for writing
+ * should be sealed and a new file opened. Policies are evaluated by the writer thread between writes,
+ * so nids that arrive during a rollover are written to the new file rather than lost.
+ *
+ * Policies may be combined with {@link #or(ChangeSetRolloverPolicy)}.
+ */
+@FunctionalInterface
+public interface ChangeSetRolloverPolicy {
+
+    /**
+     * Determine if the open change set file should be sealed.
+     *
+     * @param status the status of the open change set file
+     * @param now    the current time
+     * @return {@code true} if the file should be sealed and a new file opened
+     */
+    boolean shouldRollover(ChangeSetFileStatus status, Instant now);
+
+    /**
+     * Returns a policy that rolls over when either this policy or the other policy would.
+     *
+     * @param other the policy to combine with this policy
+     * @return the combined policy
+     */
+    default ChangeSetRolloverPolicy or(ChangeSetRolloverPolicy other) {
+        return (status, now) -> this.shouldRollover(status, now) || other.shouldRollover(status, now);
+    }
+
+    /**
+     * Returns a policy that never rolls over; the file stays open until the writer is paused.
+     *
+     * @return the policy
+     */
+    static ChangeSetRolloverPolicy never() {
+        return (status, now) -> false;
+    }
+
+    /**
+     * Returns a policy that rolls over once the file reaches the provided size on disk.
+     *
+     * @param maxBytes the maximum file size in bytes
+     * @return the policy
+     */
+    static ChangeSetRolloverPolicy maxBytes(long maxBytes) {
+        return (status, now) -> status.bytesWritten() >= maxBytes;
+    }
+
+    /**
+     * Returns a policy that rolls over once the file contains the provided number of entities.
+     *
+     * @param maxEntityCount the maximum number of entities per file
+     * @return the policy
+     */
+    static ChangeSetRolloverPolicy maxEntityCount(long maxEntityCount) {
+        return (status, now) -> status.entityCount() >= maxEntityCount;
+    }
+
+    /**
+     * Returns a policy that rolls over once the file has been open for the provided duration
+     * and contains at least one entity.
+     *
+     * @param maxAge the maximum time a file may stay open
+     * @return the policy
+     */
+    static ChangeSetRolloverPolicy maxAge(Duration maxAge) {
+        return (status, now) -> status.entityCount() > 0
+                && Duration.between(status.openedAt(), now).compareTo(maxAge) >= 0;
+    }
+
+    /**
+     * Returns a policy that rolls over once nothing has been written to the file for the provided duration
+     * and it contains at least one entity.
+     *
+     * @param idleTimeout the time without writes after which the file is sealed
+     * @return the policy
+     */
+    static ChangeSetRolloverPolicy idleTimeout(Duration idleTimeout) {
+        return (status, now) -> status.entityCount() > 0
+                && Duration.between(status.lastWriteAt(), now).compareTo(idleTimeout) >= 0;
+    }
+}
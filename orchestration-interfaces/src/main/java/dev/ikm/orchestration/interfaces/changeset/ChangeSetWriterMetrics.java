@@ -0,0 +1,33 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+/**
+ * The ChangeSetWriterMetrics record is a point in time snapshot of the state of the queue that sits between
+ * the thread that broadcasts entity changes and the thread that writes them to the change set file.
+ *
+ * @param queueCapacity the maximum number of nids held in memory before backpressure is applied
+ * @param queueDepth the number of nids currently held in memory waiting to be written
+ * @param maxQueueDepth the largest queue depth observed since the writer started
+ * @param spilledDepth the number of nids currently spilled to disk waiting to be written
+ * @param enqueuedCount the total number of nids accepted by the writer
+ * @param writtenCount the total number of nids written by the writer
+ * @param rejectedCount the total number of nids rejected because the queue was full
+ * @param lagMillis the age in milliseconds of the oldest nid not yet written, or 0 if the queue is empty
+ */
+public record ChangeSetWriterMetrics(int queueCapacity,
+                                     int queueDepth,
+                                     int maxQueueDepth,
+                                     long spilledDepth,
+                                     long enqueuedCount,
+                                     long writtenCount,
+                                     long rejectedCount,
+                                     long lagMillis) {
+
+    /**
+     * Returns the total number of nids waiting to be written, both in memory and spilled to disk.
+     *
+     * @return the number of pending nids
+     */
+    public long pendingCount() {
+        return queueDepth + spilledDepth;
+    }
+}
@@ -3,6 +3,7 @@ package dev.ikm.orchestration.interfaces.changeset;
 
 import dev.ikm.tinkar.common.service.ServiceKeys;
 import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.common.service.TrackingCallable;
 
 import java.io.File;
 import java.io.IOException;
@@ -10,6 +11,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.stream.IntStream;
 
 /**
  * {@link ChangeSetWriterService}
@@ -41,6 +43,17 @@ public interface ChangeSetWriterService {
     void resume()
             throws IOException;
 
+    /**
+     * Seal the open change set file and continue writing to a new file, without pausing or dropping writes.
+     * Every write requested before this call is contained in the sealed file or an earlier one, so the sealed
+     * files can be picked up and pushed to git, for example, while the writer keeps running.
+     *
+     * @return the sealed change set file, or empty if nothing was written to it or the writer is paused
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    Optional<Path> seal()
+            throws IOException;
+
     //~--- get methods ---------------------------------------------------------
 
     /**
@@ -57,12 +70,69 @@ public interface ChangeSetWriterService {
      */
     boolean getWriteStatus();
 
+    /**
+     * Return a snapshot of the writer queue depth and lag. Writes are queued and applied by a dedicated writer
+     * thread, so these metrics indicate how far the change set file is behind the datastore.
+     *
+     * @return the current writer metrics
+     */
+    ChangeSetWriterMetrics getMetrics();
+
+    /**
+     * Return the policy that determines when the open change set file is sealed and a new file opened.
+     *
+     * @return the rollover policy
+     */
+    ChangeSetRolloverPolicy getRolloverPolicy();
+
+    /**
+     * Set the policy that determines when the open change set file is sealed and a new file opened.
+     * The policy is evaluated by the writer thread between writes, and at least once per second while idle.
+     *
+     * @param rolloverPolicy the rollover policy, use {@link ChangeSetRolloverPolicy#never()} to disable rollover
+     */
+    void setRolloverPolicy(ChangeSetRolloverPolicy rolloverPolicy);
+
+    /**
+     * Return the compaction policy configured for the change set folder.
+     *
+     * @return the compaction policy
+     */
+    ChangeSetCompactionPolicy getCompactionPolicy();
+
+    /**
+     * Creates a task that merges the older, smaller change set files of the change set folder into larger
+     * consolidated archives, so the folder holds fewer files to push, pull and load. Each archive keeps the latest
+     * state, or the union of the versions, of every entity of the files it replaces, and preserves their manifests.
+     * The files are deleted only once the archive is in place. The task may be cancelled, leaving the archives
+     * completed so far.
+     *
+     * @param compactionPolicy the policy selecting the files to merge
+     * @return the task, whose result is the number of change set files merged
+     */
+    TrackingCallable<Integer> newCompactionTask(ChangeSetCompactionPolicy compactionPolicy);
+
     /**
      * Write the entity with the provided nid to the change set.
      * @param nid
      */
     void write(int nid);
 
+    /**
+     * Write the entities with the provided nids to the change set. Prefer this method to repeated calls of
+     * {@link #write(int)} when many entities are written, as the cost of queueing is paid once per batch.
+     *
+     * @param nids the nids of the entities to write
+     */
+    void write(int[] nids);
+
+    /**
+     * Write the entities with the provided nids to the change set, in batches, without boxing the nids.
+     *
+     * @param nids the nids of the entities to write
+     */
+    void write(IntStream nids);
+
     /**
      * Creates the folder for storing change sets. If the data store root is available,
      * it creates the change set folder by appending "changesets" to the data store root path.
@@ -0,0 +1,19 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * The BackpressurePolicy enum defines what happens when a nid is offered to a full change set writer queue.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Block the offering thread until the writer thread has made room in the queue.
+     */
+    BLOCK,
+    /**
+     * Append the nid to a temporary file on disk, preserving order, and drain it once the queue has room.
+     */
+    SPILL,
+    /**
+     * Reject the nid by throwing an {@link IllegalStateException} to the offering thread.
+     */
+    FAIL_FAST;
+}
@@ -0,0 +1,376 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicId;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The ChangeSetChunks class is the chunk table of a version {@value #CHUNKED_FORMAT_VERSION} change set.
+ *
+ * A version 1 change set holds every record in a single entities entry, which must be inflated and parsed from
+ * the start. A version 2 change set splits the records into chunks of about the same uncompressed size, each stored
+ * in its own, separately compressed, {@code entities/NNNNN.proto} entry. The {@value #TABLE_ENTRY} entry lists
+ * the chunks, the chunk and offset of each record, and the first UUID of the entity of each record, sorted, with the
+ * index of its record. The chunks of a large change set can therefore be decoded by several threads at once, and a
+ * single entity can be found by a binary search and read by inflating only the chunk that contains it. Tables of
+ * version 1, which kept the UUIDs in record order, are sorted as they are read.
+ *
+ * The version is recorded in the {@value #FORMAT_VERSION_ATTRIBUTE} manifest attribute, which is absent from
+ * version 1 change sets. {@link MappedChangeSetReader} reads both versions.
+ */
+public final class ChangeSetChunks {
+    public static final String FORMAT_VERSION_ATTRIBUTE = "Change-Set-Format-Version";
+    public static final int CHUNKED_FORMAT_VERSION = 2;
+    public static final String TABLE_ENTRY = "META-INF/CHUNKS.TABLE";
+    static final String CHUNK_ENTRY_PREFIX = "entities/";
+    static final int TABLE_MAGIC = 0x544B4354; // "TKCT"
+    static final int TABLE_VERSION = 2;
+    private static final int UNSORTED_TABLE_VERSION = 1;
+
+    private final List<Chunk> chunks;
+    private final int[] recordChunks;
+    private final int[] recordOffsets;
+    private final long[] sortedKeys;
+    private final int[] sortedRecordIndexes;
+
+    /**
+     * A chunk of records.
+     *
+     * @param entryName   the name of the zip entry holding the chunk
+     * @param recordCount the number of records in the chunk
+     * @param length      the uncompressed length of the chunk
+     */
+    public record Chunk(String entryName, int recordCount, long length) {
+    }
+
+    private ChangeSetChunks(List<Chunk> chunks, int[] recordChunks, int[] recordOffsets,
+                            long[] sortedKeys, int[] sortedRecordIndexes) {
+        this.chunks = chunks;
+        this.recordChunks = recordChunks;
+        this.recordOffsets = recordOffsets;
+        this.sortedKeys = sortedKeys;
+        this.sortedRecordIndexes = sortedRecordIndexes;
+    }
+
+    /**
+     * Returns the chunks of the change set, in the order their records were written.
+     *
+     * @return the chunks
+     */
+    public List<Chunk> chunks() {
+        return chunks;
+    }
+
+    /**
+     * Returns the number of records in the change set.
+     *
+     * @return the record count
+     */
+    public int recordCount() {
+        return recordChunks.length;
+    }
+
+    /**
+     * Returns the index of the record of the entity with the public id.
+     *
+     * @param publicId the public id of the entity
+     * @return the record index, or -1 if the entity is not in the change set
+     */
+    int recordIndex(PublicId publicId) {
+        for (UUID uuid : publicId.asUuidArray()) {
+            int recordIndex = binarySearchKey(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            if (recordIndex >= 0) {
+                return recordIndex;
+            }
+        }
+        return -1;
+    }
+
+    private int binarySearchKey(long msb, long lsb) {
+        int low = 0;
+        int high = sortedRecordIndexes.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareKey(sortedKeys[middle * 2], sortedKeys[middle * 2 + 1], msb, lsb);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return sortedRecordIndexes[middle];
+            }
+        }
+        return -1;
+    }
+
+    private static int compareKey(long msb1, long lsb1, long msb2, long lsb2) {
+        int msbComparison = Long.compare(msb1, msb2);
+        return msbComparison != 0 ? msbComparison : Long.compare(lsb1, lsb2);
+    }
+
+    /**
+     * Returns the indexes of keyed records in the order of their keys. Of records with the same key, which an entity
+     * written more than once would have, only the last is kept, as it holds the latest state of the entity.
+     *
+     * @param recordKeys  the keys of the records, in record order, as most and least significant longs
+     * @param recordCount the number of keyed records
+     * @return the record indexes, sorted by key
+     */
+    private static int[] sortByKey(long[] recordKeys, int recordCount) {
+        int[] sorted = IntStream.range(0, recordCount).boxed()
+                .sorted((a, b) -> {
+                    int comparison = compareKey(recordKeys[a * 2], recordKeys[a * 2 + 1], recordKeys[b * 2], recordKeys[b * 2 + 1]);
+                    return comparison != 0 ? comparison : Integer.compare(a, b);
+                })
+                .mapToInt(Integer::intValue)
+                .toArray();
+        int uniqueCount = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            boolean last = i + 1 == sorted.length || compareKey(recordKeys[sorted[i] * 2], recordKeys[sorted[i] * 2 + 1],
+                    recordKeys[sorted[i + 1] * 2], recordKeys[sorted[i + 1] * 2 + 1]) != 0;
+            if (last) {
+                sorted[uniqueCount++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, uniqueCount);
+    }
+
+    int recordChunk(int recordIndex) {
+        return recordChunks[recordIndex];
+    }
+
+    int recordOffset(int recordIndex) {
+        return recordOffsets[recordIndex];
+    }
+
+    /**
+     * Reads a chunk table from the content of its entry.
+     *
+     * @param entryIn       the content of the {@value #TABLE_ENTRY} entry
+     * @param changeSetName the name of the change set, for error messages
+     * @return the chunk table
+     * @throws IOException if the table is malformed, or an I/O error occurs
+     */
+    static ChangeSetChunks read(InputStream entryIn, String changeSetName) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(entryIn));
+        int tableVersion = in.readInt() == TABLE_MAGIC ? in.readInt() : -1;
+        if (tableVersion != TABLE_VERSION && tableVersion != UNSORTED_TABLE_VERSION) {
+            throw new IOException("Unsupported chunk table in change set " + changeSetName);
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        int chunkCount = in.readInt();
+        for (int i = 0; i < chunkCount; i++) {
+            chunks.add(new Chunk(in.readUTF(), in.readInt(), in.readLong()));
+        }
+        int recordCount = in.readInt();
+        int[] recordChunks = new int[recordCount];
+        int[] recordOffsets = new int[recordCount];
+        if (tableVersion == UNSORTED_TABLE_VERSION) {
+            long[] recordKeys = new long[recordCount * 2];
+            for (int i = 0; i < recordCount; i++) {
+                recordKeys[i * 2] = in.readLong();
+                recordKeys[i * 2 + 1] = in.readLong();
+                recordChunks[i] = in.readInt();
+                recordOffsets[i] = in.readInt();
+            }
+            int[] sortedRecordIndexes = sortByKey(recordKeys, recordCount);
+            long[] sortedKeys = new long[sortedRecordIndexes.length * 2];
+            for (int i = 0; i < sortedRecordIndexes.length; i++) {
+                sortedKeys[i * 2] = recordKeys[sortedRecordIndexes[i] * 2];
+                sortedKeys[i * 2 + 1] = recordKeys[sortedRecordIndexes[i] * 2 + 1];
+            }
+            return new ChangeSetChunks(List.copyOf(chunks), recordChunks, recordOffsets, sortedKeys, sortedRecordIndexes);
+        }
+        for (int i = 0; i < recordCount; i++) {
+            recordChunks[i] = in.readInt();
+            recordOffsets[i] = in.readInt();
+        }
+        int keyCount = in.readInt();
+        long[] sortedKeys = new long[keyCount * 2];
+        int[] sortedRecordIndexes = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            sortedKeys[i * 2] = in.readLong();
+            sortedKeys[i * 2 + 1] = in.readLong();
+            sortedRecordIndexes[i] = in.readInt();
+        }
+        return new ChangeSetChunks(List.copyOf(chunks), recordChunks, recordOffsets, sortedKeys, sortedRecordIndexes);
+    }
+
+    /**
+     * The Keys class records the first UUID of each entity appended to a segment, so the chunk table can locate
+     * records by entity without parsing them. Entities are added by the single thread writing the change set.
+     */
+    static final class Keys {
+        private long[] keys = new long[1024];
+        private int recordCount;
+
+        void add(PublicId publicId) {
+            if ((recordCount + 1) * 2 > keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            UUID uuid = publicId.asUuidArray()[0];
+            keys[recordCount * 2] = uuid.getMostSignificantBits();
+            keys[recordCount * 2 + 1] = uuid.getLeastSignificantBits();
+            recordCount++;
+        }
+
+        /**
+         * Removes the keys of records that are left out of the change set, so the keys describe the records sealed.
+         *
+         * @param removedRecords the indexes of the records left out
+         */
+        void remove(BitSet removedRecords) {
+            int retained = 0;
+            for (int i = 0; i < recordCount; i++) {
+                if (!removedRecords.get(i)) {
+                    keys[retained * 2] = keys[i * 2];
+                    keys[retained * 2 + 1] = keys[i * 2 + 1];
+                    retained++;
+                }
+            }
+            recordCount = retained;
+        }
+    }
+
+    /**
+     * The Writer class writes the records of a segment as chunk entries, followed by the chunk table.
+     */
+    static final class Writer implements ChangeSetSegment.RecordConsumer {
+        private final ZipOutputStream zos;
+        private final Keys keys;
+        private final ChangeSetCompression compression;
+        private final ChangeSetDictionary dictionary;
+        private final int chunkBytes;
+        private final byte[] lengthPrefix = new byte[5];
+        private final List<Chunk> chunks = new ArrayList<>();
+        private int[] recordChunks = new int[1024];
+        private int[] recordOffsets = new int[1024];
+        private int recordCount;
+        private OutputStream chunkOut;
+        private String chunkEntryName;
+        private Deflater chunkDeflater;
+        private int chunkLength;
+        private int chunkRecordCount;
+
+        /**
+         * Creates a Writer.
+         *
+         * @param zos         the change set zip
+         * @param keys        the keys of the records, in the order they were appended to the segment
+         * @param compression the compression of each chunk
+         * @param dictionary  the preset dictionary to deflate each chunk with, or {@code null} to use zip entries
+         * @param chunkBytes  the uncompressed length at which a chunk is closed and the next one started
+         */
+        Writer(ZipOutputStream zos, Keys keys, ChangeSetCompression compression, ChangeSetDictionary dictionary, int chunkBytes) {
+            this.zos = zos;
+            this.keys = keys;
+            this.compression = compression;
+            this.dictionary = dictionary;
+            this.chunkBytes = chunkBytes;
+        }
+
+        @Override
+        public void accept(byte[] record, int length) throws IOException {
+            if (chunkOut == null || chunkLength >= chunkBytes) {
+                startChunk();
+            }
+            if (recordCount == recordChunks.length) {
+                recordChunks = Arrays.copyOf(recordChunks, recordCount * 2);
+                recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+            }
+            recordChunks[recordCount] = chunks.size();
+            recordOffsets[recordCount] = chunkLength;
+            recordCount++;
+            int prefixLength = SegmentSealer.varint32(lengthPrefix, length);
+            chunkOut.write(lengthPrefix, 0, prefixLength);
+            chunkOut.write(record, 0, length);
+            chunkLength += prefixLength + length;
+            chunkRecordCount++;
+        }
+
+        private void startChunk() throws IOException {
+            endChunk();
+            chunkEntryName = CHUNK_ENTRY_PREFIX + String.format("%05d", chunks.size()) + ".proto";
+            if (dictionary != null) {
+                // Chunks deflated with a dictionary are only stored by the zip, as with a version 1 dictionary entry.
+                chunkEntryName += ".deflate";
+                zos.setLevel(Deflater.NO_COMPRESSION);
+                zos.putNextEntry(new ZipEntry(chunkEntryName));
+                chunkDeflater = dictionary.newDeflater(compression.deflaterLevel());
+                chunkOut = new DeflaterOutputStream(zos, chunkDeflater, 1 << 16);
+            } else {
+                zos.setLevel(compression.deflaterLevel());
+                zos.putNextEntry(new ZipEntry(chunkEntryName));
+                chunkOut = zos;
+            }
+            chunkLength = 0;
+            chunkRecordCount = 0;
+        }
+
+        private void endChunk() throws IOException {
+            if (chunkOut == null) {
+                return;
+            }
+            if (chunkDeflater != null) {
+                ((DeflaterOutputStream) chunkOut).finish();
+                chunkDeflater.end();
+                chunkDeflater = null;
+            }
+            zos.closeEntry();
+            chunks.add(new Chunk(chunkEntryName, chunkRecordCount, chunkLength));
+            chunkOut = null;
+        }
+
+        /**
+         * Closes the last chunk, and writes the chunk table entry.
+         *
+         * @return the number of records written
+         * @throws IOException if an I/O error occurs while writing
+         */
+        long finish() throws IOException {
+            endChunk();
+            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+            zos.putNextEntry(new ZipEntry(TABLE_ENTRY));
+            DataOutputStream tableOut = new DataOutputStream(zos);
+            tableOut.writeInt(TABLE_MAGIC);
+            tableOut.writeInt(TABLE_VERSION);
+            tableOut.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                tableOut.writeUTF(chunk.entryName());
+                tableOut.writeInt(chunk.recordCount());
+                tableOut.writeLong(chunk.length());
+            }
+            tableOut.writeInt(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                tableOut.writeInt(recordChunks[i]);
+                tableOut.writeInt(recordOffsets[i]);
+            }
+            // A record without a key, which is not expected, can only be read sequentially.
+            int[] sortedRecordIndexes = sortByKey(keys.keys, Math.min(keys.recordCount, recordCount));
+            tableOut.writeInt(sortedRecordIndexes.length);
+            for (int recordIndex : sortedRecordIndexes) {
+                tableOut.writeLong(keys.keys[recordIndex * 2]);
+                tableOut.writeLong(keys.keys[recordIndex * 2 + 1]);
+                tableOut.writeInt(recordIndex);
+            }
+            tableOut.flush();
+            zos.closeEntry();
+            return recordCount;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionMode;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionPolicy;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PatternChronology;
+import dev.ikm.tinkar.schema.PatternVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.SemanticChronology;
+import dev.ikm.tinkar.schema.SemanticVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * The ChangeSetCompactionTask class merges the older, smaller change set files of a change set folder into larger
+ * consolidated archives, as selected by a {@link ChangeSetCompactionPolicy}. A folder gains a file for every session
+ * and every pause and resume, so after months it holds thousands of small files, which slow git operations and
+ * full loads alike.
+ *
+ * Only sealed files in the change set folder itself, not in subfolders, that the {@link ChangeSetLedger} shows as
+ * applied to the datastore are merged, in the order they were sealed, in runs of up to the maximum archive size. Each
+ * run is read twice: first to find the records of each entity, then to write one record of each entity to a
+ * segment, which is sealed into the archive like any change set, with the configured compression, dictionary, index,
+ * chunks and public id table. With {@link ChangeSetCompactionMode#LATEST} the record kept is the last one; with
+ * {@link ChangeSetCompactionMode#UNION}, or if any file of the run was written in delta mode, it is the last record
+ * with the versions of every record of the entity, one per stamp. The first pass holds the public id of every
+ * entity of the run; the second pass keeps only the entities with several records, and holds the messages of only
+ * those with records still to be merged.
+ *
+ * The manifest of the archive describes its records, and the manifests of the files it replaces are preserved in it
+ * under {@value #PRESERVED_MANIFESTS}. The archive is named after the first file of the run, and records the seal time
+ * of its last file, so it is imported in the place of the run.
+ * The files are deleted only once the archive is in place and recorded in the ledger; if the task is interrupted
+ * between the two, the files and the archive both remain, which loads the same versions twice but loses none.
+ * Compaction waits for any change set import to finish, and imports wait for it.
+ */
+public class ChangeSetCompactionTask extends TrackingCallable<Integer> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetCompactionTask.class);
+    static final String PRESERVED_MANIFESTS = "META-INF/compacted/";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String CHANGE_SET_MODE_ATTRIBUTE = "Change-Set-Mode";
+
+    private final Path changeSetFolder;
+    private final ChangeSetCompactionPolicy policy;
+
+    /**
+     * Creates a task to compact the change set files of a folder.
+     *
+     * @param changeSetFolder the change set folder
+     * @param policy          the policy selecting the files to merge
+     */
+    public ChangeSetCompactionTask(Path changeSetFolder, ChangeSetCompactionPolicy policy) {
+        super(true, true);
+        this.changeSetFolder = changeSetFolder;
+        this.policy = policy;
+        updateTitle("Compacting change sets");
+    }
+
+    /**
+     * Merges the change set files selected by the policy into archives, waiting for any import to finish.
+     *
+     * @return the number of change set files merged
+     * @throws IOException           if a change set cannot be read, or an archive cannot be written
+     * @throws CancellationException if the task is cancelled
+     */
+    @Override
+    protected Integer compute() throws Exception {
+        ChangeSetImportTask.IMPORT_LOCK.lockInterruptibly();
+        try {
+            if (!Files.isDirectory(changeSetFolder)) {
+                updateMessage("No change set folder " + changeSetFolder);
+                return 0;
+            }
+            deleteAbandonedSegments();
+            ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+            List<List<Path>> runs = runs(ledger);
+            runs.forEach(run -> addToTotalWork(run.size() * 2L));
+            int mergedCount = 0;
+            for (List<Path> run : runs) {
+                compact(ledger, run);
+                mergedCount += run.size();
+            }
+            updateMessage("Merged " + mergedCount + " change sets into " + runs.size() + " archives in " + durationString());
+            return mergedCount;
+        } finally {
+            ChangeSetImportTask.IMPORT_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments of compactions that were interrupted, as their files were not deleted.
+     */
+    private void deleteAbandonedSegments() throws IOException {
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(changeSetFolder, "*" + COMPACTING_SUFFIX)) {
+            for (Path segment : segments) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    /**
+     * Returns the runs of change set files to merge, each of at least two files, in the order they were sealed.
+     */
+    private List<List<Path>> runs(ChangeSetLedger ledger) throws IOException {
+        Instant modifiedBefore = Instant.now().minus(policy.minAge());
+        List<Path> candidates = new ArrayList<>();
+        Map<Path, Instant> sealTimes = new HashMap<>();
+        try (Stream<Path> files = Files.list(changeSetFolder)) {
+            for (Path file : files.sorted().toList()) {
+                if (!file.getFileName().toString().endsWith(ChangeSetImportTask.CHANGE_SET_SUFFIX)) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                ChangeSetLedger.Entry entry = ledger.entry(file);
+                if (attributes.isRegularFile() && attributes.size() <= policy.maxFileBytes()
+                        && attributes.lastModifiedTime().toInstant().isBefore(modifiedBefore)
+                        && entry != null && entry.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                    candidates.add(file);
+                    sealTimes.put(file, ChangeSetManifest.sealTime(file, ChangeSetReader.manifest(file).getMainAttributes()));
+                }
+            }
+        }
+        candidates.sort(Comparator.comparing(sealTimes::get));
+        List<List<Path>> runs = new ArrayList<>();
+        List<Path> run = new ArrayList<>();
+        long runBytes = 0;
+        for (Path candidate : candidates) {
+            long size = Files.size(candidate);
+            if (!run.isEmpty() && runBytes + size > policy.maxArchiveBytes()) {
+                addRun(runs, run);
+                run = new ArrayList<>();
+                runBytes = 0;
+            }
+            run.add(candidate);
+            runBytes += size;
+        }
+        addRun(runs, run);
+        return runs;
+    }
+
+    private static void addRun(List<List<Path>> runs, List<Path> run) {
+        if (run.size() > 1) {
+            runs.add(run);
+        }
+    }
+
+    /**
+     * Merges a run of change set files into an archive, then deletes them.
+     */
+    private void compact(ChangeSetLedger ledger, List<Path> run) throws IOException {
+        String firstName = run.getFirst().getFileName().toString();
+        Path archive = changeSetFolder.resolve(firstName.substring(0, firstName.indexOf('~') + 1)
+                + "compacted-" + UUID.randomUUID() + ChangeSetImportTask.CHANGE_SET_SUFFIX);
+        updateMessage("Merging " + run.size() + " change sets into " + archive.getFileName());
+
+        // The first pass counts the records of each entity, and reads the manifests.
+        Map<PublicId, Integer> recordCounts = new HashMap<>();
+        Map<String, byte[]> preservedManifests = new LinkedHashMap<>();
+        boolean delta = false;
+        Instant sealTime = Instant.MIN;
+        for (Path file : run) {
+            try (MappedChangeSetReader reader = MappedChangeSetReader.open(file);
+                 Stream<TinkarMsg> messages = reader.messages()) {
+                Manifest manifest = reader.manifest();
+                delta |= ChangeSetWriteMode.DELTA.name().equals(manifest.getMainAttributes().getValue(CHANGE_SET_MODE_ATTRIBUTE));
+                Instant fileSealTime = ChangeSetManifest.sealTime(file, manifest.getMainAttributes());
+                sealTime = fileSealTime.isAfter(sealTime) ? fileSealTime : sealTime;
+                ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+                manifest.write(manifestBytes);
+                preservedManifests.put(PRESERVED_MANIFESTS + file.getFileName() + ".MF", manifestBytes.toByteArray());
+                messages.forEach(pbTinkarMsg -> {
+                    checkCancelled();
+                    recordCounts.merge(publicId(pbTinkarMsg), 1, Integer::sum);
+                });
+            }
+            completedUnitOfWork();
+        }
+        boolean union = delta || policy.mode() == ChangeSetCompactionMode.UNION;
+        // Most entities have a single record, which the second pass writes as soon as it is read.
+        recordCounts.values().removeIf(count -> count == 1);
+
+        // The second pass writes one record of each entity, once its last record is read.
+        Path segmentFile = archive.resolveSibling(archive.getFileName() + COMPACTING_SUFFIX);
+        ArchiveWriter archiveWriter = new ArchiveWriter(segmentFile);
+        archiveWriter.manifest.sealTime(sealTime);
+        try {
+            Map<PublicId, TinkarMsg> merging = new HashMap<>();
+            for (Path file : run) {
+                try (MappedChangeSetReader reader = MappedChangeSetReader.open(file);
+                     Stream<TinkarMsg> messages = reader.messages()) {
+                    messages.forEach(pbTinkarMsg -> {
+                        checkCancelled();
+                        PublicId publicId = publicId(pbTinkarMsg);
+                        if (!recordCounts.containsKey(publicId)) {
+                            archiveWriter.write(pbTinkarMsg);
+                            return;
+                        }
+                        int remaining = recordCounts.merge(publicId, -1, Integer::sum);
+                        TinkarMsg merged = pbTinkarMsg;
+                        if (union) {
+                            TinkarMsg earlier = merging.remove(publicId);
+                            merged = earlier == null ? pbTinkarMsg : union(earlier, pbTinkarMsg);
+                            if (remaining > 0) {
+                                merging.put(publicId, merged);
+                            }
+                        }
+                        if (remaining == 0) {
+                            recordCounts.remove(publicId);
+                            archiveWriter.write(merged);
+                        }
+                    });
+                }
+                completedUnitOfWork();
+            }
+            archiveWriter.seal(archive, preservedManifests, delta);
+        } catch (IOException | RuntimeException e) {
+            archiveWriter.abandon();
+            throw e;
+        }
+        for (Path file : run) {
+            Files.deleteIfExists(file);
+        }
+        ledger.remove(run);
+        LOG.info("Merged " + run.size() + " change sets into " + archive + " with " + archiveWriter.manifest.totalCount() + " entities");
+    }
+
+    private void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Change set compaction cancelled");
+        }
+    }
+
+    /**
+     * Returns the public id of the entity of a message.
+     */
+    private static PublicId publicId(TinkarMsg pbTinkarMsg) {
+        return switch (pbTinkarMsg.getValueCase()) {
+            case CONCEPT_CHRONOLOGY -> pbTinkarMsg.getConceptChronology().getPublicId();
+            case SEMANTIC_CHRONOLOGY -> pbTinkarMsg.getSemanticChronology().getPublicId();
+            case PATTERN_CHRONOLOGY -> pbTinkarMsg.getPatternChronology().getPublicId();
+            case STAMP_CHRONOLOGY -> pbTinkarMsg.getStampChronology().getPublicId();
+            default -> throw new IllegalStateException("Unexpected value: " + pbTinkarMsg.getValueCase());
+        };
+    }
+
+    /**
+     * Returns the later message of an entity with the versions of both messages, one per stamp, the later version of
+     * a stamp replacing the earlier. A stamp holds no versions to merge, so its later message is returned.
+     */
+    private static TinkarMsg union(TinkarMsg earlier, TinkarMsg later) {
+        if (earlier.getValueCase() != later.getValueCase()) {
+            return later;
+        }
+        return switch (later.getValueCase()) {
+            case CONCEPT_CHRONOLOGY -> {
+                ConceptChronology.Builder builder = later.getConceptChronology().toBuilder().clearConceptVersions();
+                unionVersions(earlier.getConceptChronology().getConceptVersionsList(), later.getConceptChronology().getConceptVersionsList(),
+                        ConceptVersion::getStampChronologyPublicId, builder::addConceptVersions);
+                yield later.toBuilder().setConceptChronology(builder).build();
+            }
+            case SEMANTIC_CHRONOLOGY -> {
+                SemanticChronology.Builder builder = later.getSemanticChronology().toBuilder().clearSemanticVersions();
+                unionVersions(earlier.getSemanticChronology().getSemanticVersionsList(), later.getSemanticChronology().getSemanticVersionsList(),
+                        SemanticVersion::getStampChronologyPublicId, builder::addSemanticVersions);
+                yield later.toBuilder().setSemanticChronology(builder).build();
+            }
+            case PATTERN_CHRONOLOGY -> {
+                PatternChronology.Builder builder = later.getPatternChronology().toBuilder().clearPatternVersions();
+                unionVersions(earlier.getPatternChronology().getPatternVersionsList(), later.getPatternChronology().getPatternVersionsList(),
+                        PatternVersion::getStampChronologyPublicId, builder::addPatternVersions);
+                yield later.toBuilder().setPatternChronology(builder).build();
+            }
+            default -> later;
+        };
+    }
+
+    private static <V> void unionVersions(List<V> earlier, List<V> later, Function<V, PublicId> stampPublicId, Consumer<V> union) {
+        Map<PublicId, V> versions = new LinkedHashMap<>();
+        earlier.forEach(version -> versions.put(stampPublicId.apply(version), version));
+        later.forEach(version -> versions.put(stampPublicId.apply(version), version));
+        versions.values().forEach(union);
+    }
+
+    /**
+     * Writes the records of an archive to a segment, collecting its manifest, index and chunk keys as
+     * {@link ChangeSetWriter} does, and seals it into the archive.
+     */
+    private static final class ArchiveWriter {
+        final ChangeSetSegment segment;
+        final ChangeSetManifest manifest = new ChangeSetManifest();
+        final ChangeSetIndex.Builder index =
+                Boolean.parseBoolean(ChangeSetWriterKeys.INDEX.get()) ? new ChangeSetIndex.Builder() : null;
+        final ChangeSetChunks.Keys chunkKeys = ChangeSetWriterKeys.FORMAT_VERSION.getInt() ==
+                ChangeSetChunks.CHUNKED_FORMAT_VERSION ? new ChangeSetChunks.Keys() : null;
+        final TinkarSchemaToEntityTransformer transformer = TinkarSchemaToEntityTransformer.getInstance();
+
+        ArchiveWriter(Path segmentFile) throws IOException {
+            this.segment = new ChangeSetSegment(segmentFile);
+        }
+
+        void write(TinkarMsg pbTinkarMsg) {
+            byte[] record = pbTinkarMsg.toByteArray();
+            try {
+                segment.append(record, 0, record.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // The entity of the record; a record that is transformed to several entities holds it first.
+            List<Entity<? extends EntityVersion>> entities = new ArrayList<>(1);
+            transformer.transform(pbTinkarMsg, entities::add, stampEntity -> { });
+            Entity<? extends EntityVersion> entity = entities.getFirst();
+            manifest.add(entity);
+            if (index != null) {
+                index.add(entity);
+            }
+            if (chunkKeys != null) {
+                chunkKeys.add(entity.publicId());
+            }
+        }
+
+        void seal(Path archive, Map<String, byte[]> preservedManifests, boolean delta) throws IOException {
+            segment.close();
+            ChangeSetCompression compression = ChangeSetWriterKeys.COMPRESSION.getEnum(ChangeSetCompression.class);
+            ChangeSetDictionary dictionary = SegmentSealer.dictionaryFor(segment.file(), compression);
+            ChangeSetPublicIds.Encoder publicIds = SegmentSealer.publicIdsEncoder();
+            SegmentSealer.seal(segment.file(), archive,
+                    manifest.render(delta ? ChangeSetWriteMode.DELTA : ChangeSetWriteMode.CHRONOLOGY,
+                            chunkKeys == null ? 1 : ChangeSetChunks.CHUNKED_FORMAT_VERSION, compression, dictionary,
+                            publicIds != null),
+                    compression, dictionary, index, chunkKeys, publicIds, null, preservedManifests);
+        }
+
+        void abandon() {
+            try {
+                segment.close();
+                Files.deleteIfExists(segment.file());
+            } catch (IOException e) {
+                LOG.warn("Unable to delete change set compaction segment " + segment.file(), e);
+            }
+        }
+    }
+}
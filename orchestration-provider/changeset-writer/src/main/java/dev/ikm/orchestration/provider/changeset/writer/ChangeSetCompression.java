@@ -0,0 +1,42 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.zip.Deflater;
+
+/**
+ * Enum class representing the compression applied to the entities entry when a segment is sealed into a
+ * change set file. The live segment is always written uncompressed, and the codec used for a change set
+ * is recorded in its manifest.
+ */
+public enum ChangeSetCompression {
+    /**
+     * The entities are stored without compression; sealing costs only a copy.
+     */
+    STORED(Deflater.NO_COMPRESSION),
+    /**
+     * Deflate at the fastest level, for when the writer is falling behind.
+     */
+    FAST(Deflater.BEST_SPEED),
+    /**
+     * Deflate at the default level, as written by earlier versions of the change set writer.
+     */
+    DEFAULT(Deflater.DEFAULT_COMPRESSION),
+    /**
+     * Deflate at the best level, for change sets that are synchronized over the network.
+     */
+    MAX(Deflater.BEST_COMPRESSION);
+
+    private final int deflaterLevel;
+
+    ChangeSetCompression(int deflaterLevel) {
+        this.deflaterLevel = deflaterLevel;
+    }
+
+    /**
+     * Returns the {@link Deflater} level of this compression.
+     *
+     * @return the deflater level
+     */
+    public int deflaterLevel() {
+        return deflaterLevel;
+    }
+}
@@ -0,0 +1,283 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.eclipse.collections.api.factory.primitive.LongIntMaps;
+import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The ChangeSetDictionary class is a deflate preset dictionary for change set files. Small change sets repeat the
+ * same stamp, module, author and pattern identifiers in nearly every message, but contain too few messages for
+ * deflate to exploit the repetition. Priming deflate with a dictionary of the byte sequences that recur across
+ * serialized {@code TinkarMsg} records lets it compress those sequences from the first message.
+ *
+ * A dictionary is identified by a hash of its content, recorded in the manifest of each change set compressed with it.
+ * Dictionaries are saved in the {@value #DICTIONARY_FOLDER} folder of the change set folder, so they are synchronized
+ * with the change sets that need them. A dictionary must never be deleted while change sets compressed with it exist.
+ *
+ * A dictionary is trained from a sample of the records of many change sets, so it does not fit only the content of
+ * the first one sealed, and is trained again as change sets with different content are written. Change sets keep
+ * naming the dictionary they were compressed with, so older dictionaries remain in use for reading.
+ */
+public final class ChangeSetDictionary {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetDictionary.class);
+    public static final String DICTIONARY_FOLDER = "dictionaries";
+    public static final String DICTIONARY_SUFFIX = ".dict";
+    /**
+     * The largest dictionary deflate can use, the size of its sliding window.
+     */
+    static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    /**
+     * The number of record bytes sampled to train a dictionary.
+     */
+    static final int MAX_SAMPLE_BYTES = 1 << 20;
+    /**
+     * The largest number of sealed change sets sampled to train a dictionary.
+     */
+    static final int MAX_SAMPLE_FILES = 64;
+    /**
+     * The length of the byte sequences counted during training, long enough to hold a UUID.
+     */
+    static final int SEQUENCE_BYTES = 16;
+
+    private final String id;
+    private final byte[] bytes;
+
+    private ChangeSetDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        this.id = idOf(bytes);
+    }
+
+    /**
+     * Returns the identifier of this dictionary, recorded in the manifest of change sets compressed with it.
+     *
+     * @return the dictionary identifier
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Returns the size of this dictionary.
+     *
+     * @return the number of bytes in the dictionary
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * Creates a raw deflater primed with this dictionary.
+     *
+     * @param level the deflater level
+     * @return the deflater, which the caller must end
+     */
+    public Deflater newDeflater(int level) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setDictionary(bytes);
+        return deflater;
+    }
+
+    /**
+     * Creates a raw inflater primed with this dictionary, to decompress data written by {@link #newDeflater(int)}.
+     *
+     * @return the inflater, which the caller must end
+     */
+    public Inflater newInflater() {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(bytes);
+        return inflater;
+    }
+
+    /**
+     * Trains a dictionary from a sample of serialized records. Every sequence of {@value #SEQUENCE_BYTES} bytes in the
+     * sample is counted, and the sequences that occur more than once are added in order of frequency until the
+     * dictionary is full. The most frequent sequences are placed at the end of the dictionary, where deflate
+     * encodes references to them with the shortest distances.
+     *
+     * @param sample the array containing the sample, starting at index 0
+     * @param length the length of the sample
+     * @return the trained dictionary, which is empty if no sequence recurs in the sample
+     */
+    public static ChangeSetDictionary train(byte[] sample, int length) {
+        ByteBuffer sampleBuffer = ByteBuffer.wrap(sample, 0, length);
+        MutableLongIntMap counts = LongIntMaps.mutable.empty();
+        MutableLongIntMap firstOffsets = LongIntMaps.mutable.empty();
+        for (int offset = 0; offset + SEQUENCE_BYTES <= length; offset++) {
+            long hash = sampleBuffer.getLong(offset) * 0x9E3779B97F4A7C15L ^ sampleBuffer.getLong(offset + Long.BYTES);
+            counts.addToValue(hash, 1);
+            firstOffsets.getIfAbsentPut(hash, offset);
+        }
+
+        // Pack each recurring sequence as count in the high bits and offset in the low bits, so sorting ranks by count.
+        long[] ranked = new long[counts.size()];
+        int[] rankedCount = new int[1];
+        counts.forEachKeyValue((hash, count) -> {
+            if (count > 1) {
+                ranked[rankedCount[0]++] = ((long) count << Integer.SIZE) | firstOffsets.get(hash);
+            }
+        });
+        Arrays.sort(ranked, 0, rankedCount[0]);
+
+        // Select from the most frequent, skipping sequences that overlap ones already selected.
+        boolean[] selected = new boolean[length];
+        int[] selectedOffsets = new int[MAX_DICTIONARY_BYTES / SEQUENCE_BYTES];
+        int selectedCount = 0;
+        for (int i = rankedCount[0] - 1; i >= 0 && selectedCount < selectedOffsets.length; i--) {
+            int offset = (int) ranked[i];
+            if (!selected[offset] && !selected[offset + SEQUENCE_BYTES - 1]) {
+                Arrays.fill(selected, offset, offset + SEQUENCE_BYTES, true);
+                selectedOffsets[selectedCount++] = offset;
+            }
+        }
+
+        byte[] dictionary = new byte[selectedCount * SEQUENCE_BYTES];
+        for (int i = 0; i < selectedCount; i++) {
+            System.arraycopy(sample, selectedOffsets[i], dictionary, dictionary.length - (i + 1) * SEQUENCE_BYTES, SEQUENCE_BYTES);
+        }
+        return new ChangeSetDictionary(dictionary);
+    }
+
+    /**
+     * Trains a dictionary from the records of a segment and of sealed change sets, sampling up to
+     * {@value #MAX_SAMPLE_BYTES} bytes shared evenly between them. Change sets that cannot be read, such as those
+     * compressed with a dictionary that has not been synchronized, are left out of the sample.
+     *
+     * @param segmentFile    the segment to sample
+     * @param changeSetFiles the sealed change sets to sample
+     * @return the trained dictionary
+     * @throws IOException if an I/O error occurs while reading the segment
+     */
+    public static ChangeSetDictionary train(Path segmentFile, List<Path> changeSetFiles) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate(MAX_SAMPLE_BYTES);
+        int fileSampleBytes = MAX_SAMPLE_BYTES / (changeSetFiles.size() + 1);
+        for (Path changeSetFile : changeSetFiles) {
+            int sampleEnd = sample.position() + fileSampleBytes;
+            try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+                 Stream<TinkarMsg> messages = reader.messages()) {
+                Iterator<TinkarMsg> iterator = messages.iterator();
+                while (sample.position() < sampleEnd && iterator.hasNext()) {
+                    byte[] record = iterator.next().toByteArray();
+                    sample.put(record, 0, Math.min(record.length, sampleEnd - sample.position()));
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Unable to sample change set " + changeSetFile + " to train a dictionary", e);
+            }
+        }
+        // The segment may also use the space left by change sets with fewer records than their share.
+        ChangeSetSegment.read(segmentFile, (record, length) ->
+                sample.put(record, 0, Math.min(length, sample.remaining())));
+        return train(sample.array(), sample.position());
+    }
+
+    /**
+     * Saves this dictionary in the dictionary folder of the change set folder, or if it is already saved, marks it
+     * as the most recently saved dictionary.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the dictionary file
+     * @throws IOException if an I/O error occurs while writing the dictionary
+     */
+    public Path save(Path changeSetFolder) throws IOException {
+        Path dictionaryFile = dictionaryFile(changeSetFolder, id);
+        if (Files.notExists(dictionaryFile)) {
+            Files.createDirectories(dictionaryFile.getParent());
+            Path tempFile = dictionaryFile.resolveSibling(dictionaryFile.getFileName() + ".tmp");
+            Files.write(tempFile, bytes);
+            Files.move(tempFile, dictionaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.setLastModifiedTime(dictionaryFile, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        return dictionaryFile;
+    }
+
+    /**
+     * Returns the time this dictionary was last saved in the dictionary folder of the change set folder.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the modification time of the dictionary file
+     * @throws IOException if the dictionary is not saved, or an I/O error occurs while reading its attributes
+     */
+    FileTime savedTime(Path changeSetFolder) throws IOException {
+        return Files.getLastModifiedTime(dictionaryFile(changeSetFolder, id));
+    }
+
+    /**
+     * Loads the dictionary with the provided identifier from the dictionary folder of the change set folder.
+     *
+     * @param changeSetFolder the change set folder
+     * @param id              the dictionary identifier
+     * @return the dictionary
+     * @throws IOException if the dictionary does not exist, its content does not match its identifier,
+     *                     or an I/O error occurs while reading it
+     */
+    public static ChangeSetDictionary load(Path changeSetFolder, String id) throws IOException {
+        ChangeSetDictionary dictionary = new ChangeSetDictionary(Files.readAllBytes(dictionaryFile(changeSetFolder, id)));
+        if (!dictionary.id().equals(id)) {
+            throw new IOException("Change set dictionary " + id + " is corrupt");
+        }
+        return dictionary;
+    }
+
+    /**
+     * Loads the most recently saved dictionary from the dictionary folder of the change set folder.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the dictionary, or empty if no dictionary has been saved
+     * @throws IOException if an I/O error occurs while reading the dictionary
+     */
+    public static Optional<ChangeSetDictionary> latest(Path changeSetFolder) throws IOException {
+        Path dictionaryFolder = changeSetFolder.resolve(DICTIONARY_FOLDER);
+        if (Files.notExists(dictionaryFolder)) {
+            return Optional.empty();
+        }
+        Path latestFile = null;
+        FileTime latestTime = null;
+        try (DirectoryStream<Path> dictionaryFiles = Files.newDirectoryStream(dictionaryFolder, "*" + DICTIONARY_SUFFIX)) {
+            for (Path dictionaryFile : dictionaryFiles) {
+                FileTime modifiedTime = Files.getLastModifiedTime(dictionaryFile);
+                if (latestTime == null || modifiedTime.compareTo(latestTime) > 0) {
+                    latestFile = dictionaryFile;
+                    latestTime = modifiedTime;
+                }
+            }
+        }
+        if (latestFile == null) {
+            return Optional.empty();
+        }
+        String fileName = latestFile.getFileName().toString();
+        return Optional.of(load(changeSetFolder, fileName.substring(0, fileName.length() - DICTIONARY_SUFFIX.length())));
+    }
+
+    private static Path dictionaryFile(Path changeSetFolder, String id) {
+        return changeSetFolder.resolve(DICTIONARY_FOLDER).resolve(id + DICTIONARY_SUFFIX);
+    }
+
+    private static String idOf(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
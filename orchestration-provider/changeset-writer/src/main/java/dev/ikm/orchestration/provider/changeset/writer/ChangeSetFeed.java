@@ -0,0 +1,243 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ChangeSetFeed class publishes each record written to the change set on a local Unix domain socket, so local
+ * processes such as indexers can consume changes as they are written, without polling the change set folder or
+ * reading sealed change sets. Unix domain sockets are also supported by Windows 10 and later, so the same feed
+ * serves as a named pipe there.
+ *
+ * Each subscriber that connects receives the records appended from then on, each a serialized {@code TinkarMsg}
+ * prefixed with its length as a varint, the framing of the {@code entities.proto} entry of a change set, so they can be
+ * read with {@code TinkarMsg.parseDelimitedFrom}. The records are those of the change set: in
+ * {@link ChangeSetWriteMode#DELTA} mode they hold only new versions, and entities loaded from change sets are not
+ * published, as they are not written.
+ *
+ * Publishing never blocks the writer thread. Records are queued for each subscriber, up to
+ * {@link ChangeSetWriterKeys#FEED_BUFFER_BYTES}, and written to its socket by a thread of its own. A record that does
+ * not fit in the buffer of a slow subscriber is handled by the {@link ChangeSetFeedOverflow} policy configured by
+ * {@link ChangeSetWriterKeys#FEED_OVERFLOW}.
+ */
+public final class ChangeSetFeed implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetFeed.class);
+    private static final int MAX_GATHERED_RECORDS = 64;
+
+    private final Path socketFile;
+    private final ServerSocketChannel serverChannel;
+    private final long bufferBytes;
+    private final ChangeSetFeedOverflow overflow;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a feed listening on a Unix domain socket, replacing a socket file left by an earlier process.
+     *
+     * @param socketFile  the path of the socket file
+     * @param bufferBytes the maximum number of bytes queued for each subscriber
+     * @param overflow    what happens to a record that does not fit in the buffer of a subscriber
+     * @throws IOException if the socket cannot be bound
+     */
+    public ChangeSetFeed(Path socketFile, long bufferBytes, ChangeSetFeedOverflow overflow) throws IOException {
+        this.socketFile = socketFile;
+        this.bufferBytes = bufferBytes;
+        this.overflow = overflow;
+        Files.deleteIfExists(socketFile);
+        this.serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketFile));
+        Thread.ofPlatform().name("change-set-feed").daemon(true).start(this::acceptLoop);
+    }
+
+    /**
+     * Creates the feed configured by the {@link ChangeSetWriterKeys#FEED_SOCKET} key. The feed is optional, so a socket
+     * that cannot be bound is logged rather than preventing change sets from being written.
+     *
+     * @return the feed, or {@code null} if no socket is configured or it cannot be bound
+     */
+    static ChangeSetFeed configured() {
+        String socket = ChangeSetWriterKeys.FEED_SOCKET.get().trim();
+        if (socket.isEmpty()) {
+            return null;
+        }
+        try {
+            ChangeSetFeed feed = new ChangeSetFeed(Path.of(socket), Math.max(1, ChangeSetWriterKeys.FEED_BUFFER_BYTES.getLong()),
+                    ChangeSetWriterKeys.FEED_OVERFLOW.getEnum(ChangeSetFeedOverflow.class));
+            LOG.info("Publishing change set records on " + socket);
+            return feed;
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to publish change set records on " + socket, e);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes a record to every subscriber. Does nothing if there are no subscribers.
+     *
+     * @param record the array containing the serialized record, starting at index 0
+     * @param length the length of the record
+     */
+    public void publish(byte[] record, int length) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        // One framed copy of the record is shared by every subscriber, as none of them modifies it.
+        byte[] lengthPrefix = new byte[5];
+        int prefixLength = SegmentSealer.varint32(lengthPrefix, length);
+        byte[] framed = new byte[prefixLength + length];
+        System.arraycopy(lengthPrefix, 0, framed, 0, prefixLength);
+        System.arraycopy(record, 0, framed, prefixLength, length);
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(framed);
+        }
+    }
+
+    /**
+     * Returns the number of subscribers connected.
+     *
+     * @return the subscriber count
+     */
+    public int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Stops accepting subscribers, disconnects the subscribers and deletes the socket file.
+     * Records queued for subscribers are discarded.
+     *
+     * @throws IOException if an I/O error occurs while closing the socket
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverChannel.close();
+        subscriptions.forEach(Subscription::close);
+        Files.deleteIfExists(socketFile);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Subscription subscription = new Subscription(serverChannel.accept(), subscriptionCount.incrementAndGet());
+                subscriptions.add(subscription);
+                Thread.ofPlatform().name("change-set-feed-" + subscription.id).daemon(true).start(subscription);
+                LOG.info("Change set feed subscriber " + subscription.id + " connected");
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.error("Unable to accept change set feed subscriber", e);
+            }
+        }
+    }
+
+    /**
+     * A connected subscriber, with the records queued for it, which its thread writes to its socket.
+     */
+    private final class Subscription implements Runnable {
+        final SocketChannel channel;
+        final int id;
+        final ArrayDeque<byte[]> records = new ArrayDeque<>();
+        long queuedBytes = 0;
+        long droppedCount = 0;
+        boolean disconnected = false;
+
+        Subscription(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+        }
+
+        synchronized void offer(byte[] record) {
+            if (disconnected) {
+                return;
+            }
+            if (queuedBytes + record.length > bufferBytes && !records.isEmpty()) {
+                if (overflow == ChangeSetFeedOverflow.DISCONNECT) {
+                    LOG.warn("Disconnecting change set feed subscriber " + id + ", which has "
+                            + queuedBytes + " bytes of records it has not read");
+                    close();
+                } else if (droppedCount++ == 0) {
+                    LOG.warn("Dropping records for change set feed subscriber " + id + ", which has "
+                            + queuedBytes + " bytes of records it has not read");
+                }
+                return;
+            }
+            records.add(record);
+            queuedBytes += record.length;
+            notifyAll();
+        }
+
+        /**
+         * Waits for records, and takes up to {@link #MAX_GATHERED_RECORDS} of them to write.
+         *
+         * @return the records, or {@code null} if the subscriber has been disconnected
+         */
+        synchronized ByteBuffer[] take() throws InterruptedException {
+            while (records.isEmpty() && !disconnected) {
+                wait();
+            }
+            if (disconnected) {
+                return null;
+            }
+            ByteBuffer[] taken = new ByteBuffer[Math.min(records.size(), MAX_GATHERED_RECORDS)];
+            for (int i = 0; i < taken.length; i++) {
+                byte[] record = records.remove();
+                queuedBytes -= record.length;
+                taken[i] = ByteBuffer.wrap(record);
+            }
+            return taken;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer[] taken;
+                while ((taken = take()) != null) {
+                    while (taken[taken.length - 1].hasRemaining()) {
+                        channel.write(taken);
+                    }
+                }
+            } catch (IOException e) {
+                if (!disconnected) {
+                    LOG.info("Change set feed subscriber " + id + " disconnected: " + e.getLocalizedMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+                if (droppedCount > 0) {
+                    LOG.warn("Dropped " + droppedCount + " records for change set feed subscriber " + id);
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (!disconnected) {
+                disconnected = true;
+                records.clear();
+                queuedBytes = 0;
+                notifyAll();
+            }
+            subscriptions.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close change set feed subscriber " + id, e);
+            }
+        }
+    }
+}
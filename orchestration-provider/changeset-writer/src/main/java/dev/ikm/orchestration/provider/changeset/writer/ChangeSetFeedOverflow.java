@@ -0,0 +1,16 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * The ChangeSetFeedOverflow enum defines what happens when a record is published to a {@link ChangeSetFeed}
+ * subscriber whose buffer is full, because it reads more slowly than change sets are written.
+ */
+public enum ChangeSetFeedOverflow {
+    /**
+     * Drop the record for that subscriber, which keeps its connection but misses the record.
+     */
+    DROP,
+    /**
+     * Disconnect the subscriber, which may reconnect and catch up from the change set files.
+     */
+    DISCONNECT;
+}
@@ -0,0 +1,142 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeMap;
+
+/**
+ * The ChangeSetFollowPositions class is a durable record of how far a {@link ChangeSetFollowTask} has applied each
+ * change set of the folder it follows: the position after the last record applied from a live segment, or that a
+ * sealed change set has been applied in full. Change sets are keyed by the name of their {@code .proto.zip} file,
+ * which is also the name of their segment, less its suffix.
+ *
+ * The positions are kept with the local datastore, not in the followed folder, which belongs to another node. They
+ * record the folder they were taken from, and are discarded if another folder is followed. They are rewritten
+ * atomically, and only after the datastore has been saved, so they are never ahead of the datastore.
+ */
+final class ChangeSetFollowPositions {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetFollowPositions.class);
+    static final String POSITIONS_FILE = "changeset-follower.tsv";
+    private static final String SOURCE_FOLDER_HEADER = "#source-folder";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path positionsFile;
+    private final Path sourceFolder;
+    private final TreeMap<String, Position> positions = new TreeMap<>();
+
+    /**
+     * The progress of the follower through one change set.
+     *
+     * @param name        the name of the change set file
+     * @param sealed      {@code true} if the change set has been sealed and applied in full
+     * @param offset      the position in the segment after the last record applied, if not sealed
+     * @param recordCount the number of records applied
+     */
+    record Position(String name, boolean sealed, long offset, long recordCount) {
+    }
+
+    private ChangeSetFollowPositions(Path positionsFile, Path sourceFolder) {
+        this.positionsFile = positionsFile;
+        this.sourceFolder = sourceFolder;
+    }
+
+    /**
+     * Reads the positions of a follower, or starts new positions if there are none for the source folder.
+     *
+     * @param positionsFile the file holding the positions
+     * @param sourceFolder  the followed change set folder
+     * @return the positions
+     */
+    static ChangeSetFollowPositions read(Path positionsFile, Path sourceFolder) {
+        ChangeSetFollowPositions followPositions = new ChangeSetFollowPositions(positionsFile,
+                sourceFolder.toAbsolutePath().normalize());
+        try {
+            followPositions.read();
+        } catch (IOException | RuntimeException e) {
+            // Change sets are applied again from the start, which is slow but correct, as applying merges entities.
+            LOG.error("Unable to read change set follower positions " + positionsFile + ", starting from the start", e);
+            followPositions.positions.clear();
+        }
+        return followPositions;
+    }
+
+    /**
+     * Returns the position of a change set.
+     *
+     * @param name the name of the change set file
+     * @return the position, or {@code null} if nothing has been applied from the change set
+     */
+    Position get(String name) {
+        return positions.get(name);
+    }
+
+    /**
+     * Records the position after the last record applied from the live segment of a change set.
+     */
+    void segment(String name, long offset, long recordCount) {
+        positions.put(name, new Position(name, false, offset, recordCount));
+    }
+
+    /**
+     * Records that a sealed change set has been applied in full.
+     */
+    void sealed(String name, long recordCount) {
+        positions.put(name, new Position(name, true, 0, recordCount));
+    }
+
+    /**
+     * Forgets a change set whose segment was deleted without being sealed, as happens to a segment with no records.
+     */
+    void remove(String name) {
+        positions.remove(name);
+    }
+
+    /**
+     * Writes the positions. The entities applied up to the positions must be durable in the datastore.
+     *
+     * @throws IOException if an I/O error occurs while writing the positions
+     */
+    void write() throws IOException {
+        Path tempFile = positionsFile.resolveSibling(positionsFile.getFileName() + TEMP_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(SOURCE_FOLDER_HEADER + "\t" + sourceFolder);
+            writer.newLine();
+            for (Position position : positions.values()) {
+                writer.write(position.name() + "\t" + position.sealed() + "\t" + position.offset() + "\t"
+                        + position.recordCount());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, positionsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read() throws IOException {
+        if (!Files.exists(positionsFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(positionsFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals(SOURCE_FOLDER_HEADER)) {
+                    if (fields.length != 2 || !Path.of(fields[1]).equals(sourceFolder)) {
+                        LOG.info("Change set follower positions are for " + line.substring(SOURCE_FOLDER_HEADER.length()).trim()
+                                + ", starting " + sourceFolder + " from the start");
+                        return;
+                    }
+                } else if (fields.length == 4) {
+                    positions.put(fields[0], new Position(fields[0], Boolean.parseBoolean(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetImport;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.NumberFormat;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The ChangeSetFollowTask class mirrors the change set folder of another node into the local datastore, with a lag
+ * of seconds, until it is cancelled. It polls the folder, as change events are not delivered reliably for shared
+ * mounts, and applies the records appended to each live {@link ChangeSetSegment} since the last poll, in the order
+ * of the change set names, which is the order the writer opened them in.
+ *
+ * A segment is read with a channel kept open while it is followed, from the end of the last complete record applied,
+ * so a record still being appended is applied by a later poll. When the writer seals the segment, the
+ * {@code .proto.zip} file is moved into place before the segment is deleted, and the writer has closed the segment by
+ * then, so the rest of the segment is read through the open channel and the change set is complete without reading
+ * the sealed file. Rollover only opens a new segment, which is followed from its header. A change set sealed before
+ * it could be followed, or while the follower was stopped, is loaded from the sealed file in full, which merges any
+ * versions already applied from its segment. The {@link ChangeSetLedger} of the followed folder is never read or
+ * written: it belongs to the other node, whose writer records every file it seals there, so it says nothing about
+ * what the local datastore holds.
+ *
+ * The position in each change set is kept in {@link ChangeSetFollowPositions} with the local datastore, recorded after
+ * the datastore has been saved, every {@link ChangeSetWriterKeys#FOLLOW_SAVE_SECONDS} and when the task ends, so a
+ * restarted follower continues where the saved datastore left off. Applied entities are tagged as coming from a
+ * {@link ChangeSetImport}, so a local writer does not write them again. Each poll holds the
+ * {@link ChangeSetImportTask#IMPORT_LOCK}, so the follower does not apply change sets while they are imported
+ * or compacted.
+ */
+public class ChangeSetFollowTask extends TrackingCallable<Long> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetFollowTask.class);
+    private static final String SEGMENT_FILE_SUFFIX = ChangeSetImportTask.CHANGE_SET_SUFFIX + ChangeSetSegment.SEGMENT_SUFFIX;
+
+    private final Path sourceFolder;
+    private final Path positionsFile;
+    private final long pollMillis = Math.max(1, ChangeSetWriterKeys.FOLLOW_POLL_MILLIS.getLong());
+    private final long saveNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ChangeSetWriterKeys.FOLLOW_SAVE_SECONDS.getLong()));
+    private final Map<String, FileChannel> followedSegments = new HashMap<>();
+    private EntityService entityService;
+    private TinkarSchemaToEntityTransformer transformer;
+    private long appliedCount = 0;
+    private LocalTime appliedAt;
+
+    /**
+     * Creates a task to follow the change set folder of another node.
+     *
+     * @param sourceFolder  the followed change set folder
+     * @param positionsFile the file recording the position of the follower in each change set, kept with the
+     *                      local datastore
+     */
+    public ChangeSetFollowTask(Path sourceFolder, Path positionsFile) {
+        super(true, true);
+        this.sourceFolder = sourceFolder;
+        this.positionsFile = positionsFile;
+        updateTitle("Following change sets in " + sourceFolder);
+        updateProgress(-1, -1);
+    }
+
+    /**
+     * Applies the change sets of the followed folder as they are written, until the task is cancelled.
+     *
+     * @return the number of entities applied
+     * @throws IOException           if a change set cannot be read, or the positions cannot be written
+     * @throws CancellationException when the task is cancelled
+     */
+    @Override
+    protected Long compute() throws Exception {
+        ChangeSetFollowPositions positions = ChangeSetFollowPositions.read(positionsFile, sourceFolder);
+        entityService = EntityService.get();
+        transformer = TinkarSchemaToEntityTransformer.getInstance();
+        boolean unsaved = false;
+        long savedAt = System.nanoTime();
+        try (ChangeSetImport changeSetImport = ChangeSetImport.begin(sourceFolder.toString())) {
+            while (!isCancelled()) {
+                if (Files.isDirectory(sourceFolder)) {
+                    ChangeSetImportTask.IMPORT_LOCK.lockInterruptibly();
+                    try {
+                        unsaved |= changeSetImport.call(() -> poll(positions));
+                    } finally {
+                        ChangeSetImportTask.IMPORT_LOCK.unlock();
+                    }
+                    updateMessage(followMessage());
+                } else {
+                    updateMessage("Waiting for change set folder " + sourceFolder);
+                }
+                if (unsaved && System.nanoTime() - savedAt >= saveNanos) {
+                    save(positions);
+                    unsaved = false;
+                    savedAt = System.nanoTime();
+                }
+                Thread.sleep(pollMillis);
+            }
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for the next poll.
+        } finally {
+            followedSegments.values().forEach(ChangeSetFollowTask::closeQuietly);
+            followedSegments.clear();
+            if (unsaved) {
+                save(positions);
+            }
+        }
+        throw new CancellationException("Stopped following change sets in " + sourceFolder + " after applying "
+                + appliedCount + " entities");
+    }
+
+    /**
+     * Applies what has been written to the change sets of the folder since the last poll.
+     *
+     * @return {@code true} if the positions changed
+     */
+    private boolean poll(ChangeSetFollowPositions positions) throws IOException {
+        TreeSet<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(sourceFolder)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(ChangeSetImportTask.CHANGE_SET_SUFFIX)) {
+                    names.add(name);
+                } else if (name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    names.add(ChangeSetSegment.changeSetFileFor(file).getFileName().toString());
+                }
+            }
+        }
+        boolean changed = false;
+        for (String name : names) {
+            if (isCancelled()) {
+                return changed;
+            }
+            changed |= follow(name, positions);
+        }
+        // Segments deleted without being sealed, as the writer does with a segment it wrote nothing to.
+        for (String name : followedSegments.keySet().toArray(String[]::new)) {
+            if (!names.contains(name)) {
+                closeQuietly(followedSegments.remove(name));
+                positions.remove(name);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Applies what has been written to one change set since the last poll.
+     *
+     * @return {@code true} if the position of the change set changed
+     */
+    private boolean follow(String name, ChangeSetFollowPositions positions) throws IOException {
+        ChangeSetFollowPositions.Position position = positions.get(name);
+        if (position != null && position.sealed()) {
+            return false;
+        }
+        Path changeSetFile = sourceFolder.resolve(name);
+        // Read before the segment, as the sealed file is in place before the segment is deleted.
+        boolean sealed = Files.exists(changeSetFile);
+        FileChannel segment = followedSegments.get(name);
+        if (segment == null) {
+            segment = openSegment(name);
+            if (segment != null && position != null && segment.size() < position.offset()) {
+                LOG.warn("Change set segment " + name + " was replaced, following it from the start");
+                position = null;
+            }
+        }
+        if (segment != null) {
+            long offset = position == null ? 0 : position.offset();
+            long[] recordCount = {position == null ? 0 : position.recordCount()};
+            long nextOffset = ChangeSetSegment.read(segment, offset, (record, length) -> {
+                apply(TinkarMsg.parseFrom(ByteBuffer.wrap(record, 0, length)));
+                recordCount[0]++;
+            });
+            if (!sealed) {
+                if (nextOffset == offset) {
+                    return false;
+                }
+                positions.segment(name, nextOffset, recordCount[0]);
+                return true;
+            }
+            boolean complete = nextOffset == segment.size();
+            closeQuietly(followedSegments.remove(name));
+            if (complete) {
+                positions.sealed(name, recordCount[0]);
+                LOG.info("Followed " + recordCount[0] + " records of change set " + name + " until it was sealed");
+                return true;
+            }
+            LOG.warn("Change set segment " + name + " ends with an unreadable record, loading the sealed change set");
+        }
+        if (sealed) {
+            positions.sealed(name, load(changeSetFile));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Opens the segment of a change set to follow it.
+     *
+     * @return the channel, or {@code null} if the change set has no segment
+     */
+    private FileChannel openSegment(String name) throws IOException {
+        Path segmentFile = ChangeSetSegment.segmentFileFor(sourceFolder.resolve(name).toFile());
+        try {
+            FileChannel segment = FileChannel.open(segmentFile, StandardOpenOption.READ);
+            followedSegments.put(name, segment);
+            return segment;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads a sealed change set in full.
+     *
+     * @return the number of entities loaded
+     */
+    private long load(Path changeSetFile) throws IOException {
+        long loadedCount = appliedCount;
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+             Stream<Entity<?>> entities = reader.entities()) {
+            entities.forEach(this::put);
+        }
+        loadedCount = appliedCount - loadedCount;
+        LOG.info("Loaded " + loadedCount + " entities from sealed change set " + changeSetFile);
+        return loadedCount;
+    }
+
+    private void apply(TinkarMsg pbTinkarMsg) {
+        transformer.transform(pbTinkarMsg, this::put, stampEntity -> { });
+    }
+
+    private void put(Entity<?> entity) {
+        entityService.putEntity(entity);
+        appliedCount++;
+        appliedAt = LocalTime.now();
+    }
+
+    /**
+     * Saves the datastore, so the entities applied so far are durable, then records the positions.
+     */
+    private static void save(ChangeSetFollowPositions positions) throws IOException {
+        PrimitiveData.save();
+        positions.write();
+    }
+
+    private String followMessage() {
+        StringBuilder message = new StringBuilder("Applied ").append(NumberFormat.getInstance().format(appliedCount))
+                .append(" entities, following ").append(followedSegments.size()).append(" change set segments");
+        if (appliedAt != null) {
+            message.append(", last applied at ").append(appliedAt.truncatedTo(ChronoUnit.SECONDS));
+        }
+        return message.toString();
+    }
+
+    private static void closeQuietly(FileChannel segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close change set segment", e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * The ChangeSetImportOrder enum defines the order in which change set files are applied to the datastore.
+ * Files may be decoded in parallel, but their entities are always put in this order, one file after another.
+ */
+public enum ChangeSetImportOrder {
+    /**
+     * Apply files in the order of the seal time recorded in their manifests, or of their modification times if they
+     * predate it, so the files of each installation are applied in the order they were sealed. Files sealed at the
+     * same time are applied in the order their names sort.
+     */
+    SEAL_TIME,
+    /**
+     * Apply files in the order of the earliest committed stamp time recorded in their manifests, so the files of
+     * several installations are interleaved by when their changes were committed. Files without stamp times are
+     * applied first, in the order they were sealed.
+     */
+    STAMP_TIME;
+}
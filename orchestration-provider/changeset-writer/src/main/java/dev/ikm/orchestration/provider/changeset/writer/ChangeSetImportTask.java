@@ -0,0 +1,503 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFilter;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetImport;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.stream.Stream;
+
+/**
+ * The ChangeSetImportTask class loads the change set files of a change set folder, and its subfolders, that have
+ * not been applied to the datastore, as recorded by the {@link ChangeSetLedger}. The folders are listed on every import,
+ * as a folder modification time may not change when a file is added on a filesystem with coarse timestamps, but a
+ * file whose size and modification time match the ledger is not read.
+ *
+ * Files are applied one after another, in the {@link ChangeSetImportOrder} configured by
+ * {@link ChangeSetWriterKeys#IMPORT_ORDER}, so the version deltas of {@link ChangeSetWriteMode#DELTA} change sets
+ * are applied in order. Reading and decoding a file takes longer than putting its entities, so up to
+ * {@link ChangeSetWriterKeys#IMPORT_PARALLELISM} files are decoded at once, ahead of the file being applied, into
+ * buffers holding at most {@link ChangeSetWriterKeys#IMPORT_BUFFER_ENTITIES} entities between them. A reader whose
+ * buffer is full waits for the task to catch up, so the memory used does not depend on the size of the files.
+ *
+ * The entities are put by the task thread, within a {@link ChangeSetImport}, so the change set writer does not
+ * write them again. Each file is recorded in the ledger once applied, so a cancelled or failed import resumes with
+ * the first file not applied. Within a large file, the datastore is saved and a ledger checkpoint recorded every
+ * {@link ChangeSetWriterKeys#IMPORT_CHECKPOINT_ENTITIES} entities, and when the task is cancelled, so an import
+ * interrupted by a cancel, a crash or closing the application resumes after the records already applied.
+ * Only one import runs at a time.
+ *
+ * An import with a {@link ChangeSetFilter} loads only the selected content of every change set file, whether or not
+ * it has been applied. The filter is evaluated on the records before they become entities, and its stamp predicates
+ * on the stamps of every file, read first, so a version is selected whichever file its stamp was written to. The files
+ * are not recorded in the ledger, as they have not been applied in full.
+ *
+ * A progressive import applies the files in two passes, so the datastore can be navigated long before a large import
+ * completes: first the stamps, patterns and concepts of every file, then, once the navigable callback has been run,
+ * the semantics of every file at low thread priority. Records are assigned to a pass by their type, read without
+ * parsing them. A file is recorded in the ledger once both passes have applied it; a progressive import does not
+ * record checkpoints, so an interrupted one loads the files not recorded again, which merges the same versions.
+ */
+public class ChangeSetImportTask extends TrackingCallable<Integer> {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetImportTask.class);
+    static final String CHANGE_SET_SUFFIX = ".proto.zip";
+    static final ReentrantLock IMPORT_LOCK = new ReentrantLock();
+    private static final Object END_OF_FILE = new Object();
+    private static final long POLL_MILLIS = 100;
+    private static final long MESSAGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int PROGRESS_BATCH = 1024;
+
+    private final Path changeSetFolder;
+    private final ChangeSetFilter filter;
+    private Runnable navigable;
+    private final int parallelism = Math.max(1, ChangeSetWriterKeys.IMPORT_PARALLELISM.getInt());
+    private final ChangeSetImportOrder order = ChangeSetWriterKeys.IMPORT_ORDER.getEnum(ChangeSetImportOrder.class);
+    private final int bufferEntities = Math.max(1, ChangeSetWriterKeys.IMPORT_BUFFER_ENTITIES.getInt());
+    private final long checkpointEntities = ChangeSetWriterKeys.IMPORT_CHECKPOINT_ENTITIES.getLong();
+    private long skippedCount = 0;
+    private ChangeSetSelection selection;
+
+    /**
+     * The records applied by a pass over the pending files.
+     */
+    private enum ImportPass {
+        ALL(null, "Loading change sets"),
+        STRUCTURE(record -> !ChangeSetSelection.isSemantic(record), "Loading change set stamps, patterns and concepts"),
+        SEMANTICS(ChangeSetSelection::isSemantic, "Loading change set semantics");
+
+        final Predicate<ByteBuffer> recordFilter;
+        final String title;
+
+        ImportPass(Predicate<ByteBuffer> recordFilter, String title) {
+            this.recordFilter = recordFilter;
+            this.title = title;
+        }
+    }
+
+    /**
+     * A change set file that has not been applied.
+     *
+     * @param file              the change set file
+     * @param sha256            the SHA-256 hash of the file
+     * @param expectedCount     the entity count from the manifest, or zero if not recorded
+     * @param sealTime          the seal time from the manifest, or the modification time of the file if not recorded
+     * @param earliestStampTime the earliest stamp time from the manifest, or {@code null} if not recorded
+     * @param resumeCount       the number of records applied before an earlier load of the file was interrupted
+     */
+    private record PendingFile(Path file, String sha256, long expectedCount, Instant sealTime, Instant earliestStampTime,
+                               long resumeCount) {
+        static final Comparator<PendingFile> SEAL_TIME = Comparator.comparing(PendingFile::sealTime)
+                .thenComparing(PendingFile::file);
+        static final Comparator<PendingFile> STAMP_TIME = Comparator.comparing(PendingFile::earliestStampTime,
+                Comparator.nullsFirst(Comparator.naturalOrder())).thenComparing(SEAL_TIME);
+    }
+
+    /**
+     * Creates a task to load the change set files of a folder that have not been applied.
+     *
+     * @param changeSetFolder the change set folder
+     */
+    public ChangeSetImportTask(Path changeSetFolder) {
+        this(changeSetFolder, ChangeSetFilter.ALL);
+    }
+
+    /**
+     * Creates a task to load the content of the change set files of a folder selected by a filter.
+     *
+     * @param changeSetFolder the change set folder
+     * @param filter          the filter selecting the content, or {@link ChangeSetFilter#ALL} to load the files
+     *                        that have not been applied
+     */
+    public ChangeSetImportTask(Path changeSetFolder, ChangeSetFilter filter) {
+        super(true, true);
+        this.changeSetFolder = changeSetFolder;
+        this.filter = filter;
+        updateTitle(filter.isAll() ? "Loading change sets" : "Loading selected change set content");
+    }
+
+    /**
+     * Creates a task to load the change set files of a folder that have not been applied, progressively.
+     *
+     * @param changeSetFolder the change set folder
+     * @param navigable       run once the stamps, patterns and concepts have been applied, before the semantics are,
+     *                        or when the task ends without reaching that point
+     */
+    public ChangeSetImportTask(Path changeSetFolder, Runnable navigable) {
+        this(changeSetFolder, ChangeSetFilter.ALL);
+        this.navigable = navigable;
+    }
+
+    /**
+     * Loads the change set files that have not been applied to the datastore, waiting for any other import to finish.
+     *
+     * @return the number of files loaded
+     * @throws IOException           if a change set cannot be read, or the ledger cannot be written
+     * @throws CancellationException if the task is cancelled
+     */
+    @Override
+    protected Integer compute() throws Exception {
+        IMPORT_LOCK.lockInterruptibly();
+        try {
+            if (!Files.isDirectory(changeSetFolder)) {
+                updateMessage("No change set folder " + changeSetFolder);
+                return 0;
+            }
+            ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+            updateMessage("Scanning " + changeSetFolder);
+            List<Path> changeSetFiles = new ArrayList<>();
+            scan(changeSetFolder, changeSetFiles);
+            List<PendingFile> pendingFiles = filter.isAll() ? pendingFiles(ledger, changeSetFiles) : selectedFiles(changeSetFiles);
+            if (pendingFiles.isEmpty()) {
+                updateMessage("No new change sets");
+                return 0;
+            }
+            pendingFiles.sort(order == ChangeSetImportOrder.STAMP_TIME ? PendingFile.STAMP_TIME : PendingFile.SEAL_TIME);
+            pendingFiles.forEach(pendingFile -> addToTotalWork(pendingFile.expectedCount()));
+            if (!filter.isAll()) {
+                selection = selection(pendingFiles);
+            }
+            long[] fileCounts = new long[pendingFiles.size()];
+            try (ChangeSetImport changeSetImport = ChangeSetImport.begin(changeSetFolder.toString())) {
+                if (navigable == null) {
+                    changeSetImport.call(() -> apply(ledger, pendingFiles, ImportPass.ALL, fileCounts));
+                } else {
+                    changeSetImport.call(() -> apply(ledger, pendingFiles, ImportPass.STRUCTURE, fileCounts));
+                    signalNavigable();
+                    changeSetImport.call(() -> apply(ledger, pendingFiles, ImportPass.SEMANTICS, fileCounts));
+                }
+            }
+            return pendingFiles.size();
+        } finally {
+            IMPORT_LOCK.unlock();
+            signalNavigable();
+        }
+    }
+
+    private void signalNavigable() {
+        Runnable signal = navigable;
+        navigable = null;
+        if (signal != null) {
+            signal.run();
+        }
+    }
+
+    /**
+     * Lists the change set files of a folder and its subfolders, skipping hidden folders such as {@code .git}.
+     *
+     * @param changeSetFolder the change set folder
+     * @param changeSetFiles  the list to add the files to
+     * @throws IOException if an I/O error occurs while listing the folders
+     */
+    static void scan(Path changeSetFolder, List<Path> changeSetFiles) throws IOException {
+        Files.walkFileTree(changeSetFolder, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(changeSetFolder) && dir.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().endsWith(CHANGE_SET_SUFFIX)) {
+                    changeSetFiles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Returns the change set files the ledger does not show as applied.
+     */
+    private List<PendingFile> pendingFiles(ChangeSetLedger ledger, List<Path> changeSetFiles) throws IOException {
+        List<PendingFile> pendingFiles = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles) {
+            if (isCancelled()) {
+                throw new CancellationException("Change set import cancelled");
+            }
+            ChangeSetLedger.Entry entry = ledger.entry(changeSetFile);
+            if (entry != null && entry.matches(Files.size(changeSetFile), Files.getLastModifiedTime(changeSetFile).toMillis())) {
+                continue;
+            }
+            String sha256 = ChangeSetLedger.sha256(changeSetFile);
+            if (entry != null && entry.sha256().equals(sha256)) {
+                // Touched, for example by a checkout, but not changed.
+                ledger.record(changeSetFile, sha256, entry.entityCount());
+                continue;
+            }
+            Attributes attributes = ChangeSetReader.manifest(changeSetFile).getMainAttributes();
+            pendingFiles.add(new PendingFile(changeSetFile, sha256, totalCount(attributes),
+                    ChangeSetManifest.sealTime(changeSetFile, attributes), earliestStampTime(attributes),
+                    ledger.checkpoint(changeSetFile, sha256)));
+        }
+        return pendingFiles;
+    }
+
+    /**
+     * Returns every change set file, to select content from.
+     */
+    private List<PendingFile> selectedFiles(List<Path> changeSetFiles) throws IOException {
+        List<PendingFile> selectedFiles = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles) {
+            Attributes attributes = ChangeSetReader.manifest(changeSetFile).getMainAttributes();
+            selectedFiles.add(new PendingFile(changeSetFile, null, totalCount(attributes),
+                    ChangeSetManifest.sealTime(changeSetFile, attributes), earliestStampTime(attributes), 0));
+        }
+        return selectedFiles;
+    }
+
+    private static long totalCount(Attributes attributes) {
+        String totalCount = attributes.getValue("Total-Count");
+        if (totalCount != null) {
+            try {
+                return NumberFormat.getInstance().parse(totalCount.trim()).longValue();
+            } catch (ParseException e) {
+                LOG.warn("Unreadable change set Total-Count: " + totalCount);
+            }
+        }
+        return 0;
+    }
+
+    private static Instant earliestStampTime(Attributes attributes) {
+        String earliestStampTime = attributes.getValue("Earliest-Stamp-Time");
+        if (earliestStampTime != null) {
+            try {
+                return Instant.parse(earliestStampTime.trim());
+            } catch (DateTimeParseException e) {
+                LOG.warn("Unreadable change set Earliest-Stamp-Time: " + earliestStampTime);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts the entities of a pass over the pending files in order, on the calling thread, while the following files
+     * are decoded by the reader threads.
+     *
+     * @param fileCounts the number of entities applied from each file, by earlier passes and this one
+     */
+    private Void apply(ChangeSetLedger ledger, List<PendingFile> pendingFiles, ImportPass pass, long[] fileCounts) throws Exception {
+        EntityService entityService = EntityService.get();
+        int bufferCapacity = Math.max(1, bufferEntities / parallelism);
+        int priority = pass == ImportPass.SEMANTICS ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY;
+        ExecutorService readerExecutor = Executors.newFixedThreadPool(parallelism,
+                Thread.ofPlatform().name("change-set-import-", 0).daemon(true).priority(priority).factory());
+        int taskPriority = Thread.currentThread().getPriority();
+        Thread.currentThread().setPriority(Math.min(taskPriority, priority));
+        if (filter.isAll()) {
+            updateTitle(pass.title);
+        }
+        boolean checkpointing = filter.isAll() && pass == ImportPass.ALL;
+        ArrayDeque<FileReader> readers = new ArrayDeque<>();
+        int nextFile = 0;
+        long loadedCount = 0;
+        long startNanos = System.nanoTime();
+        long messageNanos = startNanos;
+        try {
+            for (int fileIndex = 0; fileIndex < pendingFiles.size(); fileIndex++) {
+                while (nextFile < pendingFiles.size() && readers.size() < parallelism) {
+                    FileReader reader = new FileReader(pendingFiles.get(nextFile), entitiesOf(pendingFiles.get(nextFile), pass), bufferCapacity);
+                    nextFile++;
+                    reader.future = readerExecutor.submit(reader);
+                    readers.add(reader);
+                }
+                FileReader reader = readers.remove();
+                PendingFile pendingFile = pendingFiles.get(fileIndex);
+                long resumeCount = pass == ImportPass.ALL ? pendingFile.resumeCount() : 0;
+                long fileCount = resumeCount;
+                long checkpointCount = fileCount;
+                int unreported = 0;
+                if (fileCount > 0) {
+                    skippedCount += fileCount;
+                    completedUnitsOfWork(fileCount);
+                    LOG.info("Resuming change set " + pendingFile.file() + " after " + fileCount + " entities already loaded");
+                }
+                for (Object entity = reader.buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS); entity != END_OF_FILE;
+                     entity = reader.buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (entity != null) {
+                        entityService.putEntity((Entity<?>) entity);
+                        fileCount++;
+                        if (++unreported < PROGRESS_BATCH) {
+                            continue;
+                        }
+                        completedUnitsOfWork(unreported);
+                        unreported = 0;
+                    }
+                    if (isCancelled()) {
+                        if (checkpointing && fileCount > checkpointCount) {
+                            checkpoint(ledger, pendingFile, fileCount);
+                        }
+                        throw new CancellationException("Change set import cancelled");
+                    }
+                    if (checkpointing && checkpointEntities > 0 && fileCount - checkpointCount >= checkpointEntities) {
+                        checkpoint(ledger, pendingFile, fileCount);
+                        checkpointCount = fileCount;
+                    }
+                    long now = System.nanoTime();
+                    if (now - messageNanos >= MESSAGE_INTERVAL_NANOS) {
+                        messageNanos = now;
+                        updateMessage(progressMessage(loadedCount + fileCount - resumeCount, fileIndex, pendingFiles.size(), now - startNanos));
+                    }
+                }
+                completedUnitsOfWork(unreported);
+                if (reader.failure != null) {
+                    throw new IOException("Unable to load change set " + pendingFile.file(), reader.failure);
+                }
+                fileCounts[fileIndex] += fileCount;
+                loadedCount += fileCount - resumeCount;
+                if (pass == ImportPass.STRUCTURE) {
+                    continue;
+                }
+                if (fileCounts[fileIndex] > pendingFile.expectedCount()) {
+                    addToTotalWork(fileCounts[fileIndex] - pendingFile.expectedCount());
+                } else if (!filter.isAll()) {
+                    // The records not selected are done too.
+                    completedUnitsOfWork(pendingFile.expectedCount() - fileCounts[fileIndex]);
+                }
+                if (filter.isAll()) {
+                    ledger.record(pendingFile.file(), pendingFile.sha256(), fileCounts[fileIndex]);
+                }
+                LOG.info("Loaded " + fileCounts[fileIndex] + " entities from change set " + pendingFile.file());
+            }
+            updateMessage(progressMessage(loadedCount, pendingFiles.size(), pendingFiles.size(), System.nanoTime() - startNanos));
+            return null;
+        } finally {
+            readers.forEach(reader -> reader.future.cancel(true));
+            readerExecutor.shutdownNow();
+            Thread.currentThread().setPriority(taskPriority);
+        }
+    }
+
+    /**
+     * Returns the selection of the filter, with the stamps of every file if the filter has stamp predicates, so a
+     * version is selected even if its stamp was written to another file.
+     */
+    private ChangeSetSelection selection(List<PendingFile> pendingFiles) throws IOException {
+        ChangeSetSelection selection = new ChangeSetSelection(filter);
+        if (selection.needsStamps()) {
+            updateMessage("Reading change set stamps");
+            for (PendingFile pendingFile : pendingFiles) {
+                if (isCancelled()) {
+                    throw new CancellationException("Change set import cancelled");
+                }
+                try (MappedChangeSetReader reader = MappedChangeSetReader.open(pendingFile.file())) {
+                    reader.addStamps(selection);
+                }
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Returns how the reader of a file streams the entities of a pass: those selected by the filter, those after the
+     * records applied before the import was interrupted, or those of the pass.
+     */
+    private Function<MappedChangeSetReader, Stream<Entity<?>>> entitiesOf(PendingFile pendingFile, ImportPass pass) {
+        if (!filter.isAll()) {
+            return reader -> reader.entities(selection);
+        }
+        if (pass == ImportPass.ALL) {
+            return reader -> reader.entities(pendingFile.resumeCount());
+        }
+        return reader -> reader.entities(pass.recordFilter);
+    }
+
+    /**
+     * Saves the datastore, so the entities put so far are durable, and records how many records of the file
+     * have been applied.
+     */
+    private static void checkpoint(ChangeSetLedger ledger, PendingFile pendingFile, long recordCount) throws IOException {
+        PrimitiveData.save();
+        ledger.recordCheckpoint(pendingFile.file(), pendingFile.sha256(), recordCount);
+    }
+
+    private String progressMessage(long loadedCount, int filesLoaded, int fileCount, long elapsedNanos) {
+        long entitiesPerSecond = elapsedNanos > 0 ? loadedCount * TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+        NumberFormat numberFormat = NumberFormat.getInstance();
+        StringBuilder message = new StringBuilder("Loaded ").append(numberFormat.format(loadedCount))
+                .append(" entities from ").append(filesLoaded).append(" of ").append(fileCount)
+                .append(" change sets, ").append(numberFormat.format(entitiesPerSecond)).append(" entities/s");
+        if (skippedCount > 0) {
+            message.append(", ").append(numberFormat.format(skippedCount)).append(" skipped as loaded before");
+        }
+        if (filesLoaded < fileCount) {
+            message.append(", ").append(estimateTimeRemainingString());
+        }
+        return message.toString();
+    }
+
+    /**
+     * Decodes the entities of one change set file, as streamed for the pass, into a bounded buffer, ending with {@link #END_OF_FILE}.
+     */
+    private static final class FileReader implements Runnable {
+        final Path changeSetFile;
+        final Function<MappedChangeSetReader, Stream<Entity<?>>> entitiesOf;
+        final BlockingQueue<Object> buffer;
+        volatile Throwable failure;
+        Future<?> future;
+
+        FileReader(PendingFile pendingFile, Function<MappedChangeSetReader, Stream<Entity<?>>> entitiesOf, int bufferCapacity) {
+            this.changeSetFile = pendingFile.file();
+            this.entitiesOf = entitiesOf;
+            this.buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        }
+
+        @Override
+        public void run() {
+            try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+                 Stream<Entity<?>> entities = entitiesOf.apply(reader)) {
+                entities.forEach(this::put);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                try {
+                    buffer.put(END_OF_FILE);
+                } catch (InterruptedException e) {
+                    // Cancelled, so no one is waiting for the end of the file.
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void put(Object entity) {
+            try {
+                buffer.put(entity);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Change set import cancelled");
+            }
+        }
+    }
+}
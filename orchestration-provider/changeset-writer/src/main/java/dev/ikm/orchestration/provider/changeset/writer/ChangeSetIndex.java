@@ -0,0 +1,396 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicId;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.StampEntity;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The ChangeSetIndex class is a compact index of the entities in a change set, stored in the
+ * {@value #INDEX_ENTRY} entry of the change set zip, so queries can rule out change sets without reading
+ * their entities.
+ *
+ * The index holds the earliest and latest committed stamp times, a Bloom filter of the entity UUIDs, the sorted
+ * entity UUIDs, and the sorted entity nids. The Bloom filter precedes the UUIDs, so a query for an absent
+ * UUID usually reads only the header and the filter. Nids are only meaningful in the datastore that wrote the change
+ * set; use UUID queries for change sets synchronized from other installations.
+ *
+ * Change sets without an index, such as those written before the index was enabled, or recovered from a segment,
+ * can never be ruled out, so the folder queries always include them.
+ */
+public final class ChangeSetIndex {
+    public static final String INDEX_ENTRY = "META-INF/ENTITY.INDEX";
+    static final int MAGIC = 0x544B4958; // "TKIX"
+    static final int FORMAT_VERSION = 1;
+    static final int BLOOM_BITS_PER_UUID = 10;
+    static final int BLOOM_HASH_COUNT = 7;
+
+    private final long earliestStampTime;
+    private final long latestStampTime;
+    private final long[] bloomWords;
+    private final long[] sortedUuids;
+    private final int[] sortedNids;
+
+    private ChangeSetIndex(long earliestStampTime, long latestStampTime, long[] bloomWords, long[] sortedUuids, int[] sortedNids) {
+        this.earliestStampTime = earliestStampTime;
+        this.latestStampTime = latestStampTime;
+        this.bloomWords = bloomWords;
+        this.sortedUuids = sortedUuids;
+        this.sortedNids = sortedNids;
+    }
+
+    /**
+     * The Builder class collects the index of a change set as entities are written. Entities are added by the
+     * single thread writing the change set.
+     */
+    static final class Builder {
+        private long earliestStampTime = Long.MAX_VALUE;
+        private long latestStampTime = Long.MIN_VALUE;
+        private final List<UUID> uuids = new ArrayList<>();
+        private final MutableIntList nids = IntLists.mutable.empty();
+
+        /**
+         * Adds a written entity to the index.
+         *
+         * @param entity the entity written to the change set
+         */
+        void add(Entity<? extends EntityVersion> entity) {
+            add(entity.nid(), entity.publicId().asUuidArray(),
+                    entity instanceof StampEntity<?> stampEntity ? stampEntity.time() : Long.MAX_VALUE);
+        }
+
+        /**
+         * Adds a written entity to the index.
+         *
+         * @param nid       the nid of the entity
+         * @param uuids     the UUIDs of the public id of the entity
+         * @param stampTime the time of the entity if it is a committed stamp, or {@link Long#MAX_VALUE} otherwise
+         */
+        void add(int nid, UUID[] uuids, long stampTime) {
+            nids.add(nid);
+            this.uuids.addAll(Arrays.asList(uuids));
+            if (stampTime != Long.MAX_VALUE) {
+                earliestStampTime = Math.min(earliestStampTime, stampTime);
+                latestStampTime = Math.max(latestStampTime, stampTime);
+            }
+        }
+
+        /**
+         * Writes the index to a stream.
+         *
+         * @param out the stream to write to, which is not closed
+         * @throws IOException if an I/O error occurs while writing
+         */
+        void write(OutputStream out) throws IOException {
+            long[] sortedUuids = sortUnique(uuids);
+            int[] sortedNids = nids.distinct().sortThis().toArray();
+            long[] bloomWords = new long[Math.max(1, (sortedUuids.length / 2 * BLOOM_BITS_PER_UUID + 63) / 64)];
+            for (int i = 0; i < sortedUuids.length; i += 2) {
+                setBloomBits(bloomWords, sortedUuids[i], sortedUuids[i + 1]);
+            }
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(MAGIC);
+            dataOut.writeInt(FORMAT_VERSION);
+            dataOut.writeLong(earliestStampTime);
+            dataOut.writeLong(latestStampTime);
+            dataOut.writeInt(bloomWords.length);
+            for (long word : bloomWords) {
+                dataOut.writeLong(word);
+            }
+            dataOut.writeInt(sortedUuids.length / 2);
+            for (long uuidLong : sortedUuids) {
+                dataOut.writeLong(uuidLong);
+            }
+            dataOut.writeInt(sortedNids.length);
+            for (int nid : sortedNids) {
+                dataOut.writeInt(nid);
+            }
+            dataOut.flush();
+        }
+    }
+
+    /**
+     * Sorts UUIDs, removing duplicates, and returns them as most significant and least significant longs.
+     */
+    private static long[] sortUnique(List<UUID> uuids) {
+        uuids.sort((a, b) -> compareUuid(a.getMostSignificantBits(), a.getLeastSignificantBits(),
+                b.getMostSignificantBits(), b.getLeastSignificantBits()));
+        long[] sorted = new long[uuids.size() * 2];
+        int sortedLength = 0;
+        UUID previous = null;
+        for (UUID uuid : uuids) {
+            if (!uuid.equals(previous)) {
+                sorted[sortedLength++] = uuid.getMostSignificantBits();
+                sorted[sortedLength++] = uuid.getLeastSignificantBits();
+                previous = uuid;
+            }
+        }
+        return Arrays.copyOf(sorted, sortedLength);
+    }
+
+    private static int compareUuid(long msb1, long lsb1, long msb2, long lsb2) {
+        int msbComparison = Long.compare(msb1, msb2);
+        return msbComparison != 0 ? msbComparison : Long.compare(lsb1, lsb2);
+    }
+
+    private static void setBloomBits(long[] bloomWords, long msb, long lsb) {
+        long bitCount = bloomWords.length * 64L;
+        long hash1 = mix(msb ^ Long.rotateLeft(lsb, 32));
+        long hash2 = mix(lsb) | 1;
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            bloomWords[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean bloomBitsSet(long[] bloomWords, long msb, long lsb) {
+        long bitCount = bloomWords.length * 64L;
+        long hash1 = mix(msb ^ Long.rotateLeft(lsb, 32));
+        long hash2 = mix(lsb) | 1;
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+            if ((bloomWords[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The 64 bit finalizer of MurmurHash3, which spreads the bits of UUIDs that are not random, such as name based UUIDs.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Reads the index of a change set.
+     *
+     * @param changeSetFile the change set file
+     * @return the index, or {@code null} if the change set has no index
+     * @throws IOException if the index is malformed, or an I/O error occurs while reading it
+     */
+    public static ChangeSetIndex read(Path changeSetFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            ZipEntry indexEntry = zipFile.getEntry(INDEX_ENTRY);
+            if (indexEntry == null) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(indexEntry)))) {
+                return read(in, null);
+            }
+        }
+    }
+
+    /**
+     * Reads an index, stopping after the Bloom filter if it rules out the provided UUIDs.
+     *
+     * @param in    the stream to read from
+     * @param uuids the UUIDs being queried, or {@code null} to read the entire index
+     * @return the index, or {@code null} if the Bloom filter rules out every queried UUID
+     */
+    private static ChangeSetIndex read(DataInputStream in, UUID[] uuids) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unsupported change set index");
+        }
+        long earliestStampTime = in.readLong();
+        long latestStampTime = in.readLong();
+        long[] bloomWords = readLongs(in, in.readInt());
+        if (uuids != null && Arrays.stream(uuids).noneMatch(uuid ->
+                bloomBitsSet(bloomWords, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()))) {
+            return null;
+        }
+        long[] sortedUuids = readLongs(in, in.readInt() * 2);
+        int[] sortedNids = new int[in.readInt()];
+        for (int i = 0; i < sortedNids.length; i++) {
+            sortedNids[i] = in.readInt();
+        }
+        return new ChangeSetIndex(earliestStampTime, latestStampTime, bloomWords, sortedUuids, sortedNids);
+    }
+
+    private static long[] readLongs(DataInputStream in, int count) throws IOException {
+        long[] longs = new long[count];
+        for (int i = 0; i < count; i++) {
+            longs[i] = in.readLong();
+        }
+        return longs;
+    }
+
+    /**
+     * Returns {@code true} if the change set contains an entity with any of the UUIDs of the public id.
+     *
+     * @param publicId the public id
+     * @return {@code true} if the entity is in the change set
+     */
+    public boolean contains(PublicId publicId) {
+        for (UUID uuid : publicId.asUuidArray()) {
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            if (bloomBitsSet(bloomWords, msb, lsb) && binarySearchUuid(msb, lsb)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean binarySearchUuid(long msb, long lsb) {
+        int low = 0;
+        int high = sortedUuids.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareUuid(sortedUuids[middle * 2], sortedUuids[middle * 2 + 1], msb, lsb);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the change set contains an entity with a nid in the range. Only meaningful
+     * for change sets written by this datastore.
+     *
+     * @param fromNid the first nid of the range, inclusive
+     * @param toNid   the last nid of the range, inclusive
+     * @return {@code true} if an entity in the range is in the change set
+     */
+    public boolean containsNidInRange(int fromNid, int toNid) {
+        int index = Arrays.binarySearch(sortedNids, fromNid);
+        int insertionPoint = index >= 0 ? index : -index - 1;
+        return insertionPoint < sortedNids.length && sortedNids[insertionPoint] <= toNid;
+    }
+
+    /**
+     * Returns {@code true} if a committed stamp in the change set has a time in the range.
+     *
+     * @param fromTime the start of the range in epoch milliseconds, inclusive
+     * @param toTime   the end of the range in epoch milliseconds, inclusive
+     * @return {@code true} if the stamp times of the change set overlap the range
+     */
+    public boolean overlapsTime(long fromTime, long toTime) {
+        return earliestStampTime <= toTime && latestStampTime >= fromTime;
+    }
+
+    /**
+     * Returns the earliest committed stamp time in the change set.
+     *
+     * @return the time in epoch milliseconds, or {@link Long#MAX_VALUE} if there is no committed stamp
+     */
+    public long earliestStampTime() {
+        return earliestStampTime;
+    }
+
+    /**
+     * Returns the latest committed stamp time in the change set.
+     *
+     * @return the time in epoch milliseconds, or {@link Long#MIN_VALUE} if there is no committed stamp
+     */
+    public long latestStampTime() {
+        return latestStampTime;
+    }
+
+    /**
+     * Returns the change sets in the folder, or its subfolders, that may contain the entity with the public id.
+     * Change sets whose Bloom filter rules out the public id are excluded after reading only the start of their index.
+     *
+     * @param changeSetFolder the change set folder
+     * @param publicId        the public id
+     * @return the change sets that contain the entity, or have no index
+     * @throws IOException if an I/O error occurs while listing the folder or reading an index
+     */
+    public static List<Path> filesContaining(Path changeSetFolder, PublicId publicId) throws IOException {
+        UUID[] uuids = publicId.asUuidArray();
+        List<Path> matches = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles(changeSetFolder)) {
+            try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+                ZipEntry indexEntry = zipFile.getEntry(INDEX_ENTRY);
+                if (indexEntry == null) {
+                    matches.add(changeSetFile);
+                    continue;
+                }
+                try (InputStream entryIn = zipFile.getInputStream(indexEntry);
+                     DataInputStream in = new DataInputStream(new BufferedInputStream(entryIn))) {
+                    ChangeSetIndex index = read(in, uuids);
+                    if (index != null && index.contains(publicId)) {
+                        matches.add(changeSetFile);
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the change sets in the folder, or its subfolders, that may contain an entity with a nid in the range.
+     *
+     * @param changeSetFolder the change set folder
+     * @param fromNid         the first nid of the range, inclusive
+     * @param toNid           the last nid of the range, inclusive
+     * @return the change sets that contain an entity in the range, or have no index
+     * @throws IOException if an I/O error occurs while listing the folder or reading an index
+     */
+    public static List<Path> filesContainingNids(Path changeSetFolder, int fromNid, int toNid) throws IOException {
+        return filesMatching(changeSetFolder, index -> index.containsNidInRange(fromNid, toNid));
+    }
+
+    /**
+     * Returns the change sets in the folder, or its subfolders, that may contain a committed stamp in the time range.
+     *
+     * @param changeSetFolder the change set folder
+     * @param fromTime        the start of the range in epoch milliseconds, inclusive
+     * @param toTime          the end of the range in epoch milliseconds, inclusive
+     * @return the change sets that overlap the range, or have no index
+     * @throws IOException if an I/O error occurs while listing the folder or reading an index
+     */
+    public static List<Path> filesOverlappingTime(Path changeSetFolder, long fromTime, long toTime) throws IOException {
+        return filesMatching(changeSetFolder, index -> index.overlapsTime(fromTime, toTime));
+    }
+
+    private static List<Path> filesMatching(Path changeSetFolder, Predicate<ChangeSetIndex> predicate) throws IOException {
+        List<Path> matches = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles(changeSetFolder)) {
+            ChangeSetIndex index = read(changeSetFile);
+            if (index == null || predicate.test(index)) {
+                matches.add(changeSetFile);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Lists the change set files of the folder and its subfolders as a change set import does, skipping hidden
+     * folders such as {@code .git}, in the order of their paths.
+     */
+    private static List<Path> changeSetFiles(Path changeSetFolder) throws IOException {
+        List<Path> changeSetFiles = new ArrayList<>();
+        ChangeSetImportTask.scan(changeSetFolder, changeSetFiles);
+        changeSetFiles.sort(null);
+        return changeSetFiles;
+    }
+}
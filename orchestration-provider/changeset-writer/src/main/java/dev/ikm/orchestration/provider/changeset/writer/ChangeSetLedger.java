@@ -0,0 +1,316 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The ChangeSetLedger class is a durable record of the change set files already applied to the datastore:
+ * files loaded from the change set folder, and files sealed by the change set writer, whose entities came from
+ * the datastore in the first place. Each file is recorded with its size, modification time, SHA-256 hash and
+ * entity count, keyed by its path relative to the change set folder, so a file is only loaded again if it is new,
+ * or its content has changed.
+ *
+ * While a large file is loaded, the ledger also keeps a checkpoint: the number of its records applied so far, saved in
+ * {@value #CHECKPOINT_FILE}. If the load is interrupted, the next load of the same file skips those records.
+ *
+ * The ledger is kept next to the change set folder, rather than in it, as the change set folder is shared through
+ * git while the ledger describes the local datastore. Each change is appended to it as a line, so recording a file
+ * takes the same time however many are recorded: an entry replaces any earlier entry of the same file, and a removal
+ * line removes it. When the ledger is read, it is rewritten atomically with only its current entries if it holds
+ * any other line, including a line left incomplete when the JVM was terminated.
+ */
+final class ChangeSetLedger {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetLedger.class);
+    static final String LEDGER_FILE = "changeset-ledger.tsv";
+    private static final String REMOVED_PREFIX = "#removed";
+    static final String CHECKPOINT_FILE = "changeset-ledger.checkpoint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final ConcurrentHashMap<Path, ChangeSetLedger> LEDGERS = new ConcurrentHashMap<>();
+
+    private final Path changeSetFolder;
+    private final Path ledgerFile;
+    private final Path checkpointFile;
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private Checkpoint checkpoint;
+
+    /**
+     * A change set file recorded in the ledger.
+     *
+     * @param name         the path of the file relative to the change set folder
+     * @param size         the size of the file in bytes
+     * @param lastModified the modification time of the file, in epoch milliseconds
+     * @param sha256       the SHA-256 hash of the file, in hex
+     * @param entityCount  the number of entities in the file
+     */
+    record Entry(String name, long size, long lastModified, String sha256, long entityCount) {
+        /**
+         * Returns {@code true} if the file has the size and modification time recorded, and so need not be hashed
+         * to know it is unchanged.
+         */
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    /**
+     * The number of records of a change set file applied before its load was interrupted.
+     *
+     * @param name        the path of the file relative to the change set folder
+     * @param sha256      the SHA-256 hash of the file, in hex, so a checkpoint of a file since changed is not used
+     * @param recordCount the number of records applied, from the start of the file
+     */
+    record Checkpoint(String name, String sha256, long recordCount) {
+    }
+
+    private ChangeSetLedger(Path changeSetFolder) {
+        this.changeSetFolder = changeSetFolder;
+        this.ledgerFile = changeSetFolder.resolveSibling(LEDGER_FILE);
+        this.checkpointFile = changeSetFolder.resolveSibling(CHECKPOINT_FILE);
+    }
+
+    /**
+     * Returns the ledger of a change set folder, reading it the first time it is requested.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the ledger
+     */
+    static ChangeSetLedger forFolder(Path changeSetFolder) {
+        Path folder = changeSetFolder.toAbsolutePath().normalize();
+        return LEDGERS.computeIfAbsent(folder, key -> {
+            ChangeSetLedger ledger = new ChangeSetLedger(key);
+            try {
+                ledger.read();
+                ledger.readCheckpoint();
+            } catch (IOException | RuntimeException e) {
+                // Every file will be loaded again, which is slow but correct, as loading merges entities.
+                LOG.error("Unable to read change set ledger " + ledger.ledgerFile + ", starting a new ledger", e);
+                ledger.entries.clear();
+                ledger.checkpoint = null;
+            }
+            return ledger;
+        });
+    }
+
+    /**
+     * Returns the entry of a change set file.
+     *
+     * @param changeSetFile the change set file
+     * @return the entry, or {@code null} if the file is not in the ledger
+     */
+    Entry entry(Path changeSetFile) {
+        return entries.get(name(changeSetFile));
+    }
+
+    /**
+     * Returns the name of a change set file in the ledger: its path relative to the change set folder,
+     * with {@code /} separators, so the ledger does not depend on the platform.
+     */
+    private String name(Path changeSetFile) {
+        Path relative = changeSetFolder.relativize(changeSetFile.toAbsolutePath().normalize());
+        return relative.toString().replace(relative.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Returns the entries of the ledger, keyed by the path of the file relative to the change set folder.
+     *
+     * @return an unmodifiable view of the entries
+     */
+    Map<String, Entry> entries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Records a change set file as applied to the datastore.
+     *
+     * @param changeSetFile the change set file
+     * @param sha256        the SHA-256 hash of the file
+     * @param entityCount   the number of entities in the file
+     * @throws IOException if an I/O error occurs while reading the file attributes or writing the ledger
+     */
+    synchronized void record(Path changeSetFile, String sha256, long entityCount) throws IOException {
+        String name = name(changeSetFile);
+        Entry entry = new Entry(name, Files.size(changeSetFile), Files.getLastModifiedTime(changeSetFile).toMillis(),
+                sha256, entityCount);
+        entries.put(name, entry);
+        append(line(entry));
+        if (checkpoint != null && checkpoint.name().equals(name)) {
+            checkpoint = null;
+            Files.deleteIfExists(checkpointFile);
+        }
+    }
+
+    /**
+     * Removes change set files deleted from the change set folder, such as the files merged by a compaction.
+     *
+     * @param changeSetFiles the deleted change set files
+     * @throws IOException if an I/O error occurs while writing the ledger
+     */
+    synchronized void remove(Collection<Path> changeSetFiles) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Path changeSetFile : changeSetFiles) {
+            String name = name(changeSetFile);
+            entries.remove(name);
+            lines.append(REMOVED_PREFIX).append('\t').append(name).append('\n');
+        }
+        append(lines.toString());
+    }
+
+    /**
+     * Returns the number of records of a change set file applied before its load was interrupted.
+     *
+     * @param changeSetFile the change set file
+     * @param sha256        the SHA-256 hash of the file
+     * @return the number of records to skip, or zero if the file has no checkpoint, or has changed since
+     */
+    synchronized long checkpoint(Path changeSetFile, String sha256) {
+        if (checkpoint == null || !checkpoint.name().equals(name(changeSetFile)) || !checkpoint.sha256().equals(sha256)) {
+            return 0;
+        }
+        return checkpoint.recordCount();
+    }
+
+    /**
+     * Records the number of records of a change set file applied so far, replacing any previous checkpoint.
+     * The records must be durable in the datastore before they are recorded.
+     *
+     * @param changeSetFile the change set file being loaded
+     * @param sha256        the SHA-256 hash of the file
+     * @param recordCount   the number of records applied, from the start of the file
+     * @throws IOException if an I/O error occurs while writing the checkpoint
+     */
+    synchronized void recordCheckpoint(Path changeSetFile, String sha256, long recordCount) throws IOException {
+        checkpoint = new Checkpoint(name(changeSetFile), sha256, recordCount);
+        Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + TEMP_SUFFIX);
+        Files.writeString(tempFile, checkpoint.name() + "\t" + checkpoint.sha256() + "\t" + checkpoint.recordCount(),
+                StandardCharsets.UTF_8);
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Records a change set file sealed by the change set writer, which needs no loading.
+     *
+     * @param changeSetFile the sealed change set file
+     * @param entityCount   the number of entities in the file
+     * @throws IOException if an I/O error occurs while hashing the file or writing the ledger
+     */
+    void recordSealed(Path changeSetFile, long entityCount) throws IOException {
+        record(changeSetFile, sha256(changeSetFile), entityCount);
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file.
+     *
+     * @param file the file
+     * @return the hash, in hex
+     * @throws IOException if an I/O error occurs while reading the file
+     */
+    static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Reads the entries of the ledger, replaying its lines in order, and compacts it if any line is not a current
+     * entry. A line that cannot be parsed, as the last line of a ledger being appended to when the JVM was terminated,
+     * is skipped; its file is loaded again, which merges the same entities.
+     */
+    private void read() throws IOException {
+        if (!Files.exists(ledgerFile)) {
+            return;
+        }
+        long lineCount = 0;
+        try (BufferedReader reader = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] fields = line.split("\t");
+                if (fields[0].equals(REMOVED_PREFIX) && fields.length == 2) {
+                    entries.remove(fields[1]);
+                } else if (fields.length == 5) {
+                    try {
+                        entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                fields[3], Long.parseLong(fields[4])));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Skipping unreadable change set ledger line: " + line);
+                    }
+                }
+            }
+        }
+        if (lineCount != entries.size() || !endsWithNewLine()) {
+            write();
+        }
+    }
+
+    private boolean endsWithNewLine() throws IOException {
+        try (FileChannel channel = FileChannel.open(ledgerFile, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+        String[] fields = Files.readString(checkpointFile, StandardCharsets.UTF_8).trim().split("\t");
+        if (fields.length == 3) {
+            checkpoint = new Checkpoint(fields[0], fields[1], Long.parseLong(fields[2]));
+        }
+    }
+
+    /**
+     * Rewrites the ledger with only its current entries.
+     */
+    private void write() throws IOException {
+        Path tempFile = ledgerFile.resolveSibling(ledgerFile.getFileName() + TEMP_SUFFIX);
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(line(entry));
+            }
+        }
+        Files.move(tempFile, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void append(String lines) throws IOException {
+        Files.writeString(ledgerFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String line(Entry entry) {
+        return entry.name() + "\t" + entry.size() + "\t" + entry.lastModified() + "\t" + entry.sha256() + "\t"
+                + entry.entityCount() + "\n";
+    }
+}
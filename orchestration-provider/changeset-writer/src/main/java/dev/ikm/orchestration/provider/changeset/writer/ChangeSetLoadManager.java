@@ -0,0 +1,72 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFilter;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The ChangeSetLoadManager class loads the change set files of the change set folder that have not been applied to
+ * the datastore, as recorded by the {@link ChangeSetLedger}. After a pull or a restart, only new files, and files
+ * whose content has changed, are loaded. Loading is done by a {@link ChangeSetImportTask}, which decodes several
+ * files in parallel and applies them in order.
+ */
+public class ChangeSetLoadManager implements ChangeSetLoadService {
+
+    /**
+     * Loads the change set files that have not been applied to the datastore, on the calling thread.
+     * Only one load runs at a time.
+     *
+     * @return the number of files loaded
+     * @throws IOException if a change set cannot be read, or the ledger cannot be written
+     */
+    @Override
+    public int readChangesetFiles() throws IOException {
+        try {
+            return newLoadTask().call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to load change sets", e);
+        }
+    }
+
+    @Override
+    public TrackingCallable<Integer> newLoadTask() {
+        return new ChangeSetImportTask(ChangeSetWriterService.changeSetFolder());
+    }
+
+    @Override
+    public TrackingCallable<Integer> newLoadTask(ChangeSetFilter filter) {
+        return new ChangeSetImportTask(ChangeSetWriterService.changeSetFolder(), filter);
+    }
+
+    @Override
+    public TrackingCallable<Integer> newProgressiveLoadTask(Runnable navigable) {
+        return new ChangeSetImportTask(ChangeSetWriterService.changeSetFolder(), navigable);
+    }
+
+    @Override
+    public TrackingCallable<Long> newFollowTask(Path sourceFolder) {
+        return new ChangeSetFollowTask(sourceFolder,
+                ChangeSetWriterService.changeSetFolder().resolveSibling(ChangeSetFollowPositions.POSITIONS_FILE));
+    }
+
+    /**
+     * Returns the change set files applied to the datastore, loaded or written locally.
+     *
+     * @return map of the file name of a change set, and the size of the change set when last processed
+     */
+    @Override
+    public ConcurrentMap<String, Integer> getProcessedChangesets() {
+        ConcurrentMap<String, Integer> processedChangesets = new ConcurrentHashMap<>();
+        ChangeSetLedger.forFolder(ChangeSetWriterService.changeSetFolder()).entries().forEach((name, entry) ->
+                processedChangesets.put(name, (int) Math.min(entry.size(), Integer.MAX_VALUE)));
+        return processedChangesets;
+    }
+}
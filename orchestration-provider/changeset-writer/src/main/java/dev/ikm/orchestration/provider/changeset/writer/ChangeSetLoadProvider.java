@@ -0,0 +1,19 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
+
+/**
+ * A provider class for the ChangeSetLoadService.
+ */
+public class ChangeSetLoadProvider {
+    static final ChangeSetLoadService changeSetLoadService = new ChangeSetLoadManager();
+
+    /**
+     * Provides an instance of the ChangeSetLoadService.
+     *
+     * @return an instance of the ChangeSetLoadService
+     */
+    public static ChangeSetLoadService provider() {
+        return changeSetLoadService;
+    }
+}
@@ -0,0 +1,275 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicId;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.util.time.DateTimeUtil;
+import dev.ikm.tinkar.entity.*;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import dev.ikm.tinkar.terms.TinkarTerm;
+import org.eclipse.collections.api.factory.primitive.IntObjectMaps;
+import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.Attributes;
+import java.util.stream.Collectors;
+
+/**
+ * The ChangeSetManifest class collects the content of a change set manifest as entities are written, so that
+ * rendering the manifest when the change set is closed does no entity lookups, and takes time proportional to
+ * the number of distinct modules, authors and patterns rather than the number of entities.
+ *
+ * Besides the entity counts, modules and authors, the manifest records the earliest and latest committed stamp
+ * times, the time the change set was sealed, and a section for each pattern with the number of its semantics in the
+ * change set. Descriptions are looked up the first time a module, author or pattern is seen, and cached for every
+ * change set.
+ *
+ * Entities are added by the single thread writing the change set. The counts may be read from any thread.
+ */
+final class ChangeSetManifest {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetManifest.class);
+    static final String SEAL_TIME_ATTRIBUTE = "Seal-Time";
+    private static final String UNDEFINED_DESCRIPTION = "Description Undefined";
+    private static final ConcurrentHashMap<PublicId, String> DESCRIPTION_CACHE = new ConcurrentHashMap<>();
+    private static final ThreadLocal<NumberFormat> NUMBER_FORMAT = ThreadLocal.withInitial(NumberFormat::getInstance);
+
+    private final LongAdder conceptsCount = new LongAdder();
+    private final LongAdder semanticsCount = new LongAdder();
+    private final LongAdder patternsCount = new LongAdder();
+    private final LongAdder stampsCount = new LongAdder();
+    private final Map<PublicId, String> modules = new LinkedHashMap<>();
+    private final Map<PublicId, String> authors = new LinkedHashMap<>();
+    private final MutableIntObjectMap<PatternSemantics> patternSemantics = IntObjectMaps.mutable.empty();
+    private long earliestStampTime = Long.MAX_VALUE;
+    private long latestStampTime = Long.MIN_VALUE;
+    private Instant sealTime;
+
+    /**
+     * The semantics of one pattern in the change set.
+     */
+    private static final class PatternSemantics {
+        final PublicId patternId;
+        final String description;
+        long count;
+
+        PatternSemantics(int patternNid) {
+            this.patternId = PrimitiveData.publicId(patternNid);
+            this.description = description(patternId);
+        }
+    }
+
+    /**
+     * Adds a written entity to the manifest.
+     *
+     * @param entity the entity written to the change set
+     */
+    void add(Entity<? extends EntityVersion> entity) {
+        switch (entity) {
+            case StampEntity stampEntity -> addStamp(stampEntity);
+            case ConceptEntity conceptEntity -> conceptsCount.increment();
+            case SemanticEntity semanticEntity -> {
+                semanticsCount.increment();
+                patternSemantics.getIfAbsentPutWithKey(semanticEntity.patternNid(), PatternSemantics::new).count++;
+            }
+            case PatternEntity patternEntity -> patternsCount.increment();
+            default -> throw new IllegalStateException("Unexpected value: " + entity);
+        }
+    }
+
+    /**
+     * Adds an entity written again to the manifest, replacing its earlier record. The entity is not counted again,
+     * but the time, module and author of a stamp are added, as they may have changed when the stamp was committed.
+     *
+     * @param entity the entity written to the change set again
+     */
+    void replace(Entity<? extends EntityVersion> entity) {
+        if (entity instanceof StampEntity<?> stampEntity) {
+            addStampDetails(stampEntity);
+        }
+    }
+
+    private void addStamp(StampEntity<?> stampEntity) {
+        stampsCount.increment();
+        addStampDetails(stampEntity);
+    }
+
+    private void addStampDetails(StampEntity<?> stampEntity) {
+        long time = stampEntity.time();
+        if (time != Long.MAX_VALUE) {
+            earliestStampTime = Math.min(earliestStampTime, time);
+            latestStampTime = Math.max(latestStampTime, time);
+        }
+        PublicId moduleId = stampEntity.module().publicId();
+        if (!modules.containsKey(moduleId)) {
+            modules.put(moduleId, description(moduleId));
+        }
+        PublicId authorId = stampEntity.author().publicId();
+        if (!authors.containsKey(authorId)) {
+            authors.put(authorId, description(authorId));
+        }
+    }
+
+    /**
+     * Adds a message to the entity counts, for a manifest rebuilt from serialized messages.
+     *
+     * @param valueCase the type of the message
+     */
+    void add(TinkarMsg.ValueCase valueCase) {
+        switch (valueCase) {
+            case CONCEPT_CHRONOLOGY -> conceptsCount.increment();
+            case SEMANTIC_CHRONOLOGY -> semanticsCount.increment();
+            case PATTERN_CHRONOLOGY -> patternsCount.increment();
+            case STAMP_CHRONOLOGY -> stampsCount.increment();
+            default -> throw new IllegalStateException("Unexpected value: " + valueCase);
+        }
+    }
+
+    /**
+     * Returns the entity counts of the change set.
+     *
+     * @return the entity count summary
+     */
+    EntityCountSummary summary() {
+        return new EntityCountSummary(conceptsCount.sum(), semanticsCount.sum(), patternsCount.sum(), stampsCount.sum());
+    }
+
+    /**
+     * Returns the number of entities in the change set.
+     *
+     * @return the total entity count
+     */
+    long totalCount() {
+        return conceptsCount.sum() + semanticsCount.sum() + patternsCount.sum() + stampsCount.sum();
+    }
+
+    /**
+     * Sets the seal time to render, instead of the time the manifest is rendered, as for an archive that takes the
+     * place of the change sets it replaces.
+     *
+     * @param sealTime the seal time
+     */
+    void sealTime(Instant sealTime) {
+        this.sealTime = sealTime;
+    }
+
+    /**
+     * Returns the time a change set was sealed, from its manifest, or the modification time of the file if the
+     * manifest predates the seal time attribute.
+     *
+     * @param changeSetFile the change set file
+     * @param attributes    the main attributes of its manifest
+     * @return the seal time
+     * @throws IOException if the modification time of the file cannot be read
+     */
+    static Instant sealTime(Path changeSetFile, Attributes attributes) throws IOException {
+        String sealTime = attributes.getValue(SEAL_TIME_ATTRIBUTE);
+        if (sealTime != null) {
+            try {
+                return Instant.parse(sealTime.trim());
+            } catch (DateTimeParseException e) {
+                LOG.warn("Unreadable change set Seal-Time in " + changeSetFile + ": " + sealTime);
+            }
+        }
+        return Files.getLastModifiedTime(changeSetFile).toInstant();
+    }
+
+    /**
+     * Renders the content of the manifest file. The seal time is the time it is rendered, unless one has been set.
+     *
+     * @param writeMode     the mode the change set was written with
+     * @param formatVersion the version of the change set layout
+     * @param compression   the compression of the change set file
+     * @param dictionary    the preset dictionary of the change set file, or {@code null}
+     * @param publicIds     {@code true} if the records reference a public id table
+     * @return the content of the manifest file as a string
+     */
+    String render(ChangeSetWriteMode writeMode, int formatVersion, ChangeSetCompression compression, ChangeSetDictionary dictionary,
+                  boolean publicIds) {
+        NumberFormat numberFormat = NUMBER_FORMAT.get();
+        EntityCountSummary summary = summary();
+        StringBuilder manifestContent = new StringBuilder()
+                // TODO: Dynamically populate this user
+                .append("Packager-Name: ").append(TinkarTerm.KOMET_USER.description()).append("\n")
+                .append("Package-Date: ").append(DateTimeUtil.nowWithZone()).append("\n")
+                .append("Total-Count: ").append(numberFormat.format(summary.getTotalCount())).append("\n")
+                .append("Concept-Count: ").append(numberFormat.format(summary.conceptsCount())).append("\n")
+                .append("Semantic-Count: ").append(numberFormat.format(summary.semanticsCount())).append("\n")
+                .append("Pattern-Count: ").append(numberFormat.format(summary.patternsCount())).append("\n")
+                .append("Stamp-Count: ").append(numberFormat.format(summary.stampsCount())).append("\n")
+                .append("Change-Set-Mode: ").append(writeMode).append("\n")
+                .append("Change-Set-Compression: ").append(compression).append("\n")
+                .append(SEAL_TIME_ATTRIBUTE).append(": ").append(sealTime == null ? Instant.now() : sealTime).append("\n");
+        if (formatVersion != 1) {
+            // Version 1 change sets have no version attribute, as they predate it.
+            manifestContent.append(ChangeSetChunks.FORMAT_VERSION_ATTRIBUTE).append(": ").append(formatVersion).append("\n");
+        }
+        if (dictionary != null) {
+            manifestContent.append(SegmentSealer.DICTIONARY_ATTRIBUTE).append(": ").append(dictionary.id()).append("\n");
+        }
+        if (publicIds) {
+            manifestContent.append(ChangeSetPublicIds.PUBLIC_IDS_ATTRIBUTE).append(": true\n");
+        }
+        if (earliestStampTime <= latestStampTime) {
+            manifestContent.append("Earliest-Stamp-Time: ").append(Instant.ofEpochMilli(earliestStampTime)).append("\n")
+                    .append("Latest-Stamp-Time: ").append(Instant.ofEpochMilli(latestStampTime)).append("\n");
+        }
+        modules.forEach((publicId, description) -> appendSection(manifestContent, publicId, description));
+        authors.forEach((publicId, description) -> appendSection(manifestContent, publicId, description));
+        patternSemantics.forEachValue(pattern -> appendSection(manifestContent, pattern.patternId, pattern.description)
+                .append("Semantic-Count: ").append(numberFormat.format(pattern.count)).append("\n"));
+        manifestContent.append("\n"); // Final new line necessary per Manifest spec
+
+        return manifestContent.toString();
+    }
+
+    /**
+     * Appends a named manifest section for a component.
+     *
+     * @param manifestContent the manifest content to append to
+     * @param publicId        the public id of the component, which names the section
+     * @param description     the description of the component
+     * @return the manifest content
+     */
+    private static StringBuilder appendSection(StringBuilder manifestContent, PublicId publicId, String description) {
+        // Convert PublicId to Manifest Entry Name
+        String idString = publicId.asUuidList().stream()
+                .map(UUID::toString)
+                .collect(Collectors.joining(","));
+        return manifestContent.append("\n")
+                .append("Name: ").append(idString).append("\n")
+                .append("Description: ").append(description).append("\n");
+    }
+
+    /**
+     * Returns the description of a component, from the cache if the component has been described before.
+     * Undefined descriptions are not cached, as the component may be loaded later.
+     *
+     * @param publicId the public id of the component
+     * @return the description
+     */
+    private static String description(PublicId publicId) {
+        String cached = DESCRIPTION_CACHE.get(publicId);
+        if (cached != null) {
+            return cached;
+        }
+        Optional<Entity<EntityVersion>> entity = EntityService.get().getEntity(PrimitiveData.nid(publicId));
+        if (entity.isEmpty()) {
+            return UNDEFINED_DESCRIPTION;
+        }
+        String description = entity.get().description();
+        DESCRIPTION_CACHE.put(publicId, description);
+        return description;
+    }
+}
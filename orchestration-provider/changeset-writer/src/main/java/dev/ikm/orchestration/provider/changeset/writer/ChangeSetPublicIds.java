@@ -0,0 +1,239 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.PatternChronology;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.SemanticChronology;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * The ChangeSetPublicIds class is the public id table of a change set.
+ *
+ * Every {@code TinkarMsg} repeats the full UUIDs of the stamps its versions reference, and every stamp repeats
+ * the UUIDs of its status, author, module and path, as every semantic does for its pattern and referenced component.
+ * When a change set is sealed with a public id table, each such reference is written once to the
+ * {@value #TABLE_ENTRY} entry, and replaced in the records by a public id holding a single UUID of fewer than
+ * 16 bytes: the index of the public id in the table, as a varint. Real UUIDs are always 16 bytes, so references
+ * cannot be mistaken for them. The public ids of concepts, semantics and patterns are left in place, as each is
+ * written only once.
+ *
+ * The {@value #PUBLIC_IDS_ATTRIBUTE} manifest attribute marks change sets with a table. Their records are still
+ * valid {@code TinkarMsg} messages, but must be read with {@link MappedChangeSetReader}, which resolves the
+ * references as it streams; {@code LoadEntitiesFromProtobufFile} would load the references as UUIDs.
+ */
+public final class ChangeSetPublicIds {
+    public static final String PUBLIC_IDS_ATTRIBUTE = "Change-Set-Public-Ids";
+    public static final String TABLE_ENTRY = "META-INF/PUBLICIDS.TABLE";
+    static final int TABLE_MAGIC = 0x544B5049; // "TKPI"
+    static final int TABLE_VERSION = 1;
+    private static final int UUID_BYTES = 16;
+    private static final int MAX_REFERENCE_BYTES = 5;
+
+    private final PublicId[] publicIds;
+
+    private ChangeSetPublicIds(PublicId[] publicIds) {
+        this.publicIds = publicIds;
+    }
+
+    /**
+     * Returns the number of public ids in the table.
+     *
+     * @return the public id count
+     */
+    public int size() {
+        return publicIds.length;
+    }
+
+    /**
+     * Reads a public id table from the content of its entry.
+     *
+     * @param entryIn       the content of the {@value #TABLE_ENTRY} entry
+     * @param changeSetName the name of the change set, for error messages
+     * @return the public id table
+     * @throws IOException if the table is malformed, or an I/O error occurs
+     */
+    static ChangeSetPublicIds read(InputStream entryIn, String changeSetName) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(entryIn));
+        if (in.readInt() != TABLE_MAGIC || in.readInt() != TABLE_VERSION) {
+            throw new IOException("Unsupported public id table in change set " + changeSetName);
+        }
+        PublicId[] publicIds = new PublicId[in.readInt()];
+        byte[] uuid = new byte[UUID_BYTES];
+        for (int i = 0; i < publicIds.length; i++) {
+            PublicId.Builder builder = PublicId.newBuilder();
+            for (int uuidCount = in.readInt(); uuidCount > 0; uuidCount--) {
+                in.readFully(uuid);
+                builder.addUuids(ByteString.copyFrom(uuid));
+            }
+            publicIds[i] = builder.build();
+        }
+        return new ChangeSetPublicIds(publicIds);
+    }
+
+    /**
+     * Resolves the references of a parsed record.
+     *
+     * @param pbTinkarMsg the message, as read from the change set
+     * @return the message with full public ids
+     */
+    TinkarMsg resolve(TinkarMsg pbTinkarMsg) {
+        return rewrite(pbTinkarMsg, this::resolve);
+    }
+
+    private PublicId resolve(PublicId publicId) {
+        if (publicId.getUuidsCount() != 1 || publicId.getUuids(0).size() >= UUID_BYTES) {
+            return publicId;
+        }
+        ByteString reference = publicId.getUuids(0);
+        if (reference.size() > MAX_REFERENCE_BYTES) {
+            throw new IllegalStateException("Malformed public id reference of " + reference.size() + " bytes");
+        }
+        int index = 0;
+        for (int i = 0; i < reference.size(); i++) {
+            index |= (reference.byteAt(i) & 0x7F) << (7 * i);
+        }
+        if (index < 0 || index >= publicIds.length) {
+            throw new IllegalStateException("Public id reference " + index + " is not in a table of " + publicIds.length);
+        }
+        return publicIds[index];
+    }
+
+    /**
+     * Returns a copy of the message with each stamp, status, author, module, path, pattern and referenced component
+     * public id replaced by the operator.
+     *
+     * @param pbTinkarMsg the message
+     * @param replacer    the operator returning the public id to write in place of each reference
+     * @return the rewritten message
+     */
+    static TinkarMsg rewrite(TinkarMsg pbTinkarMsg, UnaryOperator<PublicId> replacer) {
+        return switch (pbTinkarMsg.getValueCase()) {
+            case CONCEPT_CHRONOLOGY -> {
+                ConceptChronology.Builder builder = pbTinkarMsg.getConceptChronology().toBuilder();
+                for (int i = 0; i < builder.getConceptVersionsCount(); i++) {
+                    var version = builder.getConceptVersionsBuilder(i);
+                    version.setStampChronologyPublicId(replacer.apply(version.getStampChronologyPublicId()));
+                }
+                yield pbTinkarMsg.toBuilder().setConceptChronology(builder).build();
+            }
+            case SEMANTIC_CHRONOLOGY -> {
+                SemanticChronology.Builder builder = pbTinkarMsg.getSemanticChronology().toBuilder();
+                builder.setReferencedComponentPublicId(replacer.apply(builder.getReferencedComponentPublicId()));
+                builder.setPatternForSemanticPublicId(replacer.apply(builder.getPatternForSemanticPublicId()));
+                for (int i = 0; i < builder.getSemanticVersionsCount(); i++) {
+                    var version = builder.getSemanticVersionsBuilder(i);
+                    version.setStampChronologyPublicId(replacer.apply(version.getStampChronologyPublicId()));
+                }
+                yield pbTinkarMsg.toBuilder().setSemanticChronology(builder).build();
+            }
+            case PATTERN_CHRONOLOGY -> {
+                PatternChronology.Builder builder = pbTinkarMsg.getPatternChronology().toBuilder();
+                for (int i = 0; i < builder.getPatternVersionsCount(); i++) {
+                    var version = builder.getPatternVersionsBuilder(i);
+                    version.setStampChronologyPublicId(replacer.apply(version.getStampChronologyPublicId()));
+                }
+                yield pbTinkarMsg.toBuilder().setPatternChronology(builder).build();
+            }
+            case STAMP_CHRONOLOGY -> {
+                // Stamps are referenced by the versions of other entities, so their own public ids are replaced too.
+                StampChronology.Builder builder = pbTinkarMsg.getStampChronology().toBuilder();
+                builder.setPublicId(replacer.apply(builder.getPublicId()));
+                rewrite(builder.getFirstStampVersionBuilder(), replacer);
+                if (builder.hasSecondStampVersion()) {
+                    rewrite(builder.getSecondStampVersionBuilder(), replacer);
+                }
+                yield pbTinkarMsg.toBuilder().setStampChronology(builder).build();
+            }
+            default -> pbTinkarMsg;
+        };
+    }
+
+    private static void rewrite(StampVersion.Builder version, UnaryOperator<PublicId> replacer) {
+        version.setStatusPublicId(replacer.apply(version.getStatusPublicId()));
+        version.setAuthorPublicId(replacer.apply(version.getAuthorPublicId()));
+        version.setModulePublicId(replacer.apply(version.getModulePublicId()));
+        version.setPathPublicId(replacer.apply(version.getPathPublicId()));
+    }
+
+    /**
+     * The Encoder class replaces the references of the records of a segment as they are sealed, and writes the
+     * table once every record has been encoded. Records are encoded by the single thread sealing the change set.
+     */
+    static final class Encoder {
+        private final Map<PublicId, PublicId> references = new HashMap<>();
+        private final List<PublicId> publicIds = new ArrayList<>();
+        private final byte[] index = new byte[MAX_REFERENCE_BYTES];
+
+        /**
+         * Returns a consumer that encodes each record before passing it to the downstream consumer.
+         *
+         * @param downstream the consumer of the encoded records
+         * @return the encoding consumer
+         */
+        ChangeSetSegment.RecordConsumer encoding(ChangeSetSegment.RecordConsumer downstream) {
+            return (record, length) -> {
+                TinkarMsg encoded = rewrite(TinkarMsg.parseFrom(ByteBuffer.wrap(record, 0, length)), this::reference);
+                RecordBuffer buffer = RecordBuffer.acquire();
+                try {
+                    buffer.serialize(encoded);
+                    downstream.accept(buffer.array(), buffer.length());
+                } finally {
+                    buffer.release();
+                }
+            };
+        }
+
+        private PublicId reference(PublicId publicId) {
+            if (publicId.getUuidsCount() == 0) {
+                return publicId;
+            }
+            PublicId reference = references.get(publicId);
+            if (reference == null) {
+                reference = PublicId.newBuilder()
+                        .addUuids(ByteString.copyFrom(index, 0, SegmentSealer.varint32(index, publicIds.size())))
+                        .build();
+                publicIds.add(publicId);
+                references.put(publicId, reference);
+            }
+            return reference;
+        }
+
+        /**
+         * Writes the table of the public ids referenced by the encoded records.
+         *
+         * @param out the stream to write to, which is not closed
+         * @throws IOException if an I/O error occurs while writing
+         */
+        void write(OutputStream out) throws IOException {
+            DataOutputStream tableOut = new DataOutputStream(out);
+            tableOut.writeInt(TABLE_MAGIC);
+            tableOut.writeInt(TABLE_VERSION);
+            tableOut.writeInt(publicIds.size());
+            byte[] uuid = new byte[UUID_BYTES];
+            for (PublicId publicId : publicIds) {
+                tableOut.writeInt(publicId.getUuidsCount());
+                for (ByteString uuidBytes : publicId.getUuidsList()) {
+                    uuidBytes.copyTo(uuid, 0);
+                    tableOut.write(uuid);
+                }
+            }
+            tableOut.flush();
+        }
+    }
+}
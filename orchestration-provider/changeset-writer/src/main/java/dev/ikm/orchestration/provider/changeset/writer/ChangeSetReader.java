@@ -0,0 +1,82 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The ChangeSetReader class holds the manifest helpers shared by the readers of {@code .proto.zip} change sets: the
+ * manifest itself, the layout version it declares, and the dictionary it names. The records of a change set are read
+ * with {@link MappedChangeSetReader}, the one reader of the dictionary, chunk and public id table layouts.
+ */
+final class ChangeSetReader {
+
+    private ChangeSetReader() {
+    }
+
+    /**
+     * Reads the manifest of a change set, without opening its records.
+     *
+     * @param changeSetFile the change set file
+     * @return the manifest, which is empty if the change set has no manifest entry
+     * @throws IOException if an I/O error occurs while reading the change set
+     */
+    static Manifest manifest(Path changeSetFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            ZipEntry manifestEntry = zipFile.getEntry(SegmentSealer.MANIFEST_ENTRY);
+            if (manifestEntry == null) {
+                return new Manifest();
+            }
+            try (InputStream in = zipFile.getInputStream(manifestEntry)) {
+                return new Manifest(in);
+            }
+        }
+    }
+
+    /**
+     * Returns the layout version of a change set from its manifest attributes.
+     *
+     * @param attributes the main attributes of the manifest
+     * @return the layout version, 1 if the manifest has no version attribute
+     * @throws IOException if the version is not supported by this reader
+     */
+    static int formatVersion(Attributes attributes) throws IOException {
+        String version = attributes.getValue(ChangeSetChunks.FORMAT_VERSION_ATTRIBUTE);
+        if (version == null) {
+            return 1;
+        }
+        int formatVersion = Integer.parseInt(version.trim());
+        if (formatVersion < 1 || formatVersion > ChangeSetChunks.CHUNKED_FORMAT_VERSION) {
+            throw new IOException("Unsupported change set format version " + formatVersion);
+        }
+        return formatVersion;
+    }
+
+    /**
+     * Returns the dictionary a change set was compressed with.
+     *
+     * @return the dictionary, or {@code null} if the change set was compressed without one
+     */
+    static ChangeSetDictionary dictionary(Path changeSetFile, Attributes attributes) throws IOException {
+        String dictionaryId = attributes.getValue(SegmentSealer.DICTIONARY_ATTRIBUTE);
+        return dictionaryId == null ? null : findDictionary(changeSetFile, dictionaryId);
+    }
+
+    /**
+     * Finds a dictionary in the change set folder containing the change set, or in one of its ancestors, as change sets
+     * synchronized from other installations may be placed in subfolders of the change set folder.
+     */
+    private static ChangeSetDictionary findDictionary(Path changeSetFile, String dictionaryId) throws IOException {
+        for (Path folder = changeSetFile.toAbsolutePath().getParent(); folder != null; folder = folder.getParent()) {
+            if (Files.exists(folder.resolve(ChangeSetDictionary.DICTIONARY_FOLDER).resolve(dictionaryId + ChangeSetDictionary.DICTIONARY_SUFFIX))) {
+                return ChangeSetDictionary.load(folder, dictionaryId);
+            }
+        }
+        throw new IOException("Change set dictionary " + dictionaryId + " not found for " + changeSetFile);
+    }
+}
@@ -0,0 +1,288 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+/**
+ * The ChangeSetSegment class is the append-only file a {@link ChangeSetWriter} writes to while a change set is open.
+ *
+ * A segment starts with a magic number and format version, followed by records. Each record is the record length,
+ * the CRC32C checksum of the record bytes, and the bytes of one serialized {@code TinkarMsg}. Because nothing in the
+ * file refers to later content, a segment left behind by a crash is readable up to the last complete record, and is
+ * converted to a {@code .proto.zip} change set by {@link SegmentSealer#recover(Path)} at startup. For the same reason,
+ * a segment can be read while it is written, from the end of the last complete record read before, as a
+ * {@link ChangeSetFollowTask} does.
+ */
+public class ChangeSetSegment implements AutoCloseable {
+    /**
+     * The suffix appended to the change set file name to name its live segment.
+     */
+    public static final String SEGMENT_SUFFIX = ".segment";
+    static final int MAGIC = 0x544B5347; // "TKSG"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_BYTES = Integer.BYTES * 2;
+    static final int RECORD_HEADER_BYTES = Integer.BYTES * 2;
+
+    private final Path segmentFile;
+    private final FileOutputStream fileOutputStream;
+    private final DataOutputStream out;
+    private final CRC32C crc32c = new CRC32C();
+    private long bytesWritten;
+    private long recordCount;
+
+    /**
+     * Creates a new, empty segment, replacing any existing file at the provided path.
+     *
+     * @param segmentFile the path of the segment file
+     * @throws IOException if an I/O error occurs while creating the file
+     */
+    public ChangeSetSegment(Path segmentFile) throws IOException {
+        this.segmentFile = segmentFile;
+        this.fileOutputStream = new FileOutputStream(segmentFile.toFile());
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        bytesWritten = HEADER_BYTES;
+    }
+
+    /**
+     * Returns the path of the live segment for the provided change set file.
+     *
+     * @param changeSetFile the {@code .proto.zip} change set file
+     * @return the path of the segment file
+     */
+    public static Path segmentFileFor(File changeSetFile) {
+        return changeSetFile.toPath().resolveSibling(changeSetFile.getName() + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Returns the path of the change set file the provided segment is sealed into.
+     *
+     * @param segmentFile the segment file
+     * @return the path of the {@code .proto.zip} change set file
+     */
+    public static Path changeSetFileFor(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Appends a record to the segment.
+     *
+     * @param record the array containing the serialized record
+     * @param offset the offset of the record in the array
+     * @param length the length of the record
+     * @throws IOException if an I/O error occurs while writing
+     */
+    public void append(byte[] record, int offset, int length) throws IOException {
+        crc32c.reset();
+        crc32c.update(record, offset, length);
+        out.writeInt(length);
+        out.writeInt((int) crc32c.getValue());
+        out.write(record, offset, length);
+        bytesWritten += RECORD_HEADER_BYTES + length;
+        recordCount++;
+    }
+
+    /**
+     * Flushes buffered records to the operating system, so they survive termination of the JVM.
+     *
+     * @param sync if {@code true}, also force the records to the storage device, so they survive an operating system failure
+     * @throws IOException if an I/O error occurs while flushing
+     */
+    public void flush(boolean sync) throws IOException {
+        out.flush();
+        if (sync) {
+            fileOutputStream.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Returns the path of the segment file.
+     *
+     * @return the segment file
+     */
+    public Path file() {
+        return segmentFile;
+    }
+
+    /**
+     * Returns the number of bytes appended to the segment, including headers.
+     *
+     * @return the number of bytes written
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns the number of records appended to the segment.
+     *
+     * @return the number of records
+     */
+    public long recordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flushes and closes the segment file.
+     *
+     * @throws IOException if an I/O error occurs while closing
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * The RecordConsumer interface receives the records read from a segment.
+     */
+    @FunctionalInterface
+    public interface RecordConsumer {
+        /**
+         * Accepts a record. The array is reused between records, so it must not be retained.
+         *
+         * @param record the array containing the record, starting at index 0
+         * @param length the length of the record
+         * @throws IOException if the consumer fails to process the record
+         */
+        void accept(byte[] record, int length) throws IOException;
+    }
+
+    /**
+     * Reads the records of a segment, stopping at the end of the file or at the first record that is truncated
+     * or fails its checksum, as happens when the writer was terminated during an append.
+     *
+     * @param segmentFile the segment file to read
+     * @param consumer    the consumer of each valid record
+     * @return the number of valid records read
+     * @throws IOException if the file is not a segment, or an I/O error occurs while reading
+     */
+    public static long read(Path segmentFile, RecordConsumer consumer) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(segmentFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream, 1 << 16))) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Not a change set segment: " + segmentFile);
+                }
+            } catch (EOFException e) {
+                // Terminated before the header was flushed; there are no records.
+                return 0;
+            }
+            CRC32C crc32c = new CRC32C();
+            byte[] record = new byte[1 << 12];
+            long remaining = Files.size(segmentFile) - HEADER_BYTES;
+            long count = 0;
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    remaining -= RECORD_HEADER_BYTES;
+                    if (length < 0 || length > remaining) {
+                        // Truncated, or a corrupt length from a partially written header.
+                        return count;
+                    }
+                    remaining -= length;
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    return count;
+                }
+                crc32c.reset();
+                crc32c.update(record, 0, length);
+                if ((int) crc32c.getValue() != checksum) {
+                    return count;
+                }
+                consumer.accept(record, length);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a segment that is still being written, from a position, stopping at the end of the file
+     * or at the first record that is incomplete or fails its checksum, which may still be being written.
+     * The next read starts from the returned position.
+     *
+     * @param channel  the channel of the segment file
+     * @param position the position of the next record, or zero to read the segment from its header
+     * @param consumer the consumer of each valid record
+     * @return the position after the last valid record read, or zero if the header is not complete yet
+     * @throws IOException if the file is not a segment, or an I/O error occurs while reading
+     */
+    public static long read(FileChannel channel, long position, RecordConsumer consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).flip();
+        if (position < HEADER_BYTES) {
+            if (!fill(channel, 0, buffer, HEADER_BYTES)) {
+                return 0;
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a change set segment");
+            }
+            position = HEADER_BYTES;
+        }
+        CRC32C crc32c = new CRC32C();
+        byte[] record = new byte[1 << 12];
+        while (fill(channel, position, buffer, RECORD_HEADER_BYTES)) {
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + Integer.BYTES);
+            if (length < 0 || length > channel.size() - position - RECORD_HEADER_BYTES) {
+                return position;
+            }
+            if (buffer.capacity() < RECORD_HEADER_BYTES + length) {
+                buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + length).put(buffer).flip();
+            }
+            if (!fill(channel, position, buffer, RECORD_HEADER_BYTES + length)) {
+                return position;
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            buffer.position(buffer.position() + RECORD_HEADER_BYTES).get(record, 0, length);
+            crc32c.reset();
+            crc32c.update(record, 0, length);
+            if ((int) crc32c.getValue() != checksum) {
+                return position;
+            }
+            consumer.accept(record, length);
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    /**
+     * Reads from the channel until the buffer holds at least the required number of bytes, starting with the byte at
+     * the file position, or the end of the file is reached.
+     *
+     * @return {@code true} if the buffer holds the required bytes
+     */
+    private static boolean fill(FileChannel channel, long position, ByteBuffer buffer, int required) throws IOException {
+        if (buffer.remaining() >= required) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < required) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= required;
+    }
+}
@@ -0,0 +1,218 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFilter;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PatternChronology;
+import dev.ikm.tinkar.schema.PatternVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.SemanticChronology;
+import dev.ikm.tinkar.schema.SemanticVersion;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * The ChangeSetSelection class evaluates a {@link ChangeSetFilter} on the records of change sets, before they are
+ * transformed to entities. Records are first screened by their type, read from the first bytes of the record without
+ * parsing it, so the concepts of a pattern filter are never parsed. Module, author and stamp time predicates are
+ * evaluated on stamps collected in a first pass over the stamp records of every change set selected from, as a
+ * rollover or seal may write a stamp to a different change set than its versions. Chronologies keep only the versions
+ * written with a selected stamp, and are skipped if none is left.
+ *
+ * The ChangeSetSelection class is not thread safe while stamps are added; once they have been, records may be
+ * selected from several threads.
+ */
+final class ChangeSetSelection {
+    private static final int UUID_BYTES = 16;
+
+    private final ChangeSetFilter filter;
+    private final Set<UUID> selectedStamps = new HashSet<>();
+
+    ChangeSetSelection(ChangeSetFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns {@code true} if the stamps of the change set must be added before records are selected.
+     */
+    boolean needsStamps() {
+        return filter.hasStampPredicates();
+    }
+
+    /**
+     * Returns {@code true} if a serialized record is a stamp.
+     *
+     * @param record the serialized {@code TinkarMsg}, from its position
+     * @return {@code true} if the record is a stamp chronology
+     */
+    static boolean isStamp(ByteBuffer record) {
+        return fieldNumber(record) == TinkarMsg.STAMP_CHRONOLOGY_FIELD_NUMBER;
+    }
+
+    /**
+     * Returns {@code true} if a serialized record is a semantic.
+     *
+     * @param record the serialized {@code TinkarMsg}, from its position
+     * @return {@code true} if the record is a semantic chronology
+     */
+    static boolean isSemantic(ByteBuffer record) {
+        return fieldNumber(record) == TinkarMsg.SEMANTIC_CHRONOLOGY_FIELD_NUMBER;
+    }
+
+    /**
+     * Returns {@code true} if a serialized record may be selected, judged by its type alone.
+     *
+     * @param record the serialized {@code TinkarMsg}, from its position
+     * @return {@code false} if the record cannot be selected, and need not be parsed
+     */
+    boolean mayMatch(ByteBuffer record) {
+        return filter.patternUuids().isEmpty() || fieldNumber(record) != TinkarMsg.CONCEPT_CHRONOLOGY_FIELD_NUMBER;
+    }
+
+    /**
+     * Adds a stamp of the change set, which is selected if one of its versions matches the stamp predicates.
+     *
+     * @param pbTinkarMsg a stamp chronology message
+     */
+    void addStamp(TinkarMsg pbTinkarMsg) {
+        StampChronology stamp = pbTinkarMsg.getStampChronology();
+        if (matches(stamp)) {
+            addUuids(stamp.getPublicId(), selectedStamps);
+        }
+    }
+
+    /**
+     * Selects the part of a message that matches the filter.
+     *
+     * @param pbTinkarMsg the message
+     * @return the message, the message with only its selected versions, or {@code null} if nothing is selected
+     */
+    TinkarMsg select(TinkarMsg pbTinkarMsg) {
+        Set<UUID> patterns = filter.patternUuids();
+        return switch (pbTinkarMsg.getValueCase()) {
+            case STAMP_CHRONOLOGY -> !filter.hasStampPredicates() || matches(pbTinkarMsg.getStampChronology()) ? pbTinkarMsg : null;
+            case CONCEPT_CHRONOLOGY -> {
+                if (!patterns.isEmpty()) {
+                    yield null;
+                }
+                ConceptChronology chronology = pbTinkarMsg.getConceptChronology();
+                List<ConceptVersion> versions = selectVersions(chronology.getConceptVersionsList(), ConceptVersion::getStampChronologyPublicId);
+                if (versions == null || versions.size() == chronology.getConceptVersionsCount()) {
+                    yield versions == null ? null : pbTinkarMsg;
+                }
+                ConceptChronology.Builder builder = chronology.toBuilder().clearConceptVersions();
+                versions.forEach(builder::addConceptVersions);
+                yield pbTinkarMsg.toBuilder().setConceptChronology(builder).build();
+            }
+            case SEMANTIC_CHRONOLOGY -> {
+                SemanticChronology chronology = pbTinkarMsg.getSemanticChronology();
+                if (!patterns.isEmpty() && !containsAny(patterns, chronology.getPatternForSemanticPublicId())) {
+                    yield null;
+                }
+                List<SemanticVersion> versions = selectVersions(chronology.getSemanticVersionsList(), SemanticVersion::getStampChronologyPublicId);
+                if (versions == null || versions.size() == chronology.getSemanticVersionsCount()) {
+                    yield versions == null ? null : pbTinkarMsg;
+                }
+                SemanticChronology.Builder builder = chronology.toBuilder().clearSemanticVersions();
+                versions.forEach(builder::addSemanticVersions);
+                yield pbTinkarMsg.toBuilder().setSemanticChronology(builder).build();
+            }
+            case PATTERN_CHRONOLOGY -> {
+                PatternChronology chronology = pbTinkarMsg.getPatternChronology();
+                if (!patterns.isEmpty() && !containsAny(patterns, chronology.getPublicId())) {
+                    yield null;
+                }
+                List<PatternVersion> versions = selectVersions(chronology.getPatternVersionsList(), PatternVersion::getStampChronologyPublicId);
+                if (versions == null || versions.size() == chronology.getPatternVersionsCount()) {
+                    yield versions == null ? null : pbTinkarMsg;
+                }
+                PatternChronology.Builder builder = chronology.toBuilder().clearPatternVersions();
+                versions.forEach(builder::addPatternVersions);
+                yield pbTinkarMsg.toBuilder().setPatternChronology(builder).build();
+            }
+            default -> pbTinkarMsg;
+        };
+    }
+
+    /**
+     * Returns the versions written with a selected stamp.
+     *
+     * @return the versions, which are all the versions if stamps are not filtered, or {@code null} if none is selected
+     */
+    private <V> List<V> selectVersions(List<V> versions, Function<V, PublicId> stampPublicId) {
+        if (!filter.hasStampPredicates()) {
+            return versions;
+        }
+        List<V> selected = versions.stream()
+                .filter(version -> containsAny(selectedStamps, stampPublicId.apply(version)))
+                .toList();
+        return selected.isEmpty() ? null : selected;
+    }
+
+    private boolean matches(StampChronology stamp) {
+        return matches(stamp.getFirstStampVersion()) || (stamp.hasSecondStampVersion() && matches(stamp.getSecondStampVersion()));
+    }
+
+    private boolean matches(StampVersion version) {
+        return version.getTime() >= filter.sinceTime() && version.getTime() < filter.untilTime()
+                && (filter.moduleUuids().isEmpty() || containsAny(filter.moduleUuids(), version.getModulePublicId()))
+                && (filter.authorUuids().isEmpty() || containsAny(filter.authorUuids(), version.getAuthorPublicId()));
+    }
+
+    private static boolean containsAny(Set<UUID> uuids, PublicId publicId) {
+        for (int i = 0; i < publicId.getUuidsCount(); i++) {
+            UUID uuid = uuid(publicId.getUuids(i));
+            if (uuid != null && uuids.contains(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void addUuids(PublicId publicId, Set<UUID> uuids) {
+        for (int i = 0; i < publicId.getUuidsCount(); i++) {
+            UUID uuid = uuid(publicId.getUuids(i));
+            if (uuid != null) {
+                uuids.add(uuid);
+            }
+        }
+    }
+
+    private static UUID uuid(ByteString bytes) {
+        if (bytes.size() != UUID_BYTES) {
+            return null;
+        }
+        long mostSignificantBits = 0;
+        long leastSignificantBits = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            mostSignificantBits = (mostSignificantBits << 8) | (bytes.byteAt(i) & 0xFF);
+            leastSignificantBits = (leastSignificantBits << 8) | (bytes.byteAt(i + Long.BYTES) & 0xFF);
+        }
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+
+    /**
+     * Returns the field number of the first field of a serialized record, which is the type of the message,
+     * as a {@code TinkarMsg} holds a single field of its {@code value} oneof.
+     */
+    private static int fieldNumber(ByteBuffer record) {
+        int tag = 0;
+        for (int i = 0, shift = 0; i < record.remaining() && shift < Integer.SIZE; i++, shift += 7) {
+            byte b = record.get(record.position() + i);
+            tag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return tag >>> 3;
+            }
+        }
+        return 0;
+    }
+}
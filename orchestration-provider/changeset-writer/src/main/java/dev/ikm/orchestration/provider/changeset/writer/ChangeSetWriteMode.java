@@ -0,0 +1,16 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * The ChangeSetWriteMode enum defines how much of an entity is written to a change set when it changes.
+ */
+public enum ChangeSetWriteMode {
+    /**
+     * Write the entire chronology of the entity, so each change set is self-contained.
+     */
+    CHRONOLOGY,
+    /**
+     * Write only the versions of the entity that are new since the entity was last written,
+     * as determined by a {@link VersionDeltaTracker}.
+     */
+    DELTA;
+}
@@ -1,53 +1,86 @@
 package dev.ikm.orchestration.provider.changeset.writer;
 
-import dev.ikm.tinkar.common.id.PublicId;
-import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFileStatus;
 import dev.ikm.tinkar.common.util.broadcast.Subscriber;
-import dev.ikm.tinkar.common.util.time.DateTimeUtil;
 import dev.ikm.tinkar.entity.*;
 import dev.ikm.tinkar.entity.aggregator.DefaultEntityAggregator;
 import dev.ikm.tinkar.entity.aggregator.EntityAggregator;
 import dev.ikm.tinkar.entity.transform.EntityToTinkarSchemaTransformer;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.PatternChronology;
+import dev.ikm.tinkar.schema.SemanticChronology;
 import dev.ikm.tinkar.schema.TinkarMsg;
-import dev.ikm.tinkar.terms.TinkarTerm;
+import org.eclipse.collections.api.factory.primitive.IntIntMaps;
+import org.eclipse.collections.api.list.primitive.ImmutableIntList;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.text.NumberFormat;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * The ChangeSetWriter class is responsible for writing Tinkar change sets to a file.
+ *
+ * When constructed with a {@link VersionDeltaTracker}, only the versions of each concept, semantic and pattern
+ * that are new since the entity was last written are included, and the manifest records the
+ * {@link ChangeSetWriteMode#DELTA} mode. Stamps are always written in full.
+ *
+ * When constructed with a transform executor, batches are written by a pipeline: the executor's workers read
+ * and serialize entities in parallel, while the calling thread, acting as the sequencer, appends the serialized
+ * records to the segment in the order of the batch. At most {@code transformWindow} entities are in flight,
+ * which bounds the memory held by serialized records waiting to be appended.
+ *
+ * Unless disabled by the {@link ChangeSetWriterKeys#COALESCE} key, repeated writes of an entity to the same file
+ * are coalesced. A committed stamp cannot change, so once written it is skipped without being read again.
+ * Any other entity written again replaces its earlier record, which is left out of the change set when the
+ * segment is sealed, as the later record holds the entire chronology. In {@link ChangeSetWriteMode#DELTA} mode
+ * each record of a concept, semantic or pattern holds different versions, so only stamps are coalesced.
+ *
+ * When constructed with a {@link ChangeSetFeed}, each record appended to the segment is also published to the
+ * subscribers of the feed.
  */
 public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
 
     private final EntityToTinkarSchemaTransformer entityTransformer =
             EntityToTinkarSchemaTransformer.getInstance();
 
-    protected LongAdder conceptsAggregatedCount = new LongAdder();
-    protected LongAdder semanticsAggregatedCount = new LongAdder();
-    protected LongAdder patternsAggregatedCount = new LongAdder();
-    protected LongAdder stampsAggregatedCount = new LongAdder();
+    private final ChangeSetManifest manifest = new ChangeSetManifest();
+    private final ChangeSetIndex.Builder index =
+            Boolean.parseBoolean(ChangeSetWriterKeys.INDEX.get()) ? new ChangeSetIndex.Builder() : null;
+    private final ChangeSetChunks.Keys chunkKeys = ChangeSetWriterKeys.FORMAT_VERSION.getInt() ==
+            ChangeSetChunks.CHUNKED_FORMAT_VERSION ? new ChangeSetChunks.Keys() : null;
+    private final boolean coalesce = Boolean.parseBoolean(ChangeSetWriterKeys.COALESCE.get());
+    private final NidBitmap committedStamps = new NidBitmap();
+    private final MutableIntIntMap recordIndexes = IntIntMaps.mutable.empty();
+    private final BitSet replacedRecords = new BitSet();
+    private int recordCount;
 
     private final EntityService entityService;
     private final File changeSetFile;
-    private final ZipOutputStream zos;
-    private final Set<PublicId> moduleList = new HashSet<>();
-    private final Set<PublicId> authorList = new HashSet<>();
+    private final ChangeSetSegment segment;
+    private final boolean syncOnFlush;
     private final EntityAggregator entityAggregator = new DefaultEntityAggregator();
+    private final VersionDeltaTracker deltaTracker;
+    private final Executor transformExecutor;
+    private final int transformWindow;
+    private final ChangeSetFeed feed;
+    private final Instant openedAt = Instant.now();
+    private volatile Instant lastWriteAt = openedAt;
+    private boolean closed = false;
 
     /**
      * A class for writing change sets to a file.
      *
      * The change set writer accepts an instance of EntityService and a File object representing the change set file.
-     * It creates a ZipOutputStream and a single ZIP entry named "entities.proto".
+     * Entities are appended to a {@link ChangeSetSegment} next to the change set file, which is sealed into
+     * the change set file, with a single ZIP entry named "entities.proto", when the writer is closed.
      *
      * @param entityService   the EntityService instance to use for writing the change set
      * @param changeSetFile   the File object representing the change set file to write to
@@ -55,14 +88,63 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
      * @throws IOException if an I/O error occurs while creating the change set file or the output stream
      */
     public ChangeSetWriter(EntityService entityService, File changeSetFile) throws IOException {
+        this(entityService, changeSetFile, null);
+    }
+
+    /**
+     * A class for writing change sets to a file, optionally writing only the versions of each entity
+     * that are new according to the provided delta tracker.
+     *
+     * @param entityService   the EntityService instance to use for writing the change set
+     * @param changeSetFile   the File object representing the change set file to write to
+     * @param deltaTracker    the tracker used to select new versions, or {@code null} to write entire chronologies
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    public ChangeSetWriter(EntityService entityService, File changeSetFile, VersionDeltaTracker deltaTracker) throws IOException {
+        this(entityService, changeSetFile, deltaTracker, null, 1);
+    }
+
+    /**
+     * A class for writing change sets to a file, reading and serializing the entities of each batch in parallel
+     * on the provided executor.
+     *
+     * @param entityService     the EntityService instance to use for writing the change set
+     * @param changeSetFile     the File object representing the change set file to write to
+     * @param deltaTracker      the tracker used to select new versions, or {@code null} to write entire chronologies
+     * @param transformExecutor the executor that reads and serializes entities, or {@code null} to do so on the calling thread
+     * @param transformWindow   the maximum number of entities being read and serialized at once
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    public ChangeSetWriter(EntityService entityService, File changeSetFile, VersionDeltaTracker deltaTracker,
+                           Executor transformExecutor, int transformWindow) throws IOException {
+        this(entityService, changeSetFile, deltaTracker, transformExecutor, transformWindow, null);
+    }
+
+    /**
+     * A class for writing change sets to a file, reading and serializing the entities of each batch in parallel
+     * on the provided executor, and publishing each record written to a feed.
+     *
+     * @param entityService     the EntityService instance to use for writing the change set
+     * @param changeSetFile     the File object representing the change set file to write to
+     * @param deltaTracker      the tracker used to select new versions, or {@code null} to write entire chronologies
+     * @param transformExecutor the executor that reads and serializes entities, or {@code null} to do so on the calling thread
+     * @param transformWindow   the maximum number of entities being read and serialized at once
+     * @param feed              the feed to publish records to, or {@code null} to only write them to the file
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    public ChangeSetWriter(EntityService entityService, File changeSetFile, VersionDeltaTracker deltaTracker,
+                           Executor transformExecutor, int transformWindow, ChangeSetFeed feed) throws IOException {
         this.entityService = entityService;
         this.changeSetFile = changeSetFile;
-        FileOutputStream fos = new FileOutputStream(changeSetFile);
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
-        this.zos = new ZipOutputStream(bos);
-        // Create a single entry
-        ZipEntry zipEntry = new ZipEntry("entities.proto");
-        zos.putNextEntry(zipEntry);
+        this.deltaTracker = deltaTracker;
+        this.transformExecutor = transformExecutor;
+        this.transformWindow = Math.max(1, transformWindow);
+        this.feed = feed;
+        this.syncOnFlush = Boolean.parseBoolean(ChangeSetWriterKeys.SEGMENT_SYNC.get());
+        this.segment = new ChangeSetSegment(ChangeSetSegment.segmentFileFor(changeSetFile));
     }
 
     /**
@@ -73,110 +155,365 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
      */
     @Override
     public void onNext(Integer nid) {
-        this.entityService.getEntity(nid).ifPresent(entity -> {
-            switch (entity) {
-                case StampEntity stampEntity -> {
-                    moduleList.add(stampEntity.module().publicId());
-                    authorList.add(stampEntity.author().publicId());
-                    stampsAggregatedCount.increment();
+        write(nid.intValue());
+        flushSegment();
+        lastWriteAt = Instant.now();
+    }
+
+    /**
+     * Writes the components identified by a range of native identifiers to disk. A failure to write one
+     * component does not prevent the remaining components in the batch from being written; the first failure
+     * is rethrown once the batch completes, with any later failures added as suppressed exceptions.
+     *
+     * @param nids   the array containing the native identifiers to write
+     * @param offset the index of the first native identifier to write
+     * @param length the number of native identifiers to write
+     */
+    public void write(int[] nids, int offset, int length) {
+        RuntimeException failure;
+        if (transformExecutor == null || transformWindow == 1 || length == 1) {
+            failure = writeSequentially(nids, offset, length);
+        } else {
+            failure = writePipelined(nids, offset, length);
+        }
+        flushSegment();
+        lastWriteAt = Instant.now();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads, serializes and appends each entity of the batch on the calling thread.
+     *
+     * @return the failure to rethrow once the batch completes, or {@code null} if every entity was written
+     */
+    private RuntimeException writeSequentially(int[] nids, int offset, int length) {
+        RuntimeException failure = null;
+        for (int i = offset; i < offset + length; i++) {
+            if (isCommittedStampWritten(nids[i])) {
+                continue;
+            }
+            try {
+                write(nids[i]);
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, nids[i], e);
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Reads and serializes the entities of the batch on the transform executor, keeping up to
+     * {@code transformWindow} entities in flight, and appends the records on the calling thread in batch order.
+     *
+     * In delta mode the versions to write depend on the versions already written, which are recorded as each
+     * record is appended. A nid that is already in flight is therefore transformed on the calling thread once
+     * its earlier record has been appended, rather than on the executor, so it does not write the same versions twice.
+     *
+     * @return the failure to rethrow once the batch completes, or {@code null} if every entity was written
+     */
+    private RuntimeException writePipelined(int[] nids, int offset, int length) {
+        RuntimeException failure = null;
+        ArrayDeque<PendingTransform> inFlight = new ArrayDeque<>(Math.min(length, transformWindow));
+        MutableIntIntMap inFlightCounts = IntIntMaps.mutable.empty();
+        int submitted = offset;
+        int end = offset + length;
+        for (int appended = offset; appended < end; appended++) {
+            while (submitted < end && inFlight.size() < transformWindow) {
+                int nid = nids[submitted++];
+                CompletableFuture<TransformedEntity> transformed;
+                if (isCommittedStampWritten(nid)) {
+                    transformed = CompletableFuture.completedFuture(null);
+                } else if (deltaTracker != null && inFlightCounts.get(nid) > 0) {
+                    transformed = null;
+                } else {
+                    transformed = CompletableFuture.supplyAsync(() -> transform(nid), transformExecutor);
                 }
-                case ConceptEntity conceptEntity -> conceptsAggregatedCount.increment();
-                case SemanticEntity semanticEntity -> semanticsAggregatedCount.increment();
-                case PatternEntity patternEntity -> patternsAggregatedCount.increment();
-                default -> throw new IllegalStateException("Unexpected value: " + entity);
+                inFlightCounts.addToValue(nid, 1);
+                inFlight.add(new PendingTransform(nid, transformed));
+            }
+            PendingTransform pending = inFlight.poll();
+            if (inFlightCounts.addToValue(pending.nid(), -1) == 0) {
+                inFlightCounts.remove(pending.nid());
             }
-            TinkarMsg pbTinkarMsg = entityTransformer.transform(entity);
             try {
-                pbTinkarMsg.writeDelimitedTo(zos);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                append(pending.transformed() == null ? transform(pending.nid()) : pending.transformed().join());
+            } catch (CompletionException e) {
+                failure = addFailure(failure, nids[appended],
+                        e.getCause() instanceof RuntimeException cause ? cause : e);
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, nids[appended], e);
             }
-        });
+        }
+        return failure;
     }
 
     /**
-     * Closes the ChangeSetWriter.
+     * A nid of a pipelined batch, and its transform on the executor.
      *
-     * This method closes the ChangeSetWriter by performing the necessary cleanup steps.
-     * If the entityCountSummary's total count is equal to 0, it will delete files that have no entries in them.
-     * Otherwise, it will write the manifest file and perform the cleanup.
+     * @param nid         the native identifier of the component to write
+     * @param transformed the transform of the entity, or {@code null} to transform it when it is appended
+     */
+    private record PendingTransform(int nid, CompletableFuture<TransformedEntity> transformed) {
+    }
+
+    /**
+     * Records a failure to write a nid, wrapping the first failure of a batch and suppressing later ones.
      *
-     * @throws Exception if an error occurs during the close operation
+     * @param failure the failure recorded so far, or {@code null}
+     * @param nid     the nid that could not be written
+     * @param e       the cause of the failure
+     * @return the failure to rethrow once the batch completes
      */
-    @Override
-    public void close() throws IOException {
-        EntityCountSummary entityCountSummary = new EntityCountSummary(conceptsAggregatedCount.longValue(),
-                semanticsAggregatedCount.longValue(), patternsAggregatedCount.longValue(), stampsAggregatedCount.longValue());
-
-        if (entityCountSummary.getTotalCount() == 0) {
-            // delete files that have no entries in them...
-            zos.closeEntry();
-            zos.finish();
-            zos.close();
-            changeSetFile.delete();
-        } else {
-            zos.closeEntry();
-            // Write Manifest File
-            ZipEntry manifestEntry = new ZipEntry("META-INF/MANIFEST.MF");
-            zos.putNextEntry(manifestEntry);
-            zos.write(generateManifestContent(entityCountSummary).getBytes(StandardCharsets.UTF_8));
-            zos.closeEntry();
-            zos.flush();
+    private RuntimeException addFailure(RuntimeException failure, int nid, RuntimeException e) {
+        if (failure == null) {
+            return new IllegalStateException("Unable to write nid " + nid + " to " + changeSetFile, e);
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
 
-            // Cleanup
-            zos.finish();
-            zos.close();
+    /**
+     * Flushes the segment after each batch, so written entities survive termination of the JVM.
+     */
+    private void flushSegment() {
+        try {
+            segment.flush(syncOnFlush);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Writes the component identified by the native identifier to disk.
+     *
+     * @param nid the native identifier of the component to write
+     */
+    private void write(int nid) {
+        append(transform(nid));
+    }
+
+    /**
+     * Returns {@code true} if writes are coalesced, and the nid is that of a committed stamp already written to the file.
+     *
+     * @param nid the native identifier of the component to write
+     * @return {@code true} if the component need not be written again
+     */
+    private boolean isCommittedStampWritten(int nid) {
+        return coalesce && committedStamps.contains(nid);
+    }
+
+    /**
+     * An entity and its serialized {@code TinkarMsg}, waiting to be appended to the segment.
+     * The record buffer is released to its pool once appended.
+     *
+     * @param entity the entity
+     * @param record the buffer holding the serialized message
+     */
+    private record TransformedEntity(Entity<? extends EntityVersion> entity, RecordBuffer record) {
+    }
+
+    /**
+     * Reads the component identified by the native identifier, and serializes the versions to be written.
+     * Safe to call from multiple threads, as it does not modify the state of the writer.
+     *
+     * @param nid the native identifier of the component to transform
+     * @return the transformed entity, or {@code null} if the entity does not exist or has no versions to write
+     */
+    private TransformedEntity transform(int nid) {
+        Optional<Entity<EntityVersion>> optionalEntity = this.entityService.getEntity(nid);
+        if (optionalEntity.isEmpty()) {
+            return null;
+        }
+        Entity<EntityVersion> entity = optionalEntity.get();
+        ImmutableIntList newVersionIndexes = null;
+        if (deltaTracker != null && !(entity instanceof StampEntity)) {
+            newVersionIndexes = deltaTracker.newVersionIndexes(entity);
+            if (newVersionIndexes.isEmpty()) {
+                return null;
+            }
+        }
+        TinkarMsg pbTinkarMsg = entityTransformer.transform(entity);
+        if (newVersionIndexes != null && newVersionIndexes.size() < entity.versions().size()) {
+            pbTinkarMsg = retainVersions(pbTinkarMsg, newVersionIndexes);
+        }
+        RecordBuffer record = RecordBuffer.acquire();
+        try {
+            record.serialize(pbTinkarMsg);
+        } catch (IOException e) {
+            record.release();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            record.release();
+            throw e;
+        }
+        return new TransformedEntity(entity, record);
+    }
 
     /**
-     * Generate the content of a manifest file based on the given entity count summary.
+     * Appends a transformed entity to the segment, and updates the counts, modules and authors of the change set.
+     * Must only be called by the thread writing the batch.
      *
-     * @param summary the entity count summary object containing the counts of different types of entities
-     * @return the content of the manifest file as a string
+     * @param transformed the transformed entity, or {@code null} to append nothing
      */
-    private String generateManifestContent(EntityCountSummary summary){
-        StringBuilder manifestContent = new StringBuilder()
-                // TODO: Dynamically populate this user
-                .append("Packager-Name: ").append(TinkarTerm.KOMET_USER.description()).append("\n")
-                .append("Package-Date: ").append(DateTimeUtil.nowWithZone()).append("\n")
-                .append("Total-Count: ").append(NumberFormat.getInstance().format(summary.getTotalCount())).append("\n")
-                .append("Concept-Count: ").append(NumberFormat.getInstance().format(summary.conceptsCount())).append("\n")
-                .append("Semantic-Count: ").append(NumberFormat.getInstance().format(summary.semanticsCount())).append("\n")
-                .append("Pattern-Count: ").append(NumberFormat.getInstance().format(summary.patternsCount())).append("\n")
-                .append("Stamp-Count: ").append(NumberFormat.getInstance().format(summary.stampsCount())).append("\n")
-                .append(idsToManifestEntry(moduleList))
-                .append(idsToManifestEntry(authorList))
-                .append("\n"); // Final new line necessary per Manifest spec
+    private void append(TransformedEntity transformed) {
+        if (transformed == null) {
+            return;
+        }
+        try {
+            appendRecord(transformed);
+        } finally {
+            transformed.record().release();
+        }
+        if (deltaTracker != null) {
+            deltaTracker.recordWritten(transformed.entity());
+        }
+    }
 
-        return manifestContent.toString();
+    /**
+     * Appends the serialized message of the transformed entity to the segment, and adds the entity to the manifest,
+     * index and chunk keys, which must describe the records of the segment in the order they were appended.
+     * If the record replaces an earlier record of the entity, the earlier record is marked as replaced, and the
+     * entity is not counted again.
+     *
+     * @param transformed the transformed entity
+     */
+    private void appendRecord(TransformedEntity transformed) {
+        try {
+            segment.append(transformed.record().array(), 0, transformed.record().length());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (feed != null) {
+            feed.publish(transformed.record().array(), transformed.record().length());
+        }
+        Entity<? extends EntityVersion> entity = transformed.entity();
+        int replacedRecord = -1;
+        if (coalesce && (deltaTracker == null || entity instanceof StampEntity)) {
+            replacedRecord = recordIndexes.getIfAbsent(entity.nid(), -1);
+            recordIndexes.put(entity.nid(), recordCount);
+        }
+        if (replacedRecord < 0) {
+            manifest.add(entity);
+        } else {
+            replacedRecords.set(replacedRecord);
+            manifest.replace(entity);
+        }
+        if (index != null) {
+            index.add(entity);
+        }
+        if (chunkKeys != null) {
+            chunkKeys.add(entity.publicId());
+        }
+        recordCount++;
+        if (coalesce && entity instanceof StampEntity<?> stampEntity && stampEntity.time() != Long.MAX_VALUE) {
+            committedStamps.add(entity.nid());
+        }
     }
 
     /**
-     * Converts a collection of PublicIds to a manifest entry string.
+     * Returns a copy of the message that retains only the versions at the provided indexes. The transformer
+     * writes versions in the same order as {@code entity.versions()}, so the indexes identify the same versions.
      *
-     * @param publicIds the collection of PublicIds to convert
-     * @return the manifest entry string
+     * @param pbTinkarMsg   the message containing the entire chronology
+     * @param versionIndexes the indexes of the versions to retain
+     * @return the message containing only the retained versions
      */
-    private String idsToManifestEntry(Collection<PublicId> publicIds) {
-        StringBuilder manifestEntry = new StringBuilder();
-        publicIds.forEach((publicId) -> {
-            // Convert PublicId to Manifest Entry Name
-            String idString = publicId.asUuidList().stream()
-                    .map(UUID::toString)
-                    .collect(Collectors.joining(","));
-            // Get Description
-            Optional<Entity<EntityVersion>> entity = EntityService.get().getEntity(PrimitiveData.nid(publicId));
-            String manifestDescription = "Description Undefined";
-            if (entity.isPresent()) {
-                manifestDescription = entity.get().description();
+    private static TinkarMsg retainVersions(TinkarMsg pbTinkarMsg, ImmutableIntList versionIndexes) {
+        return switch (pbTinkarMsg.getValueCase()) {
+            case CONCEPT_CHRONOLOGY -> {
+                ConceptChronology chronology = pbTinkarMsg.getConceptChronology();
+                ConceptChronology.Builder builder = chronology.toBuilder().clearConceptVersions();
+                versionIndexes.forEach(index -> builder.addConceptVersions(chronology.getConceptVersions(index)));
+                yield pbTinkarMsg.toBuilder().setConceptChronology(builder).build();
+            }
+            case SEMANTIC_CHRONOLOGY -> {
+                SemanticChronology chronology = pbTinkarMsg.getSemanticChronology();
+                SemanticChronology.Builder builder = chronology.toBuilder().clearSemanticVersions();
+                versionIndexes.forEach(index -> builder.addSemanticVersions(chronology.getSemanticVersions(index)));
+                yield pbTinkarMsg.toBuilder().setSemanticChronology(builder).build();
+            }
+            case PATTERN_CHRONOLOGY -> {
+                PatternChronology chronology = pbTinkarMsg.getPatternChronology();
+                PatternChronology.Builder builder = chronology.toBuilder().clearPatternVersions();
+                versionIndexes.forEach(index -> builder.addPatternVersions(chronology.getPatternVersions(index)));
+                yield pbTinkarMsg.toBuilder().setPatternChronology(builder).build();
             }
-            // Create Manifest Entry
-            manifestEntry.append("\n")
-                    .append("Name: ").append(idString).append("\n")
-                    .append("Description: ").append(manifestDescription).append("\n");
-        });
-        return manifestEntry.toString();
+            default -> pbTinkarMsg;
+        };
     }
+
+    /**
+     * Returns the status of the change set file, used to evaluate rollover policies.
+     * The byte count is the uncompressed size of the live segment.
+     *
+     * @return the status of the change set file
+     */
+    public ChangeSetFileStatus status() {
+        return new ChangeSetFileStatus(changeSetFile.toPath(), segment.bytesWritten(), manifest.totalCount(), openedAt, lastWriteAt);
+    }
+
+    /**
+     * Returns the change set file this writer seals its segment into.
+     *
+     * @return the change set file, which exists only after the writer is closed, and only if an entity was written
+     */
+    public Path changeSetFile() {
+        return changeSetFile.toPath();
+    }
+
+    /**
+     * Returns {@code true} if this writer has been closed.
+     *
+     * @return {@code true} if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the ChangeSetWriter, compressing the change set with the compression configured by the
+     * {@link ChangeSetWriterKeys#COMPRESSION} key.
+     *
+     * @throws IOException if an error occurs during the close operation
+     * @see #close(ChangeSetCompression)
+     */
+    @Override
+    public void close() throws IOException {
+        close(ChangeSetWriterKeys.COMPRESSION.getEnum(ChangeSetCompression.class));
+    }
+
+    /**
+     * Closes the ChangeSetWriter.
+     *
+     * This method closes the ChangeSetWriter by performing the necessary cleanup steps.
+     * If the manifest's total count is equal to 0, it will delete the segment, which has no entries in it.
+     * Otherwise, it will seal the segment into the change set file, with the manifest file. The manifest content
+     * is collected as entities are written, so rendering it does not depend on the size of the change set.
+     * Closing an already closed writer has no effect.
+     *
+     * @param compression the compression of the change set file
+     * @throws IOException if an error occurs during the close operation
+     */
+    public void close(ChangeSetCompression compression) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segment.close();
+        if (manifest.totalCount() == 0) {
+            // delete segments that have no entries in them...
+            Files.deleteIfExists(segment.file());
+        } else {
+            ChangeSetDictionary dictionary = SegmentSealer.dictionaryFor(segment.file(), compression);
+            ChangeSetPublicIds.Encoder publicIds = SegmentSealer.publicIdsEncoder();
+            SegmentSealer.seal(segment.file(), changeSetFile.toPath(),
+                    manifest.render(deltaTracker == null ? ChangeSetWriteMode.CHRONOLOGY : ChangeSetWriteMode.DELTA,
+                            chunkKeys == null ? 1 : ChangeSetChunks.CHUNKED_FORMAT_VERSION, compression, dictionary,
+                            publicIds != null),
+                    compression, dictionary, index, chunkKeys, publicIds, replacedRecords);
+        }
+    }
+
 }
@@ -0,0 +1,99 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionMode;
+
+/**
+ * Enum class representing the configuration keys for the change set writer. Each key is read from its
+ * system property, falling back to the default value when the property is not set.
+ */
+public enum ChangeSetWriterKeys {
+    QUEUE_CAPACITY("dev.ikm.changeset.writer.queue.capacity", "65536"),
+    BACKPRESSURE_POLICY("dev.ikm.changeset.writer.backpressure", BackpressurePolicy.BLOCK.name()),
+    ROLLOVER_MAX_BYTES("dev.ikm.changeset.writer.rollover.maxBytes", "67108864"),
+    ROLLOVER_MAX_ENTITY_COUNT("dev.ikm.changeset.writer.rollover.maxEntityCount", "0"),
+    ROLLOVER_MAX_AGE_MINUTES("dev.ikm.changeset.writer.rollover.maxAgeMinutes", "1440"),
+    ROLLOVER_IDLE_MINUTES("dev.ikm.changeset.writer.rollover.idleMinutes", "0"),
+    WRITE_MODE("dev.ikm.changeset.writer.mode", ChangeSetWriteMode.CHRONOLOGY.name()),
+    DELTA_SINCE_TIME("dev.ikm.changeset.writer.delta.sinceTime", Long.toString(Long.MIN_VALUE)),
+    SEGMENT_SYNC("dev.ikm.changeset.writer.segment.sync", "false"),
+    TRANSFORM_PARALLELISM("dev.ikm.changeset.writer.transform.parallelism",
+            Integer.toString(Runtime.getRuntime().availableProcessors())),
+    COMPRESSION("dev.ikm.changeset.writer.compression", ChangeSetCompression.DEFAULT.name()),
+    BUSY_COMPRESSION("dev.ikm.changeset.writer.compression.busy", ChangeSetCompression.FAST.name()),
+    BUSY_QUEUE_DEPTH("dev.ikm.changeset.writer.compression.busyQueueDepth", "8192"),
+    SYNC_COMPRESSION("dev.ikm.changeset.writer.compression.sync", ChangeSetCompression.DEFAULT.name()),
+    DICTIONARY("dev.ikm.changeset.writer.dictionary", "false"),
+    DICTIONARY_RETRAIN_BYTES("dev.ikm.changeset.writer.dictionary.retrainBytes", "67108864"),
+    INDEX("dev.ikm.changeset.writer.index", "false"),
+    FORMAT_VERSION("dev.ikm.changeset.writer.format.version", "1"),
+    CHUNK_BYTES("dev.ikm.changeset.writer.chunk.bytes", "1048576"),
+    PUBLIC_IDS("dev.ikm.changeset.writer.publicIds", "false"),
+    COALESCE("dev.ikm.changeset.writer.coalesce", "true"),
+    IMPORT_PARALLELISM("dev.ikm.changeset.import.parallelism", "2"),
+    IMPORT_ORDER("dev.ikm.changeset.import.order", ChangeSetImportOrder.SEAL_TIME.name()),
+    IMPORT_BUFFER_ENTITIES("dev.ikm.changeset.import.bufferEntities", "8192"),
+    IMPORT_CHECKPOINT_ENTITIES("dev.ikm.changeset.import.checkpointEntities", "250000"),
+    FOLLOW_POLL_MILLIS("dev.ikm.changeset.follow.pollMillis", "1000"),
+    FOLLOW_SAVE_SECONDS("dev.ikm.changeset.follow.saveSeconds", "30"),
+    FEED_SOCKET("dev.ikm.changeset.writer.feed.socket", ""),
+    FEED_BUFFER_BYTES("dev.ikm.changeset.writer.feed.bufferBytes", "8388608"),
+    FEED_OVERFLOW("dev.ikm.changeset.writer.feed.overflow", ChangeSetFeedOverflow.DISCONNECT.name()),
+    COMPACT_MIN_AGE_DAYS("dev.ikm.changeset.compact.minAgeDays", "30"),
+    COMPACT_MAX_FILE_BYTES("dev.ikm.changeset.compact.maxFileBytes", "4194304"),
+    COMPACT_MAX_ARCHIVE_BYTES("dev.ikm.changeset.compact.maxArchiveBytes", "268435456"),
+    COMPACT_MODE("dev.ikm.changeset.compact.mode", ChangeSetCompactionMode.UNION.name());
+
+    private final String propertyName;
+    private final String defaultValue;
+
+    ChangeSetWriterKeys(String propertyName, String defaultValue) {
+        this.propertyName = propertyName;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Returns the name of the system property used to configure this key.
+     *
+     * @return the system property name
+     */
+    public String propertyName() {
+        return propertyName;
+    }
+
+    /**
+     * Returns the configured value of this key as a string.
+     *
+     * @return the configured value, or the default value if not configured
+     */
+    public String get() {
+        return System.getProperty(propertyName, defaultValue);
+    }
+
+    /**
+     * Returns the configured value of this key as an int.
+     *
+     * @return the configured value, or the default value if not configured
+     */
+    public int getInt() {
+        return Integer.parseInt(get().trim());
+    }
+
+    /**
+     * Returns the configured value of this key as a long.
+     *
+     * @return the configured value, or the default value if not configured
+     */
+    public long getLong() {
+        return Long.parseLong(get().trim());
+    }
+
+    /**
+     * Returns the configured value of this key as a constant of the provided enum type.
+     *
+     * @param enumClass the enum type of the value
+     * @return the configured value, or the default value if not configured
+     */
+    public <E extends Enum<E>> E getEnum(Class<E> enumClass) {
+        return Enum.valueOf(enumClass, get().trim().toUpperCase());
+    }
+}
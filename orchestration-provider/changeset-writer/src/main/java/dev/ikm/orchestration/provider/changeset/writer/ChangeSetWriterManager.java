@@ -1,35 +1,89 @@
 package dev.ikm.orchestration.provider.changeset.writer;
 
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionMode;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionPolicy;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetImport;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetRolloverPolicy;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
 import dev.ikm.tinkar.common.service.PluggableService;
 import dev.ikm.tinkar.common.service.ServiceKeys;
 import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.common.service.TrackingCallable;
 import dev.ikm.tinkar.common.util.broadcast.Subscriber;
 import dev.ikm.tinkar.entity.EntityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.PrimitiveIterator;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-//TODO give the change set writer its own thread.
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
 
 /**
  * A class that manages the writing of change sets.
  * Implements the Subscriber<Integer> and ChangeSetWriterService interfaces.
+ *
+ * Nids received from the entity service are placed on a bounded {@link NidWriteQueue} and written to the
+ * change set file by a dedicated writer thread, so the broadcasting thread does not wait on entity transformation
+ * or disk I/O. The queue capacity and {@link BackpressurePolicy} are configured with {@link ChangeSetWriterKeys}.
+ *
+ * Between batches the writer thread evaluates the {@link ChangeSetRolloverPolicy} and any pending {@link #seal()}
+ * requests. To seal a file, the writer thread hands the open {@link ChangeSetWriter} off with an atomic swap
+ * to a new writer, and continues writing to the new writer while the old one is sealed on a separate sealer thread.
+ * Writes are never dropped or blocked while a file is sealed.
+ *
+ * Entities are read and serialized by a pool of transform threads, sized by the
+ * {@link ChangeSetWriterKeys#TRANSFORM_PARALLELISM} key, while the writer thread appends the serialized entities
+ * in queue order.
+ *
+ * If a socket is configured with the {@link ChangeSetWriterKeys#FEED_SOCKET} key, each record written is also
+ * published to the local processes subscribed to a {@link ChangeSetFeed} on that socket.
  */
 public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWriterService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeSetWriterManager.class);
     public static final DateTimeFormatter SHORT_MIN_FOR_FILE_FORMATTER = DateTimeFormatter.ofPattern("yy-MM-dd HH꞉mm");
+    private static final int WRITE_BATCH_SIZE = 256;
+    private static final long ROLLOVER_CHECK_INTERVAL_MILLIS = 1000;
     final EntityService entityService;
     Path changeSetFolder;
     AtomicBoolean enabled = new AtomicBoolean(false);
-    ChangeSetWriter changeSetWriter;
+    final AtomicReference<ChangeSetWriter> changeSetWriter = new AtomicReference<>();
+    final ConcurrentLinkedQueue<SealRequest> sealRequests = new ConcurrentLinkedQueue<>();
+    final ExecutorService sealExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("change-set-sealer").daemon(true).factory());
+    final int transformParallelism = Math.max(1, ChangeSetWriterKeys.TRANSFORM_PARALLELISM.getInt());
+    final ExecutorService transformExecutor = transformParallelism > 1 ? Executors.newFixedThreadPool(transformParallelism,
+            Thread.ofPlatform().name("change-set-transform-", 0).daemon(true).factory()) : null;
+    final BackpressurePolicy backpressurePolicy = ChangeSetWriterKeys.BACKPRESSURE_POLICY.getEnum(BackpressurePolicy.class);
+    final ReentrantLock writerLock = new ReentrantLock();
+    NidWriteQueue writeQueue;
+    Thread writerThread;
+    volatile ChangeSetRolloverPolicy rolloverPolicy = defaultRolloverPolicy();
+    VersionDeltaTracker deltaTracker;
+    final ChangeSetFeed feed = ChangeSetFeed.configured();
 
     /**
      * The ChangeSetWriterManager class manages the ChangeSetWriter and its configuration.
@@ -41,7 +95,12 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
             ChangeSetWriterManager.this.changeSetFolder = Paths.get(dataStoreRoot.getAbsolutePath(), "changesets");
             try {
                 Files.createDirectories(changeSetFolder);
-                this.changeSetWriter = new ChangeSetWriter(entityService, getChangeSetFile());
+                SegmentSealer.recover(changeSetFolder).forEach(recoveredFile ->
+                        LOG.info("Recovered change set " + recoveredFile));
+                this.deltaTracker = defaultDeltaTracker(changeSetFolder);
+                this.writeQueue = new NidWriteQueue(ChangeSetWriterKeys.QUEUE_CAPACITY.getInt(),
+                        Paths.get(dataStoreRoot.getAbsolutePath(), "changeset-queue"));
+                this.changeSetWriter.set(newWriter());
                 this.enabled.set(true);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to create write folder", e);
@@ -50,21 +109,118 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
             throw new IllegalStateException("No ServiceKeys.DATA_STORE_ROOT provided. ");
         });
 
+        this.writerThread = Thread.ofPlatform().name("change-set-writer").daemon(true).start(this::writeLoop);
         this.entityService.addSubscriberWithWeakReference(this);
 
         //TODO develop way to register shutdown process with the datastore... Then remove the shutdown hook...
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if (changeSetWriter != null) {
-                try {
-                    changeSetWriter.close();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+            enabled.set(false);
+            try {
+                awaitQueuedWrites();
+                writeQueue.close();
+                closeWriter();
+                if (feed != null) {
+                    feed.close();
                 }
+                if (transformExecutor != null) {
+                    transformExecutor.shutdown();
+                }
+                sealExecutor.shutdown();
+                sealExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
         }));
-        //TODO create a rollover strategy when a change set exceeds a size.
     }
 
+    /**
+     * Creates a writer for a new change set file, sharing the manager's delta tracker and transform threads.
+     *
+     * @return the new writer
+     * @throws IOException if an I/O error occurs while creating the writer
+     */
+    private ChangeSetWriter newWriter() throws IOException {
+        // keep twice as many entities in flight as there are transform threads, so they stay busy while the writer thread appends
+        return new ChangeSetWriter(entityService, getChangeSetFile(), deltaTracker, transformExecutor, transformParallelism * 2, feed);
+    }
+
+    /**
+     * Creates the delta tracker configured by the {@link ChangeSetWriterKeys#WRITE_MODE} key. A single tracker
+     * is shared by every file the manager writes, so rollover does not cause entire chronologies to be rewritten,
+     * and it continues from the watermarks saved when the change sets of the folder were last sealed, so a restart
+     * does not either.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the delta tracker, or {@code null} if entire chronologies are written
+     */
+    static VersionDeltaTracker defaultDeltaTracker(Path changeSetFolder) {
+        if (ChangeSetWriterKeys.WRITE_MODE.getEnum(ChangeSetWriteMode.class) != ChangeSetWriteMode.DELTA) {
+            return null;
+        }
+        long sinceTime = ChangeSetWriterKeys.DELTA_SINCE_TIME.getLong();
+        Path watermarksFile = VersionDeltaTracker.watermarksFile(changeSetFolder);
+        try {
+            return VersionDeltaTracker.load(watermarksFile, sinceTime);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Unable to read change set delta watermarks " + watermarksFile + ", writing entire chronologies", e);
+            return new VersionDeltaTracker(sinceTime);
+        }
+    }
+
+    /**
+     * Saves the delta watermarks taken when a change set was closed, once it has been sealed.
+     *
+     * @param watermarks the watermarks, or {@code null} if entire chronologies are written
+     */
+    private void saveWatermarks(VersionDeltaTracker.Watermarks watermarks) {
+        if (watermarks == null) {
+            return;
+        }
+        try {
+            watermarks.save(VersionDeltaTracker.watermarksFile(changeSetFolder));
+        } catch (IOException e) {
+            LOG.warn("Unable to save change set delta watermarks; versions may be written again after a restart", e);
+        }
+    }
+
+    /**
+     * Creates the rollover policy configured by the rollover {@link ChangeSetWriterKeys}.
+     * Limits configured as 0 are disabled.
+     *
+     * @return the configured rollover policy
+     */
+    static ChangeSetRolloverPolicy defaultRolloverPolicy() {
+        ChangeSetRolloverPolicy policy = ChangeSetRolloverPolicy.never();
+        long maxBytes = ChangeSetWriterKeys.ROLLOVER_MAX_BYTES.getLong();
+        if (maxBytes > 0) {
+            policy = policy.or(ChangeSetRolloverPolicy.maxBytes(maxBytes));
+        }
+        long maxEntityCount = ChangeSetWriterKeys.ROLLOVER_MAX_ENTITY_COUNT.getLong();
+        if (maxEntityCount > 0) {
+            policy = policy.or(ChangeSetRolloverPolicy.maxEntityCount(maxEntityCount));
+        }
+        long maxAgeMinutes = ChangeSetWriterKeys.ROLLOVER_MAX_AGE_MINUTES.getLong();
+        if (maxAgeMinutes > 0) {
+            policy = policy.or(ChangeSetRolloverPolicy.maxAge(Duration.ofMinutes(maxAgeMinutes)));
+        }
+        long idleMinutes = ChangeSetWriterKeys.ROLLOVER_IDLE_MINUTES.getLong();
+        if (idleMinutes > 0) {
+            policy = policy.or(ChangeSetRolloverPolicy.idleTimeout(Duration.ofMinutes(idleMinutes)));
+        }
+        return policy;
+    }
+
+    /**
+     * Creates the compaction policy configured by the compaction {@link ChangeSetWriterKeys}.
+     *
+     * @return the configured compaction policy
+     */
+    static ChangeSetCompactionPolicy defaultCompactionPolicy() {
+        return new ChangeSetCompactionPolicy(Duration.ofDays(ChangeSetWriterKeys.COMPACT_MIN_AGE_DAYS.getLong()),
+                ChangeSetWriterKeys.COMPACT_MAX_FILE_BYTES.getLong(),
+                ChangeSetWriterKeys.COMPACT_MAX_ARCHIVE_BYTES.getLong(),
+                ChangeSetWriterKeys.COMPACT_MODE.getEnum(ChangeSetCompactionMode.class));
+    }
 
     /**
      * Returns the file for the change set.
@@ -75,16 +231,253 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
         return changeSetFolder.resolve(LocalDateTime.now().format(SHORT_MIN_FOR_FILE_FORMATTER) + "~" + UUID.randomUUID() + ".proto.zip").toFile();
     }
 
+    /**
+     * A request to seal the open change set file once every nid enqueued before the request has been written.
+     *
+     * @param enqueuedCount the number of nids enqueued when the request was made
+     * @param result        completed with the sealed file once sealing finishes
+     */
+    private record SealRequest(long enqueuedCount, CompletableFuture<Optional<Path>> result) {
+    }
+
+    /**
+     * Drains the write queue on the dedicated writer thread, writing each nid to the current change set writer,
+     * and handling seal requests and the rollover policy between batches. Runs until the write queue is closed and empty.
+     *
+     * The writer thread is the only consumer of the queue, so a failure is logged and the loop keeps draining; if
+     * the thread ended, producers blocked on a full queue would wait forever. If the thread is interrupted, it stops,
+     * and closes the queue so that producers fail rather than wait.
+     */
+    private void writeLoop() {
+        int[] batch = new int[WRITE_BATCH_SIZE];
+        while (true) {
+            try {
+                int count = writeQueue.drainTo(batch, ROLLOVER_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (count < 0) {
+                    return;
+                }
+                writerLock.lock();
+                try {
+                    writeBatch(batch, count);
+                    writeQueue.markWritten(count);
+                    completeSealRequests();
+                    rolloverIfRequired();
+                } finally {
+                    writerLock.unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Change set writer thread interrupted", e);
+                writeQueue.close();
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("Change set writer failed, continuing with the next batch", e);
+                // Wait before retrying, so a persistent failure does not spin the writer thread.
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ROLLOVER_CHECK_INTERVAL_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of nids to the current change set writer, logging rather than propagating failures
+     * so the writer thread keeps running.
+     *
+     * @param batch the array containing the nids to write
+     * @param count the number of nids to write
+     */
+    private void writeBatch(int[] batch, int count) {
+        if (count == 0) {
+            return;
+        }
+        try {
+            this.changeSetWriter.get().write(batch, 0, count);
+        } catch (RuntimeException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Completes the pending seal requests whose nids have all been written, sealing the open file once for all of them.
+     * Must be called by the writer thread while holding the writer lock.
+     */
+    private void completeSealRequests() {
+        SealRequest request = sealRequests.peek();
+        if (request == null || request.enqueuedCount() > writeQueue.writtenCount()) {
+            return;
+        }
+        CompletableFuture<Optional<Path>> sealed = isWriting() ?
+                handOff(ChangeSetWriterKeys.SYNC_COMPRESSION.getEnum(ChangeSetCompression.class)) :
+                CompletableFuture.completedFuture(Optional.empty());
+        while ((request = sealRequests.peek()) != null && request.enqueuedCount() <= writeQueue.writtenCount()) {
+            CompletableFuture<Optional<Path>> result = sealRequests.poll().result();
+            sealed.whenComplete((file, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(file);
+                }
+            });
+        }
+    }
+
+    /**
+     * Seals the open change set file and opens a new one if the rollover policy requires it.
+     * Must be called by the writer thread while holding the writer lock.
+     */
+    private void rolloverIfRequired() {
+        ChangeSetWriter currentWriter = this.changeSetWriter.get();
+        if (!isWriting() || !rolloverPolicy.shouldRollover(currentWriter.status(), Instant.now())) {
+            return;
+        }
+        handOff(rolloverCompression()).whenComplete((file, throwable) -> {
+            if (throwable != null) {
+                LOG.error("Unable to roll over change set " + currentWriter.changeSetFile(), throwable);
+            }
+        });
+    }
+
+    /**
+     * Returns the compression for a file sealed by rollover: the {@link ChangeSetWriterKeys#BUSY_COMPRESSION} while
+     * the write queue is at least {@link ChangeSetWriterKeys#BUSY_QUEUE_DEPTH} deep, so the writer spends less time
+     * compressing while it is behind, and the {@link ChangeSetWriterKeys#COMPRESSION} otherwise.
+     *
+     * @return the compression for the sealed file
+     */
+    private ChangeSetCompression rolloverCompression() {
+        if (writeQueue.metrics().queueDepth() >= ChangeSetWriterKeys.BUSY_QUEUE_DEPTH.getInt()) {
+            return ChangeSetWriterKeys.BUSY_COMPRESSION.getEnum(ChangeSetCompression.class);
+        }
+        return ChangeSetWriterKeys.COMPRESSION.getEnum(ChangeSetCompression.class);
+    }
+
+    /**
+     * Returns {@code true} if writes are enabled and the current change set writer is open.
+     *
+     * @return {@code true} if writing
+     */
+    private boolean isWriting() {
+        return enabled.get() && !this.changeSetWriter.get().isClosed();
+    }
+
+    /**
+     * Atomically replaces the current change set writer with a writer for a new file, and seals the replaced writer
+     * on the sealer thread. Must be called by the writer thread while holding the writer lock, so no write is in
+     * progress on the replaced writer.
+     *
+     * @param compression the compression of the sealed file
+     * @return a future completed with the sealed file, or empty if nothing was written to it
+     */
+    private CompletableFuture<Optional<Path>> handOff(ChangeSetCompression compression) {
+        ChangeSetWriter sealedWriter;
+        try {
+            sealedWriter = this.changeSetWriter.getAndSet(newWriter());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // Taken before the new writer is used, so they only cover versions written to the sealed file or earlier ones.
+        VersionDeltaTracker.Watermarks watermarks = deltaTracker == null ? null : deltaTracker.watermarks();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                sealedWriter.close(compression);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            saveWatermarks(watermarks);
+            return Files.exists(sealedWriter.changeSetFile()) ? Optional.of(sealedWriter.changeSetFile()) : Optional.empty();
+        }, sealExecutor);
+    }
+
+    /**
+     * Blocks until every nid placed on the write queue has been written to the current change set writer.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    private void awaitQueuedWrites() throws InterruptedIOException {
+        try {
+            writeQueue.awaitDrained();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for change set writes to complete");
+        }
+    }
+
+    /**
+     * Blocks until every change set file handed off to the sealer thread has been sealed.
+     *
+     * @throws InterruptedIOException if the calling thread is interrupted while waiting
+     */
+    private void awaitSeals() throws InterruptedIOException {
+        try {
+            sealExecutor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for change sets to be sealed");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes the current change set writer, waiting for any write in progress on the writer thread to finish.
+     *
+     * @throws IOException if an error occurs while closing the writer
+     */
+    private void closeWriter() throws IOException {
+        writerLock.lock();
+        try {
+            ChangeSetWriter currentWriter = this.changeSetWriter.get();
+            if (currentWriter != null) {
+                currentWriter.close();
+                // Saved on the sealer thread, after the watermarks of files handed off before this one.
+                VersionDeltaTracker.Watermarks watermarks = deltaTracker == null ? null : deltaTracker.watermarks();
+                sealExecutor.execute(() -> saveWatermarks(watermarks));
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Places a nid on the write queue, applying the provided backpressure policy if the queue is full.
+     *
+     * @param nid    the nid to enqueue
+     * @param policy the policy to apply if the queue is full
+     */
+    private void enqueue(int nid, BackpressurePolicy policy) {
+        try {
+            writeQueue.offer(nid, policy);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing nid " + nid + " for change set writer", e);
+        }
+    }
+
     /**
      * Processes the next native identifier received by the subscriber,
-     * by writing a change set corresponding to the identified component to disk.
+     * by queueing the identified component to be written to disk by the writer thread.
+     * The entity service broadcasts boxed integers; the nid is unboxed here, and is handled
+     * as a primitive from the queue through to the writer.
+     *
+     * Components put by a {@link ChangeSetImport} task already exist in the change set they were loaded from,
+     * so they are not queued.
+     *
+     * A nid the queue rejects, because it is closed or full under {@link BackpressurePolicy#FAIL_FAST}, is logged
+     * and dropped, and counted in the rejected count of the metrics: an exception thrown here would cancel this
+     * subscription to the entity service broadcasts.
      *
      * @param nid the integer value to process
      */
     @Override
     public void onNext(Integer nid) {
-        if (enabled.get()) {
-            this.changeSetWriter.onNext(nid);
+        if (enabled.get() && !ChangeSetImport.isImporting()) {
+            try {
+                enqueue(nid, backpressurePolicy);
+            } catch (IllegalStateException e) {
+                LOG.warn("Change set writer dropped nid " + nid + ": " + e.getMessage());
+            } catch (UncheckedIOException e) {
+                // The nid is queued; only writing the spilled nids to disk failed, and is retried by the next spill.
+                LOG.warn("Unable to spill change set writer nids to disk", e);
+            }
         }
     }
 
@@ -99,20 +492,52 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
     @Override
     public void pause() throws IOException {
         enabled.set(false);
-        // Close the writer.
-        this.changeSetWriter.close();
+        // Flush queued writes, then close the writer, and wait for files handed off by rollover to be sealed.
+        awaitQueuedWrites();
+        closeWriter();
+        awaitSeals();
     }
 
     /**
      * Resumes the ChangeSetWriter by enabling further writes and opening a new writer.
+     * Has no effect if the writer is not paused.
      *
      * @throws IOException if an error occurs while opening the writer
      */
     @Override
     public void resume() throws IOException {
+        if (enabled.get()) {
+            return;
+        }
+        // open a new writer before accepting writes, so queued nids never reach the closed writer
+        this.changeSetWriter.set(newWriter());
         enabled.set(true);
-        // open a new writer
-        this.changeSetWriter = new ChangeSetWriter(entityService, getChangeSetFile());
+    }
+
+    /**
+     * Seals the open change set file and continues writing to a new file. The writer thread performs the
+     * hand off once every nid queued before this call has been written, so those nids are contained in the sealed
+     * file or an earlier one. Writes are neither dropped nor paused; only the calling thread waits for the seal.
+     *
+     * @return the sealed change set file, or empty if nothing was written to it or the writer is paused
+     * @throws IOException if the change set file cannot be sealed
+     */
+    @Override
+    public Optional<Path> seal() throws IOException {
+        if (!enabled.get()) {
+            return Optional.empty();
+        }
+        SealRequest request = new SealRequest(writeQueue.enqueuedCount(), new CompletableFuture<>());
+        sealRequests.add(request);
+        writeQueue.wakeUp();
+        try {
+            return request.result().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for change set to be sealed");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to seal change set", e.getCause());
+        }
     }
 
     /**
@@ -136,12 +561,113 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
     }
 
     /**
-     * Writes a change set corresponding to the identified component to disk.
+     * Returns a snapshot of the write queue depth and lag.
+     *
+     * @return the current writer metrics
+     */
+    @Override
+    public ChangeSetWriterMetrics getMetrics() {
+        return writeQueue.metrics();
+    }
+
+    /**
+     * Returns the policy that determines when the open change set file is sealed and a new file opened.
+     *
+     * @return the rollover policy
+     */
+    @Override
+    public ChangeSetRolloverPolicy getRolloverPolicy() {
+        return rolloverPolicy;
+    }
+
+    /**
+     * Sets the policy that determines when the open change set file is sealed and a new file opened.
+     *
+     * @param rolloverPolicy the rollover policy
+     */
+    @Override
+    public void setRolloverPolicy(ChangeSetRolloverPolicy rolloverPolicy) {
+        this.rolloverPolicy = Objects.requireNonNull(rolloverPolicy);
+    }
+
+    /**
+     * Returns the compaction policy configured by the compaction {@link ChangeSetWriterKeys}.
+     *
+     * @return the compaction policy
+     */
+    @Override
+    public ChangeSetCompactionPolicy getCompactionPolicy() {
+        return defaultCompactionPolicy();
+    }
+
+    /**
+     * Creates a task that merges the change set files selected by a compaction policy into archives.
+     *
+     * @param compactionPolicy the policy selecting the files to merge
+     * @return the compaction task
+     */
+    @Override
+    public TrackingCallable<Integer> newCompactionTask(ChangeSetCompactionPolicy compactionPolicy) {
+        return new ChangeSetCompactionTask(changeSetFolder, compactionPolicy);
+    }
+
+    /**
+     * Queues a change set corresponding to the identified component to be written to disk.
+     * Explicit writes always block when the queue is full, regardless of the configured backpressure policy.
      *
      * @param nid the integer value to process
      */
     @Override
     public void write(int nid) {
-        this.changeSetWriter.onNext(nid);
+        enqueue(nid, BackpressurePolicy.BLOCK);
+    }
+
+    /**
+     * Queues change sets corresponding to the identified components to be written to disk,
+     * acquiring the queue lock once for the whole array rather than once per nid.
+     * Explicit writes always block when the queue is full, regardless of the configured backpressure policy.
+     *
+     * @param nids the native identifiers of the components to write
+     */
+    @Override
+    public void write(int[] nids) {
+        enqueueAll(nids, nids.length);
+    }
+
+    /**
+     * Queues change sets corresponding to the identified components to be written to disk, in batches,
+     * without boxing the native identifiers.
+     * Explicit writes always block when the queue is full, regardless of the configured backpressure policy.
+     *
+     * @param nids the native identifiers of the components to write
+     */
+    @Override
+    public void write(IntStream nids) {
+        int[] batch = new int[WRITE_BATCH_SIZE];
+        int count = 0;
+        PrimitiveIterator.OfInt nidIterator = nids.iterator();
+        while (nidIterator.hasNext()) {
+            batch[count++] = nidIterator.nextInt();
+            if (count == batch.length) {
+                enqueueAll(batch, count);
+                count = 0;
+            }
+        }
+        enqueueAll(batch, count);
+    }
+
+    /**
+     * Places the first {@code count} nids of the batch on the write queue, blocking if the queue is full.
+     *
+     * @param batch the array containing the nids to enqueue
+     * @param count the number of nids to enqueue
+     */
+    private void enqueueAll(int[] batch, int count) {
+        try {
+            writeQueue.offerAll(batch, 0, count, BackpressurePolicy.BLOCK);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing nids for change set writer", e);
+        }
     }
 }
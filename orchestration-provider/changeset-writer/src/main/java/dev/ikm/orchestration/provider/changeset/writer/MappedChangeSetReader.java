@@ -0,0 +1,802 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFilter;
+import dev.ikm.tinkar.common.id.PublicId;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * The MappedChangeSetReader class reads a {@code .proto.zip} change set as a lazy stream of messages or entities,
+ * without copying each record. The file is memory-mapped, its entries are located through the zip central directory,
+ * and each {@code TinkarMsg} is parsed directly from the mapped entry when the entities are stored, or from a reusable
+ * window the entry is inflated into when they are deflated. A large import is then limited by reading the file,
+ * rather than by allocating and collecting a buffer for every record.
+ *
+ * It reads every change set layout: dictionary compressed, chunked and public id table change sets, negotiated from
+ * the manifest, and rejects versions newer than it supports rather than misreading them. Records are always returned
+ * with full public ids. The record of a single entity may be read from a chunked change set by inflating only the
+ * chunk that contains it. Part of a change set may be read with a {@link ChangeSetFilter}, evaluated on the records
+ * before they become entities.
+ * The stream of a chunked change set splits at chunk boundaries, so it may be processed in parallel; the stream of
+ * any other change set is sequential. An entry too large to map in one buffer, such as the single entities entry of a
+ * change set of several gigabytes, is read through consecutive mapped windows instead. Streams must be consumed before
+ * the reader is closed, and mapped entries are released when they are garbage collected.
+ * <pre>{@code
+ * try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile)) {
+ *     reader.entities().forEach(entityService::putEntity);
+ * }
+ * }</pre>
+ */
+public final class MappedChangeSetReader implements AutoCloseable {
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int MAX_WINDOW_BYTES = 1 << 30;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_BYTES = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_BYTES = 20;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_BYTES = 56;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_BYTES = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_BYTES = 30;
+    private static final int MAX_COMMENT_BYTES = 0xFFFF;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final Path changeSetFile;
+    private final FileChannel channel;
+    private final Map<String, CentralEntry> entries;
+    private final Manifest manifest;
+    private final ChangeSetDictionary dictionary;
+    private final ChangeSetPublicIds publicIds;
+    private final ChangeSetChunks chunks;
+    private final List<String> entityEntries;
+    private final long[] entryRecordCounts;
+    private final Set<EntryRecords> openRecords = ConcurrentHashMap.newKeySet();
+
+    /**
+     * An entry of the zip central directory.
+     *
+     * @param name             the entry name
+     * @param method           the compression method
+     * @param compressedSize   the size of the entry data in the file
+     * @param localHeaderOffset the offset of the local header of the entry
+     */
+    private record CentralEntry(String name, int method, long compressedSize, long localHeaderOffset) {
+    }
+
+    private MappedChangeSetReader(Path changeSetFile, FileChannel channel) throws IOException {
+        this.changeSetFile = changeSetFile;
+        this.channel = channel;
+        this.entries = readCentralDirectory();
+        this.manifest = readManifest();
+        Attributes attributes = manifest.getMainAttributes();
+        this.dictionary = ChangeSetReader.dictionary(changeSetFile, attributes);
+        this.publicIds = readPublicIds(attributes);
+        if (ChangeSetReader.formatVersion(attributes) == ChangeSetChunks.CHUNKED_FORMAT_VERSION) {
+            this.chunks = readChunks();
+            this.entityEntries = chunks.chunks().stream().map(ChangeSetChunks.Chunk::entryName).toList();
+            this.entryRecordCounts = chunks.chunks().stream().mapToLong(ChangeSetChunks.Chunk::recordCount).toArray();
+        } else {
+            this.chunks = null;
+            this.entityEntries = List.of(dictionary == null ? SegmentSealer.ENTITIES_ENTRY : SegmentSealer.DICTIONARY_ENTITIES_ENTRY);
+            this.entryRecordCounts = null;
+        }
+    }
+
+    /**
+     * Opens a change set, reading its central directory, manifest and tables.
+     *
+     * @param changeSetFile the change set file
+     * @return the reader, which must be closed
+     * @throws IOException if the change set is malformed, its version is not supported, its dictionary cannot be found,
+     *                     or an I/O error occurs while reading
+     */
+    public static MappedChangeSetReader open(Path changeSetFile) throws IOException {
+        FileChannel channel = FileChannel.open(changeSetFile, StandardOpenOption.READ);
+        try {
+            return new MappedChangeSetReader(changeSetFile, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the manifest of the change set.
+     *
+     * @return the manifest, which is empty if the change set has no manifest entry
+     */
+    public Manifest manifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns a lazy stream of the messages of the change set, in the order they were written, with full public ids.
+     * An I/O error while the stream is consumed is thrown as an {@link UncheckedIOException}.
+     *
+     * @return the stream of messages
+     */
+    public Stream<TinkarMsg> messages() {
+        return messages(0);
+    }
+
+    /**
+     * Returns a lazy stream of the messages of the change set after the first records, to resume a load that was
+     * interrupted. Skipped records are not parsed, and the chunks of a chunked change set that hold only skipped
+     * records are not read at all.
+     *
+     * @param skipRecords the number of records to skip
+     * @return the stream of messages
+     */
+    public Stream<TinkarMsg> messages(long skipRecords) {
+        int firstEntry = 0;
+        if (entryRecordCounts != null) {
+            while (firstEntry < entryRecordCounts.length && skipRecords >= entryRecordCounts[firstEntry]) {
+                skipRecords -= entryRecordCounts[firstEntry++];
+            }
+        }
+        return StreamSupport.stream(new MessageSpliterator(firstEntry, entityEntries.size(), skipRecords, null), false);
+    }
+
+    /**
+     * Returns a lazy stream of the parts of the messages of the change set selected by a filter. Records whose type
+     * cannot match are skipped without being parsed. If the filter has stamp predicates, the stamps of the change set
+     * are read before this method returns, to select the versions written with them; versions whose stamps were
+     * written to another change set are selected only by {@link #messages(ChangeSetSelection)}.
+     *
+     * @param filter the filter selecting the content
+     * @return the stream of selected messages
+     * @throws UncheckedIOException if an I/O error occurs while reading the stamps
+     */
+    public Stream<TinkarMsg> messages(ChangeSetFilter filter) {
+        if (filter.isAll()) {
+            return messages();
+        }
+        ChangeSetSelection selection = new ChangeSetSelection(filter);
+        if (selection.needsStamps()) {
+            addStamps(selection);
+        }
+        return messages(selection);
+    }
+
+    /**
+     * Adds the stamps of the change set to a selection, so the versions written with them are selected from this
+     * change set or any other.
+     *
+     * @param selection the selection
+     * @throws UncheckedIOException if an I/O error occurs while reading the stamps
+     */
+    void addStamps(ChangeSetSelection selection) {
+        try (Stream<TinkarMsg> stamps = StreamSupport.stream(
+                new MessageSpliterator(0, entityEntries.size(), 0, ChangeSetSelection::isStamp), false)) {
+            stamps.forEach(selection::addStamp);
+        }
+    }
+
+    /**
+     * Returns a lazy stream of the parts of the messages of the change set selected by a selection whose stamps have
+     * been added, from this change set and any others it spans.
+     *
+     * @param selection the selection
+     * @return the stream of selected messages
+     */
+    Stream<TinkarMsg> messages(ChangeSetSelection selection) {
+        return StreamSupport.stream(new MessageSpliterator(0, entityEntries.size(), 0, selection::mayMatch), false)
+                .map(selection::select)
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns a lazy stream of the entities of the change set, in the order they were written.
+     * An I/O error while the stream is consumed is thrown as an {@link UncheckedIOException}.
+     *
+     * @return the stream of entities
+     */
+    public Stream<Entity<?>> entities() {
+        return entities(0);
+    }
+
+    /**
+     * Returns a lazy stream of the entities of the change set after the first records, each of which holds one entity,
+     * to resume a load that was interrupted.
+     *
+     * @param skipRecords the number of records to skip
+     * @return the stream of entities
+     * @see #messages(long)
+     */
+    public Stream<Entity<?>> entities(long skipRecords) {
+        return transform(messages(skipRecords));
+    }
+
+    /**
+     * Returns a lazy stream of the entities of the change set selected by a filter.
+     *
+     * @param filter the filter selecting the content
+     * @return the stream of selected entities
+     * @throws UncheckedIOException if an I/O error occurs while reading the stamps
+     * @see #messages(ChangeSetFilter)
+     */
+    public Stream<Entity<?>> entities(ChangeSetFilter filter) {
+        return transform(messages(filter));
+    }
+
+    /**
+     * Returns a lazy stream of the entities of the change set selected by a selection whose stamps have been added.
+     *
+     * @param selection the selection
+     * @return the stream of selected entities
+     * @see #messages(ChangeSetSelection)
+     */
+    Stream<Entity<?>> entities(ChangeSetSelection selection) {
+        return transform(messages(selection));
+    }
+
+    /**
+     * Returns a lazy stream of the entities of the records that pass a filter evaluated on the serialized records,
+     * before they are parsed.
+     *
+     * @param recordFilter the filter of serialized records
+     * @return the stream of entities
+     */
+    Stream<Entity<?>> entities(Predicate<ByteBuffer> recordFilter) {
+        return transform(StreamSupport.stream(new MessageSpliterator(0, entityEntries.size(), 0, recordFilter), false));
+    }
+
+    /**
+     * Reads the message of a single entity from a chunked change set, inflating only the chunk that contains it.
+     *
+     * @param publicId the public id of the entity
+     * @return the message, with full public ids, or empty if the entity is not in the change set
+     * @throws IOException if the change set is not chunked, is malformed, or an I/O error occurs while reading
+     */
+    public Optional<TinkarMsg> message(PublicId publicId) throws IOException {
+        if (chunks == null) {
+            throw new IOException("Change set " + changeSetFile + " is not chunked; read it with messages()");
+        }
+        int recordIndex = chunks.recordIndex(publicId);
+        if (recordIndex < 0) {
+            return Optional.empty();
+        }
+        EntryRecords records = openRecords(entityEntries.get(chunks.recordChunk(recordIndex)));
+        try {
+            records.skip(chunks.recordOffset(recordIndex));
+            ByteBuffer record = records.next();
+            if (record == null) {
+                throw new EOFException("Truncated change set record " + recordIndex + " in " + changeSetFile);
+            }
+            TinkarMsg pbTinkarMsg = TinkarMsg.parseFrom(record);
+            return Optional.of(publicIds == null ? pbTinkarMsg : publicIds.resolve(pbTinkarMsg));
+        } finally {
+            records.close();
+        }
+    }
+
+    private static Stream<Entity<?>> transform(Stream<TinkarMsg> messages) {
+        TinkarSchemaToEntityTransformer transformer = TinkarSchemaToEntityTransformer.getInstance();
+        return messages.<Entity<?>>mapMulti((pbTinkarMsg, downstream) ->
+                transformer.transform(pbTinkarMsg, downstream::accept, stampEntity -> { }));
+    }
+
+    /**
+     * Closes the file, and ends the inflaters of entries that have not been read to the end.
+     *
+     * @throws IOException if an I/O error occurs while closing the file
+     */
+    @Override
+    public void close() throws IOException {
+        openRecords.forEach(EntryRecords::close);
+        channel.close();
+    }
+
+    /**
+     * Reads the central directory, found through the end of central directory record at the end of the file.
+     */
+    private Map<String, CentralEntry> readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        int tailBytes = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_BYTES + MAX_COMMENT_BYTES + ZIP64_LOCATOR_BYTES);
+        ByteBuffer tail = map(fileSize - tailBytes, tailBytes);
+        int end = tailBytes - END_OF_CENTRAL_DIRECTORY_BYTES;
+        while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            end--;
+        }
+        if (end < 0) {
+            throw new ZipException("No end of central directory in change set " + changeSetFile);
+        }
+        long entryCount = Short.toUnsignedLong(tail.getShort(end + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        int locator = end - ZIP64_LOCATOR_BYTES;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64End = map(tail.getLong(locator + 8), ZIP64_END_OF_CENTRAL_DIRECTORY_BYTES);
+            if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Malformed zip64 end of central directory in change set " + changeSetFile);
+            }
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+        ByteBuffer directory = map(directoryOffset, directorySize);
+        Map<String, CentralEntry> centralEntries = new HashMap<>();
+        for (long i = 0; i < entryCount; i++) {
+            int header = directory.position();
+            if (directory.getInt(header) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Malformed central directory in change set " + changeSetFile);
+            }
+            int method = Short.toUnsignedInt(directory.getShort(header + 10));
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(header + 20));
+            long uncompressedSize = Integer.toUnsignedLong(directory.getInt(header + 24));
+            int nameBytes = Short.toUnsignedInt(directory.getShort(header + 28));
+            int extraBytes = Short.toUnsignedInt(directory.getShort(header + 30));
+            int commentBytes = Short.toUnsignedInt(directory.getShort(header + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(header + 42));
+            byte[] name = new byte[nameBytes];
+            directory.get(header + CENTRAL_HEADER_BYTES, name);
+            // Sizes and offsets too large for the header are in the zip64 extra field, in this order.
+            int extra = header + CENTRAL_HEADER_BYTES + nameBytes;
+            for (int field = extra; field + 4 <= extra + extraBytes; ) {
+                int fieldId = Short.toUnsignedInt(directory.getShort(field));
+                int fieldBytes = Short.toUnsignedInt(directory.getShort(field + 2));
+                if (fieldId == ZIP64_EXTRA_FIELD_ID) {
+                    int value = field + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL) {
+                        value += Long.BYTES;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = directory.getLong(value);
+                        value += Long.BYTES;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = directory.getLong(value);
+                    }
+                }
+                field += 4 + fieldBytes;
+            }
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            centralEntries.put(entryName, new CentralEntry(entryName, method, compressedSize, localHeaderOffset));
+            directory.position(extra + extraBytes + commentBytes);
+        }
+        return centralEntries;
+    }
+
+    private Manifest readManifest() throws IOException {
+        if (!entries.containsKey(SegmentSealer.MANIFEST_ENTRY)) {
+            return new Manifest();
+        }
+        try (InputStream in = entryStream(SegmentSealer.MANIFEST_ENTRY)) {
+            return new Manifest(in);
+        }
+    }
+
+    private ChangeSetPublicIds readPublicIds(Attributes attributes) throws IOException {
+        if (!Boolean.parseBoolean(attributes.getValue(ChangeSetPublicIds.PUBLIC_IDS_ATTRIBUTE))) {
+            return null;
+        }
+        try (InputStream in = entryStream(ChangeSetPublicIds.TABLE_ENTRY)) {
+            return ChangeSetPublicIds.read(in, changeSetFile.toString());
+        }
+    }
+
+    private ChangeSetChunks readChunks() throws IOException {
+        try (InputStream in = entryStream(ChangeSetChunks.TABLE_ENTRY)) {
+            return ChangeSetChunks.read(in, changeSetFile.toString());
+        }
+    }
+
+    /**
+     * Maps the data of an entry, which follows its local header.
+     */
+    private ByteBuffer mapEntry(String entryName) throws IOException {
+        return map(dataOffset(entryName), entries.get(entryName).compressedSize());
+    }
+
+    /**
+     * Returns the offset of the data of an entry, which follows its local header.
+     */
+    private long dataOffset(String entryName) throws IOException {
+        CentralEntry entry = entries.get(entryName);
+        if (entry == null) {
+            throw new IOException("No " + entryName + " entry in change set " + changeSetFile);
+        }
+        if (entry.method() != STORED && entry.method() != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method() + " for " + entryName
+                    + " in change set " + changeSetFile);
+        }
+        ByteBuffer localHeader = map(entry.localHeaderOffset(), LOCAL_HEADER_BYTES);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Malformed local header for " + entryName + " in change set " + changeSetFile);
+        }
+        return entry.localHeaderOffset() + LOCAL_HEADER_BYTES
+                + Short.toUnsignedInt(localHeader.getShort(26)) + Short.toUnsignedInt(localHeader.getShort(28));
+    }
+
+    private ByteBuffer map(long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Change set entry of " + length + " bytes is too large to map in " + changeSetFile);
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Opens a small entry, such as the manifest or a table, as a stream.
+     */
+    private InputStream entryStream(String entryName) throws IOException {
+        InputStream in = new ByteBufferInputStream(mapEntry(entryName));
+        if (entries.get(entryName).method() == STORED) {
+            return in;
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens the records of an entity entry. A stored entry without a dictionary is read in place; otherwise the entry
+     * is inflated into a window, and through a second inflater if it was deflated with the dictionary. An entry too
+     * large to map at once is read through {@link MappedWindows}, into the same window as an inflated entry.
+     */
+    private EntryRecords openRecords(String entryName) throws IOException {
+        CentralEntry entry = entries.get(entryName);
+        long dataOffset = dataOffset(entryName);
+        ByteBuffer data = null;
+        Source source = null;
+        if (entry.compressedSize() <= MAX_WINDOW_BYTES) {
+            data = map(dataOffset, entry.compressedSize());
+        } else {
+            source = new MappedWindows(dataOffset, entry.compressedSize());
+        }
+        List<Inflater> inflaters = new ArrayList<>();
+        if (entry.method() == DEFLATED) {
+            Inflater inflater = new Inflater(true);
+            inflaters.add(inflater);
+            source = source == null ? new InflaterSource(inflater, data, null) :
+                    new InflaterSource(inflater, ByteBuffer.allocate(BUFFER_BYTES), source);
+        }
+        if (dictionary != null) {
+            Inflater inflater = dictionary.newInflater();
+            inflaters.add(inflater);
+            source = source == null ? new InflaterSource(inflater, data, null) :
+                    new InflaterSource(inflater, ByteBuffer.allocate(BUFFER_BYTES), source);
+        }
+        EntryRecords records = source == null ? new EntryRecords(data, null, inflaters) :
+                new EntryRecords(ByteBuffer.allocate(BUFFER_BYTES).limit(0), source, inflaters);
+        openRecords.add(records);
+        return records;
+    }
+
+    /**
+     * A source of the bytes of an entry, inflated or read through mapped windows.
+     */
+    private interface Source {
+        /**
+         * Reads bytes into the remaining space of the buffer.
+         *
+         * @return the number of bytes read, or -1 at the end of the entry
+         */
+        int read(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Reads the data of an entry too large to map at once, by mapping consecutive windows of it in turn. A window is
+     * released when it is garbage collected, after the next one is mapped.
+     */
+    private final class MappedWindows implements Source {
+        private long offset;
+        private final long end;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+
+        MappedWindows(long offset, long length) {
+            this.offset = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (!window.hasRemaining()) {
+                if (offset >= end) {
+                    return -1;
+                }
+                long length = Math.min(end - offset, MAX_WINDOW_BYTES);
+                window = map(offset, length);
+                offset += length;
+            }
+            int bytesRead = Math.min(buffer.remaining(), window.remaining());
+            buffer.put(window.slice(window.position(), bytesRead));
+            window.position(window.position() + bytesRead);
+            return bytesRead;
+        }
+    }
+
+    /**
+     * Inflates a mapped entry, or the bytes of an upstream source read into an input buffer.
+     */
+    private final class InflaterSource implements Source {
+        private final Inflater inflater;
+        private final ByteBuffer input;
+        private final Source upstream;
+
+        InflaterSource(Inflater inflater, ByteBuffer input, Source upstream) {
+            this.inflater = inflater;
+            this.input = input;
+            this.upstream = upstream;
+            if (upstream == null) {
+                inflater.setInput(input);
+            } else {
+                input.limit(0);
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            try {
+                while (buffer.hasRemaining() && !inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (upstream == null) {
+                            throw new EOFException("Truncated entry in change set " + changeSetFile);
+                        }
+                        input.clear();
+                        int inputBytes = upstream.read(input);
+                        input.flip();
+                        if (inputBytes < 0) {
+                            throw new EOFException("Truncated entry in change set " + changeSetFile);
+                        }
+                        inflater.setInput(input);
+                    }
+                    if (inflater.inflate(buffer) == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Change set entry needs a dictionary in " + changeSetFile);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Malformed entry in change set " + changeSetFile + ": " + e.getMessage());
+            }
+            int bytesRead = buffer.position() - start;
+            return bytesRead == 0 && inflater.finished() ? -1 : bytesRead;
+        }
+    }
+
+    /**
+     * The length-delimited records of an entity entry, read from a window over the mapped or inflated entry.
+     */
+    private final class EntryRecords {
+        private ByteBuffer window;
+        private final Source source;
+        private final List<Inflater> inflaters;
+        private boolean ended;
+        private long recordIndex;
+
+        EntryRecords(ByteBuffer window, Source source, List<Inflater> inflaters) {
+            this.window = window;
+            this.source = source;
+            this.inflaters = inflaters;
+            this.ended = source == null;
+        }
+
+        /**
+         * Returns the next record, as a buffer that is only valid until the next call.
+         *
+         * @return the record, or {@code null} at the end of the entry
+         */
+        ByteBuffer next() throws IOException {
+            if (!fill(1)) {
+                return null;
+            }
+            fill(5);
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift >= Integer.SIZE) {
+                    throw new IOException("Malformed change set record length in " + changeSetFile);
+                }
+                if (!window.hasRemaining()) {
+                    throw new EOFException("Truncated change set record length in " + changeSetFile);
+                }
+                byte b = window.get();
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (!fill(length)) {
+                throw new EOFException("Truncated change set record " + recordIndex + " in " + changeSetFile);
+            }
+            ByteBuffer record = window.slice(window.position(), length);
+            window.position(window.position() + length);
+            recordIndex++;
+            return record;
+        }
+
+        /**
+         * Skips bytes of the entry without parsing them, as to the offset of a record in a chunk.
+         */
+        void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                if (!fill(1)) {
+                    throw new EOFException("Truncated entry in change set " + changeSetFile);
+                }
+                int skipped = (int) Math.min(bytes, window.remaining());
+                window.position(window.position() + skipped);
+                bytes -= skipped;
+            }
+        }
+
+        /**
+         * Reads from the source until the window holds at least the requested bytes, or the entry ends.
+         *
+         * @return {@code true} if the window holds the requested bytes
+         */
+        private boolean fill(int bytes) throws IOException {
+            while (window.remaining() < bytes && !ended) {
+                if (window.capacity() < bytes) {
+                    window = ByteBuffer.allocate(Math.max(bytes, window.capacity() * 2)).put(window);
+                } else {
+                    window.compact();
+                }
+                ended = source.read(window) < 0;
+                window.flip();
+            }
+            return window.remaining() >= bytes;
+        }
+
+        void close() {
+            if (openRecords.remove(this)) {
+                inflaters.forEach(Inflater::end);
+            }
+        }
+    }
+
+    /**
+     * Parses the messages of a range of entity entries. A range of several entries splits in two, so the chunks of
+     * a chunked change set may be parsed in parallel.
+     */
+    private final class MessageSpliterator implements Spliterator<TinkarMsg> {
+        private int nextEntry;
+        private final int endEntry;
+        private long skipRecords;
+        private final Predicate<ByteBuffer> recordFilter;
+        private EntryRecords records;
+
+        MessageSpliterator(int nextEntry, int endEntry, long skipRecords, Predicate<ByteBuffer> recordFilter) {
+            this.nextEntry = nextEntry;
+            this.endEntry = endEntry;
+            this.skipRecords = skipRecords;
+            this.recordFilter = recordFilter;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TinkarMsg> action) {
+            try {
+                while (true) {
+                    if (records == null) {
+                        if (nextEntry >= endEntry) {
+                            return false;
+                        }
+                        records = openRecords(entityEntries.get(nextEntry++));
+                        for (; skipRecords > 0 && records.next() != null; skipRecords--) {
+                            // Skipped without parsing.
+                        }
+                    }
+                    ByteBuffer record = records.next();
+                    if (record == null) {
+                        records.close();
+                        records = null;
+                        continue;
+                    }
+                    if (recordFilter != null && !recordFilter.test(record)) {
+                        continue;
+                    }
+                    TinkarMsg pbTinkarMsg = TinkarMsg.parseFrom(record);
+                    action.accept(publicIds == null ? pbTinkarMsg : publicIds.resolve(pbTinkarMsg));
+                    return true;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Spliterator<TinkarMsg> trySplit() {
+            if (records != null || endEntry - nextEntry < 2) {
+                return null;
+            }
+            int splitEntry = nextEntry + (endEntry - nextEntry) / 2;
+            MessageSpliterator prefix = new MessageSpliterator(nextEntry, splitEntry, skipRecords, recordFilter);
+            nextEntry = splitEntry;
+            skipRecords = 0;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            if (entryRecordCounts == null) {
+                return Long.MAX_VALUE;
+            }
+            long estimate = -skipRecords;
+            for (int entry = records == null ? nextEntry : nextEntry - 1; entry < endEntry; entry++) {
+                estimate += entryRecordCounts[entry];
+            }
+            return Math.max(0, estimate);
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    /**
+     * An input stream over the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int bytesRead = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.eclipse.collections.api.factory.primitive.IntObjectMaps;
+import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
+
+/**
+ * The NidBitmap class is a compact set of nids. Nids are allocated densely, so the set is divided into pages of
+ * 65,536 nids, each a bitmap of 8 KiB, created when the first nid in its range is added. A set of the nids written
+ * in a session therefore takes about one bit per nid, rather than the tens of bytes per nid of a hash set.
+ *
+ * The NidBitmap class is not thread safe.
+ */
+final class NidBitmap {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_WORDS = (1 << PAGE_SHIFT) / Long.SIZE;
+
+    private final MutableIntObjectMap<long[]> pages = IntObjectMaps.mutable.empty();
+    private int size;
+
+    /**
+     * Adds a nid to the set.
+     *
+     * @param nid the nid to add
+     * @return {@code true} if the nid was not already in the set
+     */
+    boolean add(int nid) {
+        long[] page = pages.getIfAbsentPut(nid >> PAGE_SHIFT, () -> new long[PAGE_WORDS]);
+        int bit = nid & ((1 << PAGE_SHIFT) - 1);
+        long mask = 1L << bit;
+        if ((page[bit >>> 6] & mask) != 0) {
+            return false;
+        }
+        page[bit >>> 6] |= mask;
+        size++;
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if the nid is in the set.
+     *
+     * @param nid the nid
+     * @return {@code true} if the nid was added
+     */
+    boolean contains(int nid) {
+        long[] page = pages.get(nid >> PAGE_SHIFT);
+        if (page == null) {
+            return false;
+        }
+        int bit = nid & ((1 << PAGE_SHIFT) - 1);
+        return (page[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Returns the number of nids in the set.
+     *
+     * @return the nid count
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,476 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The NidWriteQueue class is a bounded, single consumer queue of primitive nids that sits between the thread
+ * that broadcasts entity changes and the thread that writes them to the change set file.
+ *
+ * Nids are held in a ring buffer of primitive ints, so no boxing occurs on the hot path. When the ring buffer
+ * is full, the {@link BackpressurePolicy} provided with each offer determines whether the caller blocks, the nid is
+ * spilled to a temporary file on disk, or the nid is rejected. Once nids have been spilled, all further nids are
+ * spilled until the spill file is drained so that the arrival order is preserved.
+ *
+ * No file I/O is done while the queue lock is held, so a slow disk delays only the thread doing the I/O. Spilled nids
+ * are collected in memory buffers; the offering thread that fills a buffer writes it to the spill file after releasing
+ * the lock, and the consumer reads spilled nids from the file with the lock released. Nids in buffers not yet written
+ * are drained from memory, so the consumer never waits for a write.
+ */
+public class NidWriteQueue implements AutoCloseable {
+    private static final int SPILL_RECORD_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int SPILL_BUFFER_RECORDS = 4096;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock spillWriteLock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+
+    private final int capacity;
+    private final int[] nids;
+    private final long[] enqueueNanos;
+    private final Path spillFolder;
+    private final ArrayDeque<ByteBuffer> unwrittenSpills = new ArrayDeque<>();
+    private ByteBuffer spillBuffer = ByteBuffer.allocate(SPILL_RECORD_BYTES * SPILL_BUFFER_RECORDS);
+
+    private int head;
+    private int tail;
+    private int size;
+    private int inFlight;
+    private long inFlightEnqueueNanos;
+    private int maxDepth;
+    private long enqueuedCount;
+    private long writtenCount;
+    private long rejectedCount;
+    private boolean closed;
+    private boolean wakeUpRequested;
+
+    private FileChannel spillChannel;
+    private Path spillFile;
+    private long spillReadPosition;
+    private long spillFileEnd;
+    private long spilledCount;
+
+    /**
+     * Creates a new NidWriteQueue.
+     *
+     * @param capacity    the maximum number of nids held in memory
+     * @param spillFolder the folder in which a spill file is created if the {@link BackpressurePolicy#SPILL} policy is used
+     */
+    public NidWriteQueue(int capacity, Path spillFolder) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.nids = new int[capacity];
+        this.enqueueNanos = new long[capacity];
+        this.spillFolder = spillFolder;
+    }
+
+    /**
+     * Offers a nid to the queue, applying the provided backpressure policy if the queue is full.
+     *
+     * @param nid    the nid to enqueue
+     * @param policy the policy to apply if the queue is full
+     * @throws InterruptedException  if the policy is {@link BackpressurePolicy#BLOCK} and the thread is interrupted while waiting
+     * @throws IllegalStateException if the policy is {@link BackpressurePolicy#FAIL_FAST} and the queue is full,
+     *                               or if the queue has been closed
+     */
+    public void offer(int nid, BackpressurePolicy policy) throws InterruptedException {
+        boolean writeSpills;
+        lock.lock();
+        try {
+            enqueue(nid, policy, System.nanoTime());
+        } finally {
+            writeSpills = !unwrittenSpills.isEmpty();
+            lock.unlock();
+        }
+        if (writeSpills) {
+            writeSpills();
+        }
+    }
+
+    /**
+     * Offers a range of nids to the queue under a single lock acquisition, applying the provided backpressure
+     * policy to each nid that finds the queue full. With {@link BackpressurePolicy#FAIL_FAST}, nids preceding
+     * the first rejected nid remain queued.
+     *
+     * @param batch  the array containing the nids to enqueue
+     * @param offset the index of the first nid to enqueue
+     * @param length the number of nids to enqueue
+     * @param policy the policy to apply if the queue is full
+     * @throws InterruptedException  if the policy is {@link BackpressurePolicy#BLOCK} and the thread is interrupted while waiting
+     * @throws IllegalStateException if the policy is {@link BackpressurePolicy#FAIL_FAST} and the queue is full,
+     *                               or if the queue has been closed
+     */
+    public void offerAll(int[] batch, int offset, int length, BackpressurePolicy policy) throws InterruptedException {
+        boolean writeSpills;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            for (int i = offset; i < offset + length; i++) {
+                enqueue(batch[i], policy, now);
+            }
+        } finally {
+            writeSpills = !unwrittenSpills.isEmpty();
+            lock.unlock();
+        }
+        if (writeSpills) {
+            writeSpills();
+        }
+    }
+
+    private void enqueue(int nid, BackpressurePolicy policy, long now) throws InterruptedException {
+        if (closed) {
+            rejectedCount++;
+            throw new IllegalStateException("Change set write queue is closed");
+        }
+        while (true) {
+            if (spilledCount > 0) {
+                // Keep arrival order: nothing may overtake nids already on disk, including nids spilled by
+                // another caller while this one waited for space.
+                spill(nid, now);
+                return;
+            }
+            if (size < capacity) {
+                break;
+            }
+            switch (policy) {
+                case BLOCK -> notFull.await();
+                case SPILL -> {
+                    spill(nid, now);
+                    return;
+                }
+                case FAIL_FAST -> {
+                    rejectedCount++;
+                    throw new IllegalStateException("Change set write queue is full. Capacity: " + capacity);
+                }
+            }
+            if (closed) {
+                rejectedCount++;
+                throw new IllegalStateException("Change set write queue is closed");
+            }
+        }
+        nids[tail] = nid;
+        enqueueNanos[tail] = now;
+        tail = (tail + 1) % capacity;
+        size++;
+        enqueuedCount++;
+        maxDepth = Math.max(maxDepth, size);
+        notEmpty.signal();
+    }
+
+    /**
+     * Removes up to {@code batch.length} nids from the queue, waiting up to the provided timeout for at least
+     * one nid to become available. The removed nids are considered in flight until {@link #markWritten(int)} is called.
+     *
+     * @param batch   the array to copy the nids into
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout
+     * @return the number of nids copied into the batch, 0 if the timeout elapsed,
+     * or -1 if the queue has been closed and is empty
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public int drainTo(int[] batch, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean ended = false;
+        lock.lock();
+        try {
+            long remainingNanos = unit.toNanos(timeout);
+            while (size == 0) {
+                if (spilledCount > 0) {
+                    refillFromSpill();
+                } else if (closed) {
+                    ended = true;
+                    return -1;
+                } else if (remainingNanos <= 0 || wakeUpRequested) {
+                    wakeUpRequested = false;
+                    return 0;
+                } else {
+                    remainingNanos = notEmpty.awaitNanos(remainingNanos);
+                }
+            }
+            int count = Math.min(batch.length, size);
+            inFlightEnqueueNanos = enqueueNanos[head];
+            for (int i = 0; i < count; i++) {
+                batch[i] = nids[head];
+                head = (head + 1) % capacity;
+            }
+            size -= count;
+            inFlight += count;
+            notFull.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+            if (ended) {
+                closeSpillChannel();
+            }
+        }
+    }
+
+    /**
+     * Acknowledges that nids previously returned by {@link #drainTo(int[], long, TimeUnit)} have been written.
+     *
+     * @param count the number of nids written
+     */
+    public void markWritten(int count) {
+        lock.lock();
+        try {
+            inFlight -= count;
+            writtenCount += count;
+            if (isDrained()) {
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every nid offered to the queue has been written.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitDrained() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!isDrained()) {
+                drained.await(1, TimeUnit.SECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Causes a consumer waiting in {@link #drainTo(int[], long, TimeUnit)} to return 0 immediately,
+     * so it can act on a request without waiting for the timeout to elapse.
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            wakeUpRequested = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total number of nids accepted by the queue.
+     *
+     * @return the number of nids enqueued
+     */
+    public long enqueuedCount() {
+        lock.lock();
+        try {
+            return enqueuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total number of nids acknowledged as written.
+     *
+     * @return the number of nids written
+     */
+    public long writtenCount() {
+        lock.lock();
+        try {
+            return writtenCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue metrics.
+     *
+     * @return the current queue metrics
+     */
+    public ChangeSetWriterMetrics metrics() {
+        lock.lock();
+        try {
+            long oldestNanos = 0;
+            if (inFlight > 0) {
+                oldestNanos = inFlightEnqueueNanos;
+            } else if (size > 0) {
+                oldestNanos = enqueueNanos[head];
+            }
+            long lagMillis = oldestNanos == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestNanos);
+            return new ChangeSetWriterMetrics(capacity, size, maxDepth, spilledCount,
+                    enqueuedCount, writtenCount, rejectedCount, lagMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue. Nids already in the queue may still be drained, after which
+     * {@link #drainTo(int[], long, TimeUnit)} returns -1. Further offers are rejected.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isDrained() {
+        return size == 0 && spilledCount == 0 && inFlight == 0;
+    }
+
+    /**
+     * Adds a nid to the spill buffer, queueing the buffer to be written to the spill file once it is full.
+     */
+    private void spill(int nid, long now) {
+        spillBuffer.putInt(nid).putLong(now);
+        spilledCount++;
+        enqueuedCount++;
+        if (!spillBuffer.hasRemaining()) {
+            unwrittenSpills.add(spillBuffer.flip());
+            spillBuffer = ByteBuffer.allocate(SPILL_RECORD_BYTES * SPILL_BUFFER_RECORDS);
+        }
+    }
+
+    /**
+     * Writes the full spill buffers to the end of the spill file, in order, without holding the queue lock.
+     * A buffer drained from memory while it was written is dropped, and the next one written in its place.
+     */
+    private void writeSpills() {
+        spillWriteLock.lock();
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                ByteBuffer bytes;
+                long start;
+                lock.lock();
+                try {
+                    buffer = unwrittenSpills.peekFirst();
+                    if (buffer == null) {
+                        return;
+                    }
+                    bytes = buffer.duplicate();
+                    start = spillFileEnd;
+                } finally {
+                    lock.unlock();
+                }
+                if (spillChannel == null) {
+                    Files.createDirectories(spillFolder);
+                    spillFile = Files.createTempFile(spillFolder, "nid-queue", ".spill");
+                    spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                int skipped = bytes.position();
+                long position = start;
+                while (bytes.hasRemaining()) {
+                    position += spillChannel.write(bytes, position);
+                }
+                lock.lock();
+                try {
+                    if (unwrittenSpills.peekFirst() == buffer) {
+                        unwrittenSpills.removeFirst();
+                        spillFileEnd = position;
+                        // The consumer drains a buffer from memory only once the file is read to its end, so any
+                        // nids drained from the buffer while it was written are at the read position.
+                        spillReadPosition += buffer.position() - skipped;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            // The buffers remain in memory, where they are drained from, and are written by the next spill.
+            throw new UncheckedIOException("Unable to spill nids to " + spillFolder, e);
+        } finally {
+            spillWriteLock.unlock();
+        }
+    }
+
+    private void closeSpillChannel() {
+        spillWriteLock.lock();
+        try {
+            if (spillChannel != null) {
+                spillChannel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to close spill file " + spillFile, e);
+        } finally {
+            spillChannel = null;
+            spillWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Moves spilled nids into the empty ring buffer, in arrival order: from the spill file, then from the buffers not
+     * yet written to it, then from the buffer being filled. The spill file is read with the lock released; offers
+     * spill rather than use the ring buffer while nids remain spilled, so the ring buffer is not changed meanwhile.
+     * Called with the lock held.
+     */
+    private void refillFromSpill() {
+        int room = Math.min(SPILL_BUFFER_RECORDS, capacity - size);
+        if (spillReadPosition < spillFileEnd) {
+            long readPosition = spillReadPosition;
+            ByteBuffer readBuffer = ByteBuffer.allocate((int) Math.min(spillFileEnd - readPosition,
+                    (long) SPILL_RECORD_BYTES * room));
+            lock.unlock();
+            try {
+                while (readBuffer.hasRemaining()) {
+                    int read = spillChannel.read(readBuffer, readPosition + readBuffer.position());
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of spill file " + spillFile);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read spilled nids from " + spillFile, e);
+            } finally {
+                lock.lock();
+            }
+            // The read position is only advanced once the records are read in full, so a failed read can be retried.
+            spillReadPosition = readPosition + readBuffer.capacity();
+            refillFrom(readBuffer.flip(), room);
+        } else if (!unwrittenSpills.isEmpty()) {
+            ByteBuffer buffer = unwrittenSpills.peekFirst();
+            refillFrom(buffer, room);
+            if (!buffer.hasRemaining()) {
+                unwrittenSpills.removeFirst();
+            }
+        } else {
+            refillFrom(spillBuffer.flip(), room);
+            spillBuffer.compact();
+        }
+        maxDepth = Math.max(maxDepth, size);
+        if (spilledCount == 0) {
+            // Every spilled nid has been drained, so the spill file is written from its start again.
+            spillReadPosition = 0;
+            spillFileEnd = 0;
+        }
+    }
+
+    private void refillFrom(ByteBuffer records, int room) {
+        for (int i = 0; i < room && records.hasRemaining(); i++) {
+            nids[tail] = records.getInt();
+            enqueueNanos[tail] = records.getLong();
+            tail = (tail + 1) % capacity;
+            size++;
+            spilledCount--;
+        }
+    }
+}
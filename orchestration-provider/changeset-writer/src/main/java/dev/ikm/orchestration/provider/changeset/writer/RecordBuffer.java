@@ -0,0 +1,106 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The RecordBuffer class is a reusable, growable byte array that a protobuf message is serialized into before
+ * it is appended to a {@link ChangeSetSegment}.
+ *
+ * The message is serialized straight into the array by a {@link CodedOutputStream} over it, so it is written once,
+ * without an intermediate buffer, and no new array is allocated once the buffer has grown to the size of the largest
+ * message. Buffers are taken from a shared pool
+ * with {@link #acquire()} and returned with {@link #release()}, so a buffer filled by a transform thread can be
+ * appended by the writer thread and then reused. Buffers that grew beyond {@link #MAX_RETAINED_BYTES} are discarded
+ * on release, so an occasional very large entity does not pin its buffer for the life of the application.
+ */
+final class RecordBuffer {
+    static final int INITIAL_BYTES = 1 << 12;
+    static final int MAX_RETAINED_BYTES = 1 << 20;
+    static final int MAX_POOLED_BUFFERS = 256;
+
+    private static final ConcurrentLinkedQueue<RecordBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_COUNT = new AtomicInteger();
+
+    private byte[] bytes = new byte[INITIAL_BYTES];
+    private int length;
+
+    private RecordBuffer() {
+    }
+
+    /**
+     * Takes a buffer from the pool, or creates one if the pool is empty.
+     *
+     * @return an empty buffer
+     */
+    static RecordBuffer acquire() {
+        RecordBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return new RecordBuffer();
+        }
+        POOLED_COUNT.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns this buffer to the pool. The buffer must not be used after it is released.
+     */
+    void release() {
+        length = 0;
+        if (bytes.length > MAX_RETAINED_BYTES) {
+            return;
+        }
+        if (POOLED_COUNT.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            POOL.offer(this);
+        } else {
+            POOLED_COUNT.decrementAndGet();
+        }
+    }
+
+    /**
+     * Replaces the content of this buffer with the serialized message. If the message cannot be serialized,
+     * the buffer is left empty.
+     *
+     * @param message the message to serialize
+     * @throws IOException if the message cannot be serialized
+     */
+    void serialize(MessageLite message) throws IOException {
+        length = 0;
+        int size = message.getSerializedSize();
+        ensureCapacity(size);
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(bytes, 0, size);
+        message.writeTo(codedOutput);
+        codedOutput.checkNoSpaceLeft();
+        length = size;
+    }
+
+    /**
+     * Returns the array holding the content of this buffer, starting at index 0. The array is reused, and must not
+     * be retained after the buffer is released.
+     *
+     * @return the backing array
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes of content in this buffer.
+     *
+     * @return the content length
+     */
+    int length() {
+        return length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            // The content is replaced, so it is not copied.
+            bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The SegmentSealer class converts a {@link ChangeSetSegment} into a {@code .proto.zip} change set containing
+ * an {@code entities.proto} entry of length-delimited {@code TinkarMsg} records and a {@code META-INF/MANIFEST.MF} entry.
+ *
+ * When sealed with a {@link ChangeSetDictionary}, the records are instead deflated with the preset dictionary
+ * into an {@code entities.proto.deflate} entry, and the manifest names the dictionary. When sealed with a
+ * {@link ChangeSetPublicIds} encoder, the public ids the records reference are replaced by indexes into a table.
+ * Such change sets are read with {@link MappedChangeSetReader}.
+ *
+ * The zip file is written to a temporary file and atomically moved into place before the segment is deleted,
+ * so a crash during sealing leaves the segment to be recovered rather than a partial change set.
+ */
+public final class SegmentSealer {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentSealer.class);
+    public static final String ENTITIES_ENTRY = "entities.proto";
+    public static final String MANIFEST_ENTRY = "META-INF/MANIFEST.MF";
+    public static final String DICTIONARY_ENTITIES_ENTRY = "entities.proto.deflate";
+    public static final String DICTIONARY_ATTRIBUTE = "Change-Set-Dictionary";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private SegmentSealer() {
+    }
+
+    /**
+     * Seals a segment into a change set file, then deletes the segment.
+     *
+     * @param segmentFile     the segment to seal
+     * @param changeSetFile   the change set file to create
+     * @param manifestContent the content of the manifest entry
+     * @param compression     the compression of the entities entry
+     * @param dictionary      the preset dictionary to deflate the entities with, or {@code null} to use a zip entry
+     * @param index           the index of the entities, or {@code null} to write no index entry
+     * @param chunkKeys       the keys of the records to write a chunked change set, as described by
+     *                        {@link ChangeSetChunks}, or {@code null} to write a single entities entry
+     * @param publicIds       the encoder that replaces the references of the records with a public id table,
+     *                        as described by {@link ChangeSetPublicIds}, or {@code null} to write records unchanged
+     * @param replacedRecords the indexes of the records of the segment replaced by later records of the same entity,
+     *                        which are left out of the change set, or {@code null} to write every record
+     * @return the number of records written to the change set file
+     * @throws IOException if an I/O error occurs while reading the segment or writing the change set file
+     */
+    public static long seal(Path segmentFile, Path changeSetFile, String manifestContent, ChangeSetCompression compression,
+                            ChangeSetDictionary dictionary, ChangeSetIndex.Builder index,
+                            ChangeSetChunks.Keys chunkKeys, ChangeSetPublicIds.Encoder publicIds,
+                            BitSet replacedRecords) throws IOException {
+        return seal(segmentFile, changeSetFile, manifestContent, compression, dictionary, index, chunkKeys, publicIds,
+                replacedRecords, Map.of());
+    }
+
+    /**
+     * Seals a segment into a change set file with additional entries, then deletes the segment.
+     * Readers of change sets ignore entries they do not know.
+     *
+     * @param additionalEntries the content of additional entries, by entry name, such as the manifests of the
+     *                          change sets a compacted change set replaces
+     * @see #seal(Path, Path, String, ChangeSetCompression, ChangeSetDictionary, ChangeSetIndex.Builder,
+     *      ChangeSetChunks.Keys, ChangeSetPublicIds.Encoder, BitSet)
+     */
+    static long seal(Path segmentFile, Path changeSetFile, String manifestContent, ChangeSetCompression compression,
+                     ChangeSetDictionary dictionary, ChangeSetIndex.Builder index,
+                     ChangeSetChunks.Keys chunkKeys, ChangeSetPublicIds.Encoder publicIds,
+                     BitSet replacedRecords, Map<String, byte[]> additionalEntries) throws IOException {
+        RecordSource records = new RecordSource(segmentFile, publicIds, replacedRecords);
+        Path tempFile = changeSetFile.resolveSibling(changeSetFile.getFileName() + TEMP_SUFFIX);
+        long recordCount;
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            if (chunkKeys != null) {
+                if (replacedRecords != null) {
+                    chunkKeys.remove(replacedRecords);
+                }
+                ChangeSetChunks.Writer chunkWriter = new ChangeSetChunks.Writer(zos, chunkKeys, compression, dictionary,
+                        ChangeSetWriterKeys.CHUNK_BYTES.getInt());
+                records.read(chunkWriter);
+                recordCount = chunkWriter.finish();
+            } else if (dictionary != null) {
+                recordCount = writeDictionaryEntities(zos, records, compression, dictionary);
+                zos.closeEntry();
+            } else {
+                zos.setLevel(compression.deflaterLevel());
+                zos.putNextEntry(compression == ChangeSetCompression.STORED ?
+                        storedEntitiesEntry(records) : new ZipEntry(ENTITIES_ENTRY));
+                recordCount = writeEntities(zos, records);
+                zos.closeEntry();
+            }
+            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+            zos.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            zos.write(manifestContent.getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+            if (index != null) {
+                zos.putNextEntry(new ZipEntry(ChangeSetIndex.INDEX_ENTRY));
+                index.write(zos);
+                zos.closeEntry();
+            }
+            if (publicIds != null) {
+                zos.putNextEntry(new ZipEntry(ChangeSetPublicIds.TABLE_ENTRY));
+                publicIds.write(zos);
+                zos.closeEntry();
+            }
+            for (Map.Entry<String, byte[]> additionalEntry : additionalEntries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(additionalEntry.getKey()));
+                zos.write(additionalEntry.getValue());
+                zos.closeEntry();
+            }
+        }
+        Files.move(tempFile, changeSetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(segmentFile);
+        try {
+            // The entities came from this datastore, so the change set need not be loaded into it.
+            ChangeSetLedger.forFolder(changeSetFile.toAbsolutePath().getParent()).recordSealed(changeSetFile, recordCount);
+        } catch (IOException e) {
+            LOG.warn("Unable to record change set " + changeSetFile + " in the ledger; it will be loaded again", e);
+        }
+        return recordCount;
+    }
+
+    /**
+     * Copies the records of the segment to the stream, each prefixed with its length as a varint.
+     *
+     * @return the number of records written
+     */
+    private static long writeEntities(OutputStream out, RecordSource records) throws IOException {
+        byte[] lengthPrefix = new byte[5];
+        return records.read((record, length) -> {
+            out.write(lengthPrefix, 0, varint32(lengthPrefix, length));
+            out.write(record, 0, length);
+        });
+    }
+
+    /**
+     * The records of a segment to be sealed: those not replaced by a later record, encoded with the public id
+     * encoder if there is one.
+     */
+    private record RecordSource(Path segmentFile, ChangeSetPublicIds.Encoder publicIds, BitSet replacedRecords) {
+        /**
+         * Reads the records to be sealed.
+         *
+         * @return the number of records passed to the consumer
+         */
+        long read(ChangeSetSegment.RecordConsumer consumer) throws IOException {
+            ChangeSetSegment.RecordConsumer recordConsumer = publicIds == null ? consumer : publicIds.encoding(consumer);
+            if (replacedRecords == null || replacedRecords.isEmpty()) {
+                return ChangeSetSegment.read(segmentFile, recordConsumer);
+            }
+            int[] recordIndex = {0};
+            long recordCount = ChangeSetSegment.read(segmentFile, (record, length) -> {
+                if (!replacedRecords.get(recordIndex[0]++)) {
+                    recordConsumer.accept(record, length);
+                }
+            });
+            return recordCount - replacedRecords.cardinality();
+        }
+    }
+
+    /**
+     * Writes the records of the segment to a dictionary entities entry. The entry holds raw deflate data that zip
+     * readers cannot decompress without the dictionary, so the zip itself only stores it.
+     *
+     * @return the number of records written
+     */
+    private static long writeDictionaryEntities(ZipOutputStream zos, RecordSource records, ChangeSetCompression compression,
+                                                ChangeSetDictionary dictionary) throws IOException {
+        zos.setLevel(Deflater.NO_COMPRESSION);
+        zos.putNextEntry(new ZipEntry(DICTIONARY_ENTITIES_ENTRY));
+        Deflater deflater = dictionary.newDeflater(compression.deflaterLevel());
+        try {
+            // Finished rather than closed, as closing would close the zip stream.
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(zos, deflater, 1 << 16);
+            long recordCount = writeEntities(deflaterOutputStream, records);
+            deflaterOutputStream.finish();
+            return recordCount;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the dictionary to seal a segment with, as configured by the {@link ChangeSetWriterKeys#DICTIONARY} key.
+     * The most recently saved dictionary in the folder of the segment is used, until the change sets sealed since it
+     * was saved exceed {@link ChangeSetWriterKeys#DICTIONARY_RETRAIN_BYTES}. A dictionary is then trained from the
+     * segment and the {@value ChangeSetDictionary#MAX_SAMPLE_FILES} most recently sealed change sets of the folder,
+     * and saved, to be used for this and later change sets. If none has been saved, one is trained the same way.
+     *
+     * @param segmentFile the segment to be sealed
+     * @param compression the compression of the entities
+     * @return the dictionary, or {@code null} if dictionaries are disabled, the entities are stored,
+     *         or no useful dictionary could be trained
+     * @throws IOException if an I/O error occurs while reading or saving the dictionary
+     */
+    static ChangeSetDictionary dictionaryFor(Path segmentFile, ChangeSetCompression compression) throws IOException {
+        if (!Boolean.parseBoolean(ChangeSetWriterKeys.DICTIONARY.get()) || compression == ChangeSetCompression.STORED) {
+            return null;
+        }
+        Path changeSetFolder = segmentFile.toAbsolutePath().getParent();
+        Optional<ChangeSetDictionary> latest = ChangeSetDictionary.latest(changeSetFolder);
+        List<SealedFile> sealedFiles = sealedFiles(changeSetFolder);
+        if (latest.isPresent()) {
+            long savedMillis = latest.get().savedTime(changeSetFolder).toMillis();
+            long sealedSinceBytes = 0;
+            for (SealedFile sealedFile : sealedFiles) {
+                if (sealedFile.lastModified() > savedMillis) {
+                    sealedSinceBytes += sealedFile.size();
+                }
+            }
+            if (sealedSinceBytes < ChangeSetWriterKeys.DICTIONARY_RETRAIN_BYTES.getLong()) {
+                return latest.get();
+            }
+        }
+        List<Path> sampleFiles = sealedFiles.stream()
+                .sorted(Comparator.comparingLong(SealedFile::lastModified).reversed())
+                .limit(ChangeSetDictionary.MAX_SAMPLE_FILES)
+                .map(SealedFile::file)
+                .toList();
+        ChangeSetDictionary trained = ChangeSetDictionary.train(segmentFile, sampleFiles);
+        if (trained.size() == 0) {
+            return latest.orElse(null);
+        }
+        LOG.info("Trained change set dictionary " + trained.id() + " of " + trained.size() + " bytes from "
+                + sampleFiles.size() + " change sets and segment " + segmentFile.getFileName());
+        // Saving marks the dictionary as the latest even if the sample yielded the same one, so it is not retrained
+        // until enough new change sets are sealed.
+        trained.save(changeSetFolder);
+        return trained;
+    }
+
+    /**
+     * A change set sealed in the folder of a segment.
+     */
+    private record SealedFile(Path file, long lastModified, long size) {
+    }
+
+    private static List<SealedFile> sealedFiles(Path changeSetFolder) throws IOException {
+        List<SealedFile> sealedFiles = new ArrayList<>();
+        try (DirectoryStream<Path> changeSetFiles = Files.newDirectoryStream(changeSetFolder, "*" + ChangeSetImportTask.CHANGE_SET_SUFFIX)) {
+            for (Path changeSetFile : changeSetFiles) {
+                BasicFileAttributes attributes = Files.readAttributes(changeSetFile, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    sealedFiles.add(new SealedFile(changeSetFile, attributes.lastModifiedTime().toMillis(), attributes.size()));
+                }
+            }
+        }
+        return sealedFiles;
+    }
+
+    /**
+     * Returns a public id encoder to seal a segment with, as configured by the {@link ChangeSetWriterKeys#PUBLIC_IDS} key.
+     *
+     * @return the encoder, or {@code null} if public id tables are disabled
+     */
+    static ChangeSetPublicIds.Encoder publicIdsEncoder() {
+        return Boolean.parseBoolean(ChangeSetWriterKeys.PUBLIC_IDS.get()) ? new ChangeSetPublicIds.Encoder() : null;
+    }
+
+    /**
+     * Creates an uncompressed entities entry. A stored zip entry must declare its size and checksum before its
+     * content, so the segment is read once to compute them before it is copied. Encoding the records again when
+     * they are copied yields the same bytes, as every public id has been added to the table by then.
+     *
+     * @param records the records to be stored
+     * @return the entities entry
+     * @throws IOException if an I/O error occurs while reading the segment
+     */
+    private static ZipEntry storedEntitiesEntry(RecordSource records) throws IOException {
+        CRC32 crc32 = new CRC32();
+        LongAdder size = new LongAdder();
+        byte[] lengthPrefix = new byte[5];
+        records.read((record, length) -> {
+            int prefixLength = varint32(lengthPrefix, length);
+            crc32.update(lengthPrefix, 0, prefixLength);
+            crc32.update(record, 0, length);
+            size.add(prefixLength + length);
+        });
+        ZipEntry entry = new ZipEntry(ENTITIES_ENTRY);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size.sum());
+        entry.setCompressedSize(size.sum());
+        entry.setCrc(crc32.getValue());
+        return entry;
+    }
+
+    /**
+     * Seals every segment left in the change set folder by a writer that did not close, for example because
+     * the JVM was terminated. Must be called before any writer is opened in the folder.
+     *
+     * @param changeSetFolder the folder containing the change sets
+     * @return the paths of the change set files recovered
+     * @throws IOException if an I/O error occurs while listing the folder
+     */
+    public static List<Path> recover(Path changeSetFolder) throws IOException {
+        List<Path> recovered = new ArrayList<>();
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(changeSetFolder, "*" + ChangeSetSegment.SEGMENT_SUFFIX)) {
+            for (Path segmentFile : segments) {
+                try {
+                    recoverSegment(segmentFile).ifPresent(recovered::add);
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Unable to recover change set segment " + segmentFile, e);
+                }
+            }
+        }
+        return recovered;
+    }
+
+    private static Optional<Path> recoverSegment(Path segmentFile) throws IOException {
+        ChangeSetManifest manifest = new ChangeSetManifest();
+        ChangeSetSegment.read(segmentFile, (record, length) ->
+                manifest.add(TinkarMsg.parseFrom(ByteBuffer.wrap(record, 0, length)).getValueCase()));
+        if (manifest.totalCount() == 0) {
+            Files.delete(segmentFile);
+            return Optional.empty();
+        }
+        Path changeSetFile = ChangeSetSegment.changeSetFileFor(segmentFile);
+        ChangeSetCompression compression = ChangeSetWriterKeys.COMPRESSION.getEnum(ChangeSetCompression.class);
+        ChangeSetDictionary dictionary = dictionaryFor(segmentFile, compression);
+        ChangeSetPublicIds.Encoder publicIds = publicIdsEncoder();
+        seal(segmentFile, changeSetFile, manifest.render(ChangeSetWriterKeys.WRITE_MODE.getEnum(ChangeSetWriteMode.class),
+                1, compression, dictionary, publicIds != null), compression, dictionary, null, null, publicIds, null);
+        LOG.info("Recovered " + manifest.totalCount() + " entities from change set segment " + segmentFile);
+        return Optional.of(changeSetFile);
+    }
+
+    /**
+     * Encodes an int as a protobuf base 128 varint, the length prefix used by {@code TinkarMsg.writeDelimitedTo},
+     * into an array of at least five bytes.
+     *
+     * @param bytes the array to encode into, starting at index 0
+     * @param value the value to encode
+     * @return the number of bytes encoded
+     */
+    static int varint32(byte[] bytes, int value) {
+        int index = 0;
+        while ((value & ~0x7F) != 0) {
+            bytes[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[index++] = (byte) value;
+        return index;
+    }
+}
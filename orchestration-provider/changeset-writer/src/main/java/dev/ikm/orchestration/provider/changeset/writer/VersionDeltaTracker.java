@@ -0,0 +1,194 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.StampEntity;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.factory.primitive.IntLongMaps;
+import org.eclipse.collections.api.list.ImmutableList;
+import org.eclipse.collections.api.list.primitive.ImmutableIntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.map.primitive.MutableIntLongMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The VersionDeltaTracker class determines which versions of an entity are new, so that a change set can contain
+ * only the versions written since the entity was last written, rather than the entire chronology.
+ *
+ * A version is new if its stamp is uncommitted, or if its stamp time is later than both the time watermark provided
+ * at construction and the latest committed stamp time previously written for the entity. The first time an entity
+ * is written with a watermark of {@link Long#MIN_VALUE}, the entire chronology is written.
+ *
+ * Loading a delta merges its versions into the chronology already in the datastore, so a delta change set
+ * is only complete when loaded after the change sets that precede it.
+ *
+ * The latest time written for each entity is saved in {@value #WATERMARKS_FILE}, next to the change set folder like the
+ * {@link ChangeSetLedger}, once the change set containing those versions is sealed, so a restarted writer continues
+ * from the same watermarks rather than writing entire chronologies again. The file is keyed by nid, so it describes
+ * the local datastore only; if it is missing or unreadable, entire chronologies are written once more, which is
+ * larger but still correct, as loading merges versions.
+ */
+public class VersionDeltaTracker {
+    static final String WATERMARKS_FILE = "changeset-delta-watermarks.bin";
+    static final int WATERMARKS_MAGIC = 0x544B4457; // "TKDW"
+    static final int WATERMARKS_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final MutableIntLongMap lastWrittenTimes = IntLongMaps.mutable.empty();
+    private final long sinceTime;
+
+    /**
+     * Creates a new VersionDeltaTracker.
+     *
+     * @param sinceTime the epoch millisecond time watermark; versions at or before this time are never written
+     */
+    public VersionDeltaTracker(long sinceTime) {
+        this.sinceTime = sinceTime;
+    }
+
+    /**
+     * Creates a VersionDeltaTracker that only writes versions committed after the provided stamp.
+     *
+     * @param stamp the stamp whose time is used as the watermark
+     * @return the tracker
+     */
+    public static VersionDeltaTracker sinceStamp(StampEntity<?> stamp) {
+        return new VersionDeltaTracker(stamp.time());
+    }
+
+    /**
+     * Returns the watermarks file of a change set folder, kept next to the folder rather than in it, as the change set
+     * folder is shared while the nids of the watermarks are those of the local datastore.
+     *
+     * @param changeSetFolder the change set folder
+     * @return the path of the watermarks file
+     */
+    static Path watermarksFile(Path changeSetFolder) {
+        return changeSetFolder.toAbsolutePath().normalize().resolveSibling(WATERMARKS_FILE);
+    }
+
+    /**
+     * Creates a VersionDeltaTracker continuing from the watermarks saved in a file.
+     *
+     * @param watermarksFile the file written by {@link Watermarks#save(Path)}
+     * @param sinceTime      the epoch millisecond time watermark; versions at or before this time are never written
+     * @return the tracker, with no entity watermarks if the file does not exist
+     * @throws IOException if the file is malformed, or an I/O error occurs while reading it
+     */
+    static VersionDeltaTracker load(Path watermarksFile, long sinceTime) throws IOException {
+        VersionDeltaTracker tracker = new VersionDeltaTracker(sinceTime);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(watermarksFile)))) {
+            if (in.readInt() != WATERMARKS_MAGIC || in.readInt() != WATERMARKS_VERSION) {
+                throw new IOException("Unsupported change set delta watermarks " + watermarksFile);
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                tracker.lastWrittenTimes.put(in.readInt(), in.readLong());
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing written yet.
+        }
+        return tracker;
+    }
+
+    /**
+     * Returns a copy of the watermarks of the entities written so far, to be saved once the change sets containing
+     * their versions are sealed.
+     *
+     * @return the watermarks
+     */
+    synchronized Watermarks watermarks() {
+        int[] nids = new int[lastWrittenTimes.size()];
+        long[] times = new long[nids.length];
+        int[] index = {0};
+        lastWrittenTimes.forEachKeyValue((nid, time) -> {
+            nids[index[0]] = nid;
+            times[index[0]++] = time;
+        });
+        return new Watermarks(nids, times);
+    }
+
+    /**
+     * The latest committed stamp time written for each entity, as of a point in time.
+     *
+     * @param nids  the nids of the entities
+     * @param times the latest stamp time written for the entity at the same index
+     */
+    record Watermarks(int[] nids, long[] times) {
+        /**
+         * Writes the watermarks to a file, replacing it atomically.
+         *
+         * @param watermarksFile the file to write
+         * @throws IOException if an I/O error occurs while writing
+         */
+        void save(Path watermarksFile) throws IOException {
+            Path tempFile = watermarksFile.resolveSibling(watermarksFile.getFileName() + TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(WATERMARKS_MAGIC);
+                out.writeInt(WATERMARKS_VERSION);
+                out.writeInt(nids.length);
+                for (int i = 0; i < nids.length; i++) {
+                    out.writeInt(nids[i]);
+                    out.writeLong(times[i]);
+                }
+            }
+            Files.move(tempFile, watermarksFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Returns the time watermark provided at construction.
+     *
+     * @return the epoch millisecond time watermark
+     */
+    public long sinceTime() {
+        return sinceTime;
+    }
+
+    /**
+     * Returns the indexes, within {@code entity.versions()}, of the versions that have not been written.
+     *
+     * @param entity the entity to be written
+     * @return the indexes of the new versions, empty if there are no new versions
+     */
+    public synchronized ImmutableIntList newVersionIndexes(Entity<? extends EntityVersion> entity) {
+        long watermark = Math.max(sinceTime, lastWrittenTimes.getIfAbsent(entity.nid(), Long.MIN_VALUE));
+        ImmutableList<? extends EntityVersion> versions = entity.versions();
+        MutableIntList indexes = IntLists.mutable.withInitialCapacity(versions.size());
+        for (int i = 0; i < versions.size(); i++) {
+            long time = versions.get(i).stamp().time();
+            if (time == Long.MAX_VALUE || time > watermark) {
+                indexes.add(i);
+            }
+        }
+        return indexes.toImmutable();
+    }
+
+    /**
+     * Records that the versions of the entity have been written. Uncommitted versions do not advance the
+     * watermark, so they are written again once committed.
+     *
+     * @param entity the entity that was written
+     */
+    public synchronized void recordWritten(Entity<? extends EntityVersion> entity) {
+        long latestCommittedTime = Long.MIN_VALUE;
+        for (EntityVersion version : entity.versions()) {
+            long time = version.stamp().time();
+            if (time != Long.MAX_VALUE) {
+                latestCommittedTime = Math.max(latestCommittedTime, time);
+            }
+        }
+        if (latestCommittedTime != Long.MIN_VALUE) {
+            long previousTime = lastWrittenTimes.getIfAbsent(entity.nid(), Long.MIN_VALUE);
+            lastWrittenTimes.put(entity.nid(), Math.max(previousTime, latestCommittedTime));
+        }
+    }
+}
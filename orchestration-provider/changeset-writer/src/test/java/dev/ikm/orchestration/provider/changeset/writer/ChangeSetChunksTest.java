@@ -0,0 +1,117 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicIds;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetChunksTest {
+    private static final int RECORD_COUNT = 500;
+
+    @Test
+    void findsEveryRecordByItsKey() throws IOException {
+        UUID[] uuids = new UUID[RECORD_COUNT];
+        ChangeSetChunks.Keys keys = new ChangeSetChunks.Keys();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            uuids[i] = UUID.randomUUID();
+            keys.add(PublicIds.of(uuids[i]));
+        }
+        Map<String, byte[]> entries = write(keys, RECORD_COUNT);
+        ChangeSetChunks chunks = ChangeSetChunks.read(
+                new ByteArrayInputStream(entries.get(ChangeSetChunks.TABLE_ENTRY)), "test");
+        assertTrue(chunks.chunks().size() > 1, "records should span several chunks");
+        assertEquals(RECORD_COUNT, chunks.recordCount());
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            int recordIndex = chunks.recordIndex(PublicIds.of(uuids[i]));
+            assertEquals(i, recordIndex);
+            byte[] chunk = entries.get(chunks.chunks().get(chunks.recordChunk(recordIndex)).entryName());
+            int offset = chunks.recordOffset(recordIndex);
+            int length = chunk[offset];
+            assertArrayEquals(record(i), Arrays.copyOfRange(chunk, offset + 1, offset + 1 + length));
+        }
+        assertEquals(-1, chunks.recordIndex(PublicIds.of(UUID.randomUUID())));
+        // Any UUID of the public id may be the key.
+        assertEquals(7, chunks.recordIndex(PublicIds.of(UUID.randomUUID(), uuids[7])));
+    }
+
+    @Test
+    void findsTheLastRecordOfARepeatedKey() throws IOException {
+        UUID repeated = UUID.randomUUID();
+        ChangeSetChunks.Keys keys = new ChangeSetChunks.Keys();
+        keys.add(PublicIds.of(repeated));
+        keys.add(PublicIds.of(UUID.randomUUID()));
+        keys.add(PublicIds.of(repeated));
+        Map<String, byte[]> entries = write(keys, 3);
+        ChangeSetChunks chunks = ChangeSetChunks.read(
+                new ByteArrayInputStream(entries.get(ChangeSetChunks.TABLE_ENTRY)), "test");
+        assertEquals(2, chunks.recordIndex(PublicIds.of(repeated)));
+    }
+
+    @Test
+    void readsUnsortedVersionOneTables() throws IOException {
+        UUID[] uuids = {new UUID(9, 9), new UUID(1, 1), new UUID(5, 5)};
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+        tableOut.writeInt(ChangeSetChunks.TABLE_MAGIC);
+        tableOut.writeInt(1);
+        tableOut.writeInt(1);
+        tableOut.writeUTF(ChangeSetChunks.CHUNK_ENTRY_PREFIX + "00000.proto");
+        tableOut.writeInt(uuids.length);
+        tableOut.writeLong(uuids.length * 2L);
+        tableOut.writeInt(uuids.length);
+        for (int i = 0; i < uuids.length; i++) {
+            tableOut.writeLong(uuids[i].getMostSignificantBits());
+            tableOut.writeLong(uuids[i].getLeastSignificantBits());
+            tableOut.writeInt(0);
+            tableOut.writeInt(i * 2);
+        }
+        ChangeSetChunks chunks = ChangeSetChunks.read(new ByteArrayInputStream(table.toByteArray()), "test");
+        for (int i = 0; i < uuids.length; i++) {
+            int recordIndex = chunks.recordIndex(PublicIds.of(uuids[i]));
+            assertEquals(i, recordIndex);
+            assertEquals(i * 2, chunks.recordOffset(recordIndex));
+        }
+        assertEquals(-1, chunks.recordIndex(PublicIds.of(new UUID(3, 3))));
+    }
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes records as chunks, returning the uncompressed content of each zip entry.
+     */
+    private static Map<String, byte[]> write(ChangeSetChunks.Keys keys, int recordCount) throws IOException {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+            ChangeSetChunks.Writer writer = new ChangeSetChunks.Writer(zos, keys, ChangeSetCompression.DEFAULT, null, 256);
+            for (int i = 0; i < recordCount; i++) {
+                byte[] record = record(i);
+                writer.accept(record, record.length);
+            }
+            assertEquals(recordCount, writer.finish());
+        }
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            for (ZipEntry entry; (entry = zis.getNextEntry()) != null; ) {
+                entries.put(entry.getName(), zis.readAllBytes());
+            }
+        }
+        return entries;
+    }
+}
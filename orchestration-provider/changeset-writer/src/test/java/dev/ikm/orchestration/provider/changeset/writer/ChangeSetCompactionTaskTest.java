@@ -0,0 +1,246 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionMode;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetCompactionPolicy;
+import dev.ikm.tinkar.common.service.CachingService;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.ServiceKeys;
+import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetCompactionTaskTest {
+    private static final Instant MODIFIED = Instant.parse("2024-01-01T00:00:00Z");
+
+    @TempDir
+    Path dataStoreRoot;
+    Path changeSetFolder;
+    PublicId firstStamp = publicId(UUID.randomUUID());
+    PublicId secondStamp = publicId(UUID.randomUUID());
+    PublicId edited = publicId(UUID.randomUUID());
+    PublicId unedited = publicId(UUID.randomUUID());
+
+    @BeforeEach
+    void startDatastore() throws IOException {
+        changeSetFolder = Files.createDirectories(dataStoreRoot.resolve("changesets"));
+        // The archive writer transforms its records to entities, for the manifest and index of the archive.
+        CachingService.clearAll();
+        ServiceProperties.set(ServiceKeys.DATA_STORE_ROOT, dataStoreRoot.toFile());
+        PrimitiveData.selectControllerByName("Load Ephemeral Store");
+        PrimitiveData.start();
+    }
+
+    @AfterEach
+    void stopDatastore() {
+        PrimitiveData.stop();
+    }
+
+    @Test
+    void latestKeepsTheLastRecordOfEachEntity() throws Exception {
+        List<Path> run = writeRun(ChangeSetWriteMode.CHRONOLOGY);
+
+        assertEquals(2, (int) compactionTask(ChangeSetCompactionMode.LATEST).call());
+
+        Path archive = onlyArchive();
+        // The entity with a single record is written as soon as it is read, the other once its last record is.
+        assertEquals(List.of(concept(unedited, firstStamp), concept(edited, secondStamp)), messages(archive));
+        assertReplaced(run, archive);
+    }
+
+    @Test
+    void unionKeepsTheVersionsOfEveryRecord() throws Exception {
+        List<Path> run = writeRun(ChangeSetWriteMode.CHRONOLOGY);
+
+        assertEquals(2, (int) compactionTask(ChangeSetCompactionMode.UNION).call());
+
+        Path archive = onlyArchive();
+        assertEquals(List.of(concept(unedited, firstStamp), concept(edited, firstStamp, secondStamp)), messages(archive));
+        assertReplaced(run, archive);
+    }
+
+    @Test
+    void runWithADeltaFileKeepsTheVersionsOfEveryRecord() throws Exception {
+        List<Path> run = writeRun(ChangeSetWriteMode.DELTA);
+
+        assertEquals(2, (int) compactionTask(ChangeSetCompactionMode.LATEST).call());
+
+        Path archive = onlyArchive();
+        // A delta record holds only the versions new since the last record, so keeping the last would lose the first.
+        assertEquals(List.of(concept(unedited, firstStamp), concept(edited, firstStamp, secondStamp)), messages(archive));
+        assertReplaced(run, archive);
+        assertEquals(ChangeSetWriteMode.DELTA.name(),
+                ChangeSetReader.manifest(archive).getMainAttributes().getValue("Change-Set-Mode"));
+    }
+
+    @Test
+    void cancellingBetweenThePassesKeepsTheFiles() throws Exception {
+        List<Path> run = writeRun(ChangeSetWriteMode.CHRONOLOGY);
+        ChangeSetCompactionTask task = new ChangeSetCompactionTask(changeSetFolder, policy(ChangeSetCompactionMode.LATEST)) {
+            int completedUnits;
+
+            @Override
+            public void completedUnitOfWork() {
+                super.completedUnitOfWork();
+                // The first pass completes a unit for each file of the run.
+                if (++completedUnits == run.size()) {
+                    cancel();
+                }
+            }
+        };
+
+        assertThrows(CancellationException.class, task::call);
+
+        assertEquals(run, changeSetFolderFiles());
+        ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+        run.forEach(file -> assertNotNull(ledger.entry(file)));
+    }
+
+    @Test
+    void interruptedCompactionLosesNoVersions() throws Exception {
+        List<Path> run = writeRun(ChangeSetWriteMode.CHRONOLOGY);
+        Path copies = Files.createDirectories(dataStoreRoot.resolve("copies"));
+        for (Path file : run) {
+            Files.copy(file, copies.resolve(file.getFileName()), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        assertEquals(2, (int) compactionTask(ChangeSetCompactionMode.LATEST).call());
+        Path archive = onlyArchive();
+        // The task was interrupted after sealing the archive, before the files were deleted.
+        for (Path file : run) {
+            Files.copy(copies.resolve(file.getFileName()), file, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+
+        // The files are not in the ledger, so they are not merged again, and loading them applies the same versions.
+        assertEquals(0, (int) compactionTask(ChangeSetCompactionMode.LATEST).call());
+        List<TinkarMsg> loaded = new ArrayList<>();
+        for (Path file : changeSetFolderFiles()) {
+            loaded.addAll(messages(file));
+        }
+        assertTrue(loaded.contains(concept(edited, firstStamp)));
+        assertTrue(loaded.contains(concept(edited, secondStamp)));
+        assertTrue(loaded.contains(concept(unedited, firstStamp)));
+        assertTrue(Files.exists(archive));
+        run.forEach(file -> assertTrue(Files.exists(file)));
+    }
+
+    /**
+     * Writes two applied change sets: the first with both concepts, the second editing one of them, in a mode.
+     */
+    private List<Path> writeRun(ChangeSetWriteMode secondMode) throws IOException {
+        return List.of(
+                writeAppliedChangeSet("24-01-01 10꞉00~first.proto.zip", ChangeSetWriteMode.CHRONOLOGY,
+                        "2024-01-01T10:00:01Z", concept(edited, firstStamp), concept(unedited, firstStamp)),
+                writeAppliedChangeSet("24-01-01 10꞉00~second.proto.zip", secondMode,
+                        "2024-01-01T10:00:02Z", concept(edited, secondStamp)));
+    }
+
+    private ChangeSetCompactionTask compactionTask(ChangeSetCompactionMode mode) {
+        return new ChangeSetCompactionTask(changeSetFolder, policy(mode));
+    }
+
+    private static ChangeSetCompactionPolicy policy(ChangeSetCompactionMode mode) {
+        return new ChangeSetCompactionPolicy(Duration.ZERO, Long.MAX_VALUE, Long.MAX_VALUE, mode);
+    }
+
+    private void assertReplaced(List<Path> run, Path archive) throws IOException {
+        ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+        for (Path file : run) {
+            assertFalse(Files.exists(file));
+            assertNull(ledger.entry(file));
+        }
+        assertNotNull(ledger.entry(archive));
+        assertTrue(archive.getFileName().toString().startsWith("24-01-01 10꞉00~compacted-"));
+        assertEquals("2024-01-01T10:00:02Z",
+                ChangeSetReader.manifest(archive).getMainAttributes().getValue(ChangeSetManifest.SEAL_TIME_ATTRIBUTE));
+    }
+
+    private Path onlyArchive() throws IOException {
+        List<Path> files = changeSetFolderFiles();
+        assertEquals(1, files.size());
+        return files.getFirst();
+    }
+
+    /**
+     * Returns the files of the change set folder, which include any abandoned compaction segment.
+     */
+    private List<Path> changeSetFolderFiles() throws IOException {
+        try (Stream<Path> files = Files.list(changeSetFolder)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static List<TinkarMsg> messages(Path changeSetFile) throws IOException {
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+             Stream<TinkarMsg> messages = reader.messages()) {
+            return messages.toList();
+        }
+    }
+
+    private static TinkarMsg concept(PublicId concept, PublicId... stamps) {
+        ConceptChronology.Builder builder = ConceptChronology.newBuilder().setPublicId(concept);
+        for (PublicId stamp : stamps) {
+            builder.addConceptVersions(ConceptVersion.newBuilder().setStampChronologyPublicId(stamp));
+        }
+        return TinkarMsg.newBuilder().setConceptChronology(builder).build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+
+    /**
+     * Writes a version 1 change set of length-delimited records, and records it in the ledger as applied.
+     */
+    private Path writeAppliedChangeSet(String name, ChangeSetWriteMode mode, String sealTime, TinkarMsg... messages)
+            throws IOException {
+        Path changeSetFile = changeSetFolder.resolve(name);
+        try (OutputStream out = Files.newOutputStream(changeSetFile);
+             ZipOutputStream zos = new ZipOutputStream(out)) {
+            zos.putNextEntry(new ZipEntry(SegmentSealer.MANIFEST_ENTRY));
+            zos.write(("Manifest-Version: 1.0\nChange-Set-Mode: " + mode + "\n"
+                    + ChangeSetManifest.SEAL_TIME_ATTRIBUTE + ": " + sealTime + "\n\n").getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry(SegmentSealer.ENTITIES_ENTRY));
+            for (TinkarMsg message : messages) {
+                message.writeDelimitedTo(zos);
+            }
+            zos.closeEntry();
+        }
+        Files.setLastModifiedTime(changeSetFile, FileTime.from(MODIFIED));
+        ChangeSetLedger.forFolder(changeSetFolder).record(changeSetFile, ChangeSetLedger.sha256(changeSetFile), messages.length);
+        return changeSetFile;
+    }
+}
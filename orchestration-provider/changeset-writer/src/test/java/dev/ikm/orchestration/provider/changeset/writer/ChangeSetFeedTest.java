@@ -0,0 +1,67 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChangeSetFeedTest {
+    private static final int RECORD_BYTES = 64 * 1024;
+    // Far more than the socket buffers of a subscriber hold, so a subscriber that does not read stalls its socket.
+    private static final int RECORD_COUNT = 256;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void stalledSubscriberDoesNotBlockPublishing() throws Exception {
+        Path socketFile = folder.resolve("feed.sock");
+        try (ChangeSetFeed feed = new ChangeSetFeed(socketFile, 4L * RECORD_BYTES, ChangeSetFeedOverflow.DROP);
+             SocketChannel stalled = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+            awaitSubscriberCount(feed, 1);
+
+            assertEquals(Thread.State.TERMINATED, publishRecords(feed).getState());
+            // Records that do not fit in its buffer are dropped, and the subscriber stays connected.
+            assertEquals(1, feed.subscriberCount());
+        }
+    }
+
+    @Test
+    void stalledSubscriberIsDisconnectedWithoutBlockingPublishing() throws Exception {
+        Path socketFile = folder.resolve("feed.sock");
+        try (ChangeSetFeed feed = new ChangeSetFeed(socketFile, 4L * RECORD_BYTES, ChangeSetFeedOverflow.DISCONNECT);
+             SocketChannel stalled = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+            awaitSubscriberCount(feed, 1);
+
+            assertEquals(Thread.State.TERMINATED, publishRecords(feed).getState());
+            awaitSubscriberCount(feed, 0);
+        }
+    }
+
+    /**
+     * Publishes the records on another thread, as the writer thread does, and waits for it to finish.
+     */
+    private static Thread publishRecords(ChangeSetFeed feed) throws InterruptedException {
+        byte[] record = new byte[RECORD_BYTES];
+        Thread publisher = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                feed.publish(record, record.length);
+            }
+        });
+        publisher.join(TimeUnit.SECONDS.toMillis(10));
+        return publisher;
+    }
+
+    private static void awaitSubscriberCount(ChangeSetFeed feed, int subscriberCount) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (feed.subscriberCount() != subscriberCount && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(subscriberCount, feed.subscriberCount());
+    }
+}
@@ -0,0 +1,137 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.tinkar.common.id.PublicIds;
+import dev.ikm.tinkar.common.service.CachingService;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.ServiceKeys;
+import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetImportTaskTest {
+    @TempDir
+    Path dataStoreRoot;
+    Path changeSetFolder;
+    UUID stamp = UUID.randomUUID();
+    UUID appliedConcept = UUID.randomUUID();
+    UUID firstPendingConcept = UUID.randomUUID();
+    UUID secondPendingConcept = UUID.randomUUID();
+
+    @BeforeEach
+    void startDatastore() throws IOException {
+        changeSetFolder = Files.createDirectories(dataStoreRoot.resolve("changesets"));
+        CachingService.clearAll();
+        ServiceProperties.set(ServiceKeys.DATA_STORE_ROOT, dataStoreRoot.toFile());
+        PrimitiveData.selectControllerByName("Load Ephemeral Store");
+        PrimitiveData.start();
+    }
+
+    @AfterEach
+    void stopDatastore() {
+        PrimitiveData.stop();
+    }
+
+    @Test
+    void resumeSkipsExactlyTheRecordsAppliedBeforeTheCheckpoint() throws Exception {
+        TinkarMsg stampMessage = stamp(publicId(stamp), publicId(UUID.randomUUID()));
+        Path changeSetFile = writeChangeSet("24-01-01 10꞉00~resumed.proto.zip", stampMessage,
+                concept(publicId(appliedConcept), publicId(stamp)),
+                concept(publicId(firstPendingConcept), publicId(stamp)),
+                concept(publicId(secondPendingConcept), publicId(stamp)));
+        // An earlier import applied the first two records before it was interrupted. Only the stamp is put here, so
+        // the concept that was applied is found after resuming only if its record is applied again.
+        TinkarSchemaToEntityTransformer.getInstance().transform(stampMessage, EntityService.get()::putEntity, stampEntity -> { });
+        String sha256 = ChangeSetLedger.sha256(changeSetFile);
+        ChangeSetLedger.forFolder(changeSetFolder).recordCheckpoint(changeSetFile, sha256, 2);
+
+        assertEquals(1, (int) new ChangeSetImportTask(changeSetFolder).call());
+
+        assertFalse(exists(appliedConcept));
+        assertTrue(exists(firstPendingConcept));
+        assertTrue(exists(secondPendingConcept));
+        // The file is recorded as applied, and its checkpoint cleared.
+        ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+        assertNotNull(ledger.entry(changeSetFile));
+        assertEquals(0, ledger.checkpoint(changeSetFile, sha256));
+    }
+
+    private static boolean exists(UUID uuid) {
+        return EntityService.get().getEntity(PrimitiveData.nid(PublicIds.of(uuid))).isPresent();
+    }
+
+    /**
+     * Writes a version 1 change set of length-delimited records, with a manifest.
+     */
+    private Path writeChangeSet(String name, TinkarMsg... messages) throws IOException {
+        Path changeSetFile = changeSetFolder.resolve(name);
+        try (OutputStream out = Files.newOutputStream(changeSetFile);
+             ZipOutputStream zos = new ZipOutputStream(out)) {
+            zos.putNextEntry(new ZipEntry(SegmentSealer.MANIFEST_ENTRY));
+            zos.write(("Manifest-Version: 1.0\nTotal-Count: " + messages.length + "\n\n").getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry(SegmentSealer.ENTITIES_ENTRY));
+            for (TinkarMsg message : messages) {
+                message.writeDelimitedTo(zos);
+            }
+            zos.closeEntry();
+        }
+        return changeSetFile;
+    }
+
+    /**
+     * Returns a committed stamp whose status, author, module and path are all the provided concept.
+     */
+    private static TinkarMsg stamp(PublicId stamp, PublicId concept) {
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(stamp)
+                        .setFirstStampVersion(StampVersion.newBuilder()
+                                .setStatusPublicId(concept)
+                                .setTime(System.currentTimeMillis())
+                                .setAuthorPublicId(concept)
+                                .setModulePublicId(concept)
+                                .setPathPublicId(concept)
+                                .build()))
+                .build();
+    }
+
+    private static TinkarMsg concept(PublicId concept, PublicId stamp) {
+        return TinkarMsg.newBuilder()
+                .setConceptChronology(ConceptChronology.newBuilder()
+                        .setPublicId(concept)
+                        .addConceptVersions(ConceptVersion.newBuilder().setStampChronologyPublicId(stamp)))
+                .build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+}
@@ -0,0 +1,159 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicIds;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetIndexTest {
+    private static final int ENTITY_COUNT = 100;
+
+    @TempDir
+    Path changeSetFolder;
+
+    @Test
+    void findsTheChangeSetsContainingAnEntity() throws IOException {
+        UUID[] first = uuids(ENTITY_COUNT);
+        UUID[] second = uuids(ENTITY_COUNT);
+        Path firstFile = writeChangeSet("a.proto.zip", index(first, 0, 100, 200));
+        Path secondFile = writeChangeSet("b.proto.zip", index(second, ENTITY_COUNT, 300, 400));
+        Path unindexedFile = writeChangeSet("c.proto.zip", null);
+
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            assertEquals(List.of(firstFile, unindexedFile), ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(first[i])));
+            assertEquals(List.of(secondFile, unindexedFile), ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(second[i])));
+        }
+        // Any UUID of the public id may match.
+        assertEquals(List.of(secondFile, unindexedFile),
+                ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(UUID.randomUUID(), second[3])));
+        assertEquals(List.of(unindexedFile), ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(UUID.randomUUID())));
+    }
+
+    @Test
+    void bloomFilterRulesOutAbsentEntitiesFromTheStartOfTheIndex() throws IOException {
+        UUID[] present = uuids(ENTITY_COUNT);
+        byte[] index = index(present, 0, 100, 200);
+        // Keep only the header and the Bloom filter, so reading past the filter fails.
+        int bloomWordCount = ByteBuffer.wrap(index).getInt(Integer.BYTES * 2 + Long.BYTES * 2);
+        int filterEnd = Integer.BYTES * 3 + Long.BYTES * 2 + bloomWordCount * Long.BYTES;
+        writeChangeSet("truncated.proto.zip", Arrays.copyOf(index, filterEnd));
+
+        int ruledOut = 0;
+        for (int i = 0; i < 1000; i++) {
+            try {
+                if (ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(UUID.randomUUID())).isEmpty()) {
+                    ruledOut++;
+                }
+            } catch (IOException e) {
+                // A false positive of the filter, which reads on into the truncated UUIDs.
+            }
+        }
+        // Ten bits per UUID and seven hashes give a false positive rate under one percent.
+        assertTrue(ruledOut > 970, "only " + ruledOut + " of 1000 absent entities were ruled out by the Bloom filter");
+    }
+
+    @Test
+    void findsTheChangeSetsOverlappingATimeRange() throws IOException {
+        Path firstFile = writeChangeSet("a.proto.zip", index(uuids(2), 0, 100, 200));
+        Path secondFile = writeChangeSet("b.proto.zip", index(uuids(2), 2, 300, 400));
+        writeChangeSet("c.proto.zip", index(uuids(2), 4, Long.MAX_VALUE, Long.MAX_VALUE));
+
+        assertEquals(List.of(firstFile), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 150, 250));
+        assertEquals(List.of(firstFile, secondFile), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 200, 300));
+        assertEquals(List.of(secondFile), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 400, 400));
+        assertEquals(List.of(), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 201, 299));
+        assertEquals(List.of(), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 500, 600));
+    }
+
+    @Test
+    void findsTheChangeSetsContainingANidRange() throws IOException {
+        Path firstFile = writeChangeSet("a.proto.zip", index(uuids(10), 1, 100, 200));
+        Path secondFile = writeChangeSet("b.proto.zip", index(uuids(10), 21, 100, 200));
+
+        assertEquals(List.of(), ChangeSetIndex.filesContainingNids(changeSetFolder, 11, 20));
+        assertEquals(List.of(firstFile, secondFile), ChangeSetIndex.filesContainingNids(changeSetFolder, 10, 21));
+        assertEquals(List.of(secondFile), ChangeSetIndex.filesContainingNids(changeSetFolder, 25, 25));
+        assertEquals(List.of(firstFile), ChangeSetIndex.filesContainingNids(changeSetFolder, Integer.MIN_VALUE, 1));
+    }
+
+    @Test
+    void skipsHiddenFoldersAndOtherFiles() throws IOException {
+        UUID[] uuids = uuids(1);
+        byte[] index = index(uuids, 0, 100, 200);
+        Path synchronizedFile = writeChangeSet("other/b.proto.zip", index);
+        writeChangeSet(".git/a.proto.zip", index);
+        writeChangeSet("a.proto.zip.segment", index);
+
+        assertEquals(List.of(synchronizedFile), ChangeSetIndex.filesContaining(changeSetFolder, PublicIds.of(uuids[0])));
+        assertEquals(List.of(synchronizedFile), ChangeSetIndex.filesOverlappingTime(changeSetFolder, 0, 1000));
+    }
+
+    @Test
+    void readsTheIndexOfAChangeSet() throws IOException {
+        UUID[] uuids = uuids(ENTITY_COUNT);
+        Path changeSetFile = writeChangeSet("a.proto.zip", index(uuids, 0, 100, 200));
+        ChangeSetIndex index = ChangeSetIndex.read(changeSetFile);
+        assertEquals(100, index.earliestStampTime());
+        assertEquals(200, index.latestStampTime());
+        assertTrue(index.contains(PublicIds.of(uuids[ENTITY_COUNT - 1])));
+        assertFalse(index.contains(PublicIds.of(UUID.randomUUID())));
+        assertTrue(index.containsNidInRange(ENTITY_COUNT - 1, Integer.MAX_VALUE));
+        assertFalse(index.containsNidInRange(ENTITY_COUNT, Integer.MAX_VALUE));
+        assertNull(ChangeSetIndex.read(writeChangeSet("b.proto.zip", null)));
+    }
+
+    private static UUID[] uuids(int count) {
+        UUID[] uuids = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            uuids[i] = UUID.randomUUID();
+        }
+        return uuids;
+    }
+
+    /**
+     * Returns an index of entities with the provided UUIDs and consecutive nids, and of two stamps with the provided times.
+     */
+    private static byte[] index(UUID[] uuids, int firstNid, long earliestStampTime, long latestStampTime) throws IOException {
+        ChangeSetIndex.Builder builder = new ChangeSetIndex.Builder();
+        for (int i = 0; i < uuids.length; i++) {
+            long stampTime = i == 0 ? earliestStampTime : i == 1 ? latestStampTime : Long.MAX_VALUE;
+            builder.add(firstNid + i, new UUID[]{uuids[i]}, stampTime);
+        }
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        builder.write(index);
+        return index.toByteArray();
+    }
+
+    /**
+     * Writes a change set holding only an index entry, or no entry at all if the index is {@code null}.
+     */
+    private Path writeChangeSet(String name, byte[] index) throws IOException {
+        Path changeSetFile = changeSetFolder.resolve(name);
+        Files.createDirectories(changeSetFile.getParent());
+        try (OutputStream out = Files.newOutputStream(changeSetFile);
+             ZipOutputStream zos = new ZipOutputStream(out)) {
+            zos.putNextEntry(new ZipEntry(index == null ? SegmentSealer.MANIFEST_ENTRY : ChangeSetIndex.INDEX_ENTRY));
+            if (index != null) {
+                zos.write(index);
+            }
+            zos.closeEntry();
+        }
+        return changeSetFile;
+    }
+}
@@ -0,0 +1,73 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetLedgerTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void appendsEachChange() throws IOException {
+        Path changeSetFolder = Files.createDirectories(root.resolve("a/changesets"));
+        Path first = Files.writeString(changeSetFolder.resolve("first.proto.zip"), "first");
+        Path second = Files.writeString(changeSetFolder.resolve("second.proto.zip"), "second");
+        ChangeSetLedger ledger = ChangeSetLedger.forFolder(changeSetFolder);
+        ledger.record(first, "1", 1);
+        ledger.record(second, "2", 2);
+        ledger.record(first, "3", 3);
+        ledger.remove(List.of(second));
+
+        assertEquals(4, ledgerLines(changeSetFolder).size());
+        assertEquals(Set.of("first.proto.zip"), ledger.entries().keySet());
+        assertEquals("3", ledger.entry(first).sha256());
+        assertNull(ledger.entry(second));
+    }
+
+    @Test
+    void compactsTheLedgerWhenItIsRead() throws IOException {
+        Path appended = Files.createDirectories(root.resolve("a/changesets"));
+        Path first = Files.writeString(appended.resolve("first.proto.zip"), "first");
+        Path second = Files.writeString(appended.resolve("second.proto.zip"), "second");
+        ChangeSetLedger ledger = ChangeSetLedger.forFolder(appended);
+        ledger.record(first, "1", 1);
+        ledger.record(second, "2", 2);
+        ledger.record(first, "3", 3);
+        ledger.remove(List.of(second));
+        // The JVM was terminated while a line was appended.
+        Files.writeString(ledgerFile(appended), "third.proto.zip\t12", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        Path copied = Files.createDirectories(root.resolve("b/changesets"));
+        Files.copy(ledgerFile(appended), ledgerFile(copied), StandardCopyOption.REPLACE_EXISTING);
+        ChangeSetLedger read = ChangeSetLedger.forFolder(copied);
+
+        assertEquals(Set.of("first.proto.zip"), read.entries().keySet());
+        assertEquals("3", read.entries().get("first.proto.zip").sha256());
+        List<String> lines = ledgerLines(copied);
+        assertEquals(1, lines.size());
+        assertTrue(lines.getFirst().startsWith("first.proto.zip\t"));
+        assertTrue(Files.readString(ledgerFile(copied)).endsWith("\n"));
+    }
+
+    private static Path ledgerFile(Path changeSetFolder) {
+        return changeSetFolder.resolveSibling(ChangeSetLedger.LEDGER_FILE);
+    }
+
+    private static List<String> ledgerLines(Path changeSetFolder) throws IOException {
+        return Files.readAllLines(ledgerFile(changeSetFolder), StandardCharsets.UTF_8);
+    }
+}
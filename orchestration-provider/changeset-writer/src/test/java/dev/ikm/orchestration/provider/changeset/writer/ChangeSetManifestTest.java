@@ -0,0 +1,39 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.jar.Attributes;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChangeSetManifestTest {
+    @TempDir
+    Path changeSetFolder;
+
+    @Test
+    void readsTheSealTimeFromTheManifest() throws IOException {
+        Path changeSetFile = Files.createFile(changeSetFolder.resolve("a.proto.zip"));
+        Files.setLastModifiedTime(changeSetFile, FileTime.from(Instant.parse("2020-01-01T00:00:00Z")));
+        Attributes attributes = new Attributes();
+        attributes.putValue(ChangeSetManifest.SEAL_TIME_ATTRIBUTE, "2024-05-06T07:08:09.123456Z");
+        assertEquals(Instant.parse("2024-05-06T07:08:09.123456Z"), ChangeSetManifest.sealTime(changeSetFile, attributes));
+    }
+
+    @Test
+    void fallsBackToTheModificationTime() throws IOException {
+        Path changeSetFile = Files.createFile(changeSetFolder.resolve("a.proto.zip"));
+        Instant modified = Instant.parse("2020-01-01T00:00:00Z");
+        Files.setLastModifiedTime(changeSetFile, FileTime.from(modified));
+        assertEquals(modified, ChangeSetManifest.sealTime(changeSetFile, new Attributes()));
+
+        Attributes unreadable = new Attributes();
+        unreadable.putValue(ChangeSetManifest.SEAL_TIME_ATTRIBUTE, "yesterday");
+        assertEquals(modified, ChangeSetManifest.sealTime(changeSetFile, unreadable));
+    }
+}
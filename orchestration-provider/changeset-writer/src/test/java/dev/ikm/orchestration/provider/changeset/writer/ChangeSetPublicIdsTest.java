@@ -0,0 +1,92 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetPublicIdsTest {
+
+    @Test
+    void resolvesEncodedRecordsFromTheTable() throws IOException {
+        PublicId status = publicId(UUID.randomUUID());
+        PublicId user = publicId(UUID.randomUUID(), UUID.randomUUID());
+        PublicId path = publicId(UUID.randomUUID());
+        List<TinkarMsg> messages = List.of(
+                stamp(publicId(UUID.randomUUID()), status, user, path),
+                stamp(publicId(UUID.randomUUID()), status, user, path));
+
+        ChangeSetPublicIds.Encoder encoder = new ChangeSetPublicIds.Encoder();
+        List<byte[]> records = new ArrayList<>();
+        ChangeSetSegment.RecordConsumer encoding = encoder.encoding((record, length) -> records.add(Arrays.copyOf(record, length)));
+        for (TinkarMsg message : messages) {
+            byte[] record = message.toByteArray();
+            encoding.accept(record, record.length);
+        }
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        encoder.write(table);
+
+        ChangeSetPublicIds publicIds = ChangeSetPublicIds.read(new ByteArrayInputStream(table.toByteArray()), "test");
+        // Two stamps, plus the status, user and path they share.
+        assertEquals(5, publicIds.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertTrue(records.get(i).length < messages.get(i).getSerializedSize(), "references should be shorter than public ids");
+            assertEquals(messages.get(i), publicIds.resolve(TinkarMsg.parseFrom(ByteBuffer.wrap(records.get(i)))));
+        }
+    }
+
+    @Test
+    void rejectsReferencesLongerThanAnInt() throws IOException {
+        ChangeSetPublicIds.Encoder encoder = new ChangeSetPublicIds.Encoder();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        encoder.write(table);
+        ChangeSetPublicIds publicIds = ChangeSetPublicIds.read(new ByteArrayInputStream(table.toByteArray()), "test");
+
+        PublicId overlong = PublicId.newBuilder()
+                .addUuids(ByteString.copyFrom(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}))
+                .build();
+        PublicId uuid = publicId(UUID.randomUUID());
+        TinkarMsg message = stamp(uuid, overlong, uuid, uuid);
+        assertThrows(IllegalStateException.class, () -> publicIds.resolve(message));
+    }
+
+    private static TinkarMsg stamp(PublicId stamp, PublicId status, PublicId user, PublicId path) {
+        StampVersion version = StampVersion.newBuilder()
+                .setStatusPublicId(status)
+                .setTime(System.currentTimeMillis())
+                .setAuthorPublicId(user)
+                .setModulePublicId(user)
+                .setPathPublicId(path)
+                .build();
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(stamp)
+                        .setFirstStampVersion(version))
+                .build();
+    }
+
+    private static PublicId publicId(UUID... uuids) {
+        PublicId.Builder builder = PublicId.newBuilder();
+        for (UUID uuid : uuids) {
+            ByteBuffer bytes = ByteBuffer.allocate(16);
+            bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            builder.addUuids(ByteString.copyFrom(bytes.array()));
+        }
+        return builder.build();
+    }
+}
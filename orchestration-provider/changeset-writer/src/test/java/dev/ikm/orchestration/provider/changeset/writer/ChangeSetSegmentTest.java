@@ -0,0 +1,119 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChangeSetSegmentTest {
+    private static final int RECORD_COUNT = 3;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void readsEveryCompleteRecord() throws IOException {
+        Path segmentFile = writeSegment();
+        List<byte[]> records = new ArrayList<>();
+        assertEquals(RECORD_COUNT, ChangeSetSegment.read(segmentFile, collecting(records)));
+        assertRecords(records, RECORD_COUNT);
+    }
+
+    @Test
+    void stopsAtATruncatedTailRecord() throws IOException {
+        Path segmentFile = writeSegment();
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+        List<byte[]> records = new ArrayList<>();
+        assertEquals(RECORD_COUNT - 1, ChangeSetSegment.read(segmentFile, collecting(records)));
+        assertRecords(records, RECORD_COUNT - 1);
+    }
+
+    @Test
+    void stopsAtATailRecordFailingItsChecksum() throws IOException {
+        Path segmentFile = writeSegment();
+        // A torn write: the length and checksum reached the disk, but not every byte of the record did.
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0);
+        }
+        List<byte[]> records = new ArrayList<>();
+        assertEquals(RECORD_COUNT - 1, ChangeSetSegment.read(segmentFile, collecting(records)));
+        assertRecords(records, RECORD_COUNT - 1);
+
+        records.clear();
+        long position;
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            position = ChangeSetSegment.read(channel, 0, collecting(records));
+        }
+        assertRecords(records, RECORD_COUNT - 1);
+        assertEquals(Files.size(segmentFile) - ChangeSetSegment.RECORD_HEADER_BYTES - record(RECORD_COUNT - 1).length,
+                position);
+    }
+
+    @Test
+    void followsASegmentAsItIsWritten() throws IOException {
+        Path segmentFile = folder.resolve("followed" + ChangeSetSegment.SEGMENT_SUFFIX);
+        List<byte[]> records = new ArrayList<>();
+        try (ChangeSetSegment segment = new ChangeSetSegment(segmentFile);
+             FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            segment.append(record(0), 0, record(0).length);
+            segment.flush(false);
+            long position = ChangeSetSegment.read(channel, 0, collecting(records));
+            segment.append(record(1), 0, record(1).length);
+            segment.flush(false);
+            position = ChangeSetSegment.read(channel, position, collecting(records));
+            assertEquals(segment.bytesWritten(), position);
+        }
+        assertRecords(records, 2);
+    }
+
+    @Test
+    void readsNoRecordsBeforeTheHeaderIsFlushed() throws IOException {
+        Path segmentFile = folder.resolve("empty" + ChangeSetSegment.SEGMENT_SUFFIX);
+        Files.createFile(segmentFile);
+        assertEquals(0, ChangeSetSegment.read(segmentFile, (record, length) -> {
+            throw new AssertionError("no record expected");
+        }));
+    }
+
+    private Path writeSegment() throws IOException {
+        Path segmentFile = folder.resolve("test.proto.zip" + ChangeSetSegment.SEGMENT_SUFFIX);
+        try (ChangeSetSegment segment = new ChangeSetSegment(segmentFile)) {
+            for (int i = 0; i < RECORD_COUNT; i++) {
+                byte[] record = record(i);
+                segment.append(record, 0, record.length);
+            }
+            assertEquals(RECORD_COUNT, segment.recordCount());
+        }
+        return segmentFile;
+    }
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ChangeSetSegment.RecordConsumer collecting(List<byte[]> records) {
+        return (record, length) -> records.add(Arrays.copyOf(record, length));
+    }
+
+    private static void assertRecords(List<byte[]> records, int expectedCount) {
+        assertEquals(expectedCount, records.size());
+        for (int i = 0; i < expectedCount; i++) {
+            assertArrayEquals(record(i), records.get(i));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetFilter;
+import dev.ikm.tinkar.common.id.PublicIds;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChangeSetSelectionTest {
+    @TempDir
+    Path changeSetFolder;
+
+    @Test
+    void selectsVersionsWhoseStampWasWrittenToAnotherChangeSet() throws IOException {
+        UUID author = UUID.randomUUID();
+        PublicId selectedStamp = publicId(UUID.randomUUID());
+        PublicId otherStamp = publicId(UUID.randomUUID());
+        // The writer rolled over after the stamps were written, so the concept is in the next change set.
+        Path stampFile = writeChangeSet("a.proto.zip", stamp(selectedStamp, author), stamp(otherStamp, UUID.randomUUID()));
+        TinkarMsg concept = concept(selectedStamp, otherStamp);
+        Path conceptFile = writeChangeSet("b.proto.zip", concept);
+
+        ChangeSetFilter filter = ChangeSetFilter.ALL.withAuthors(PublicIds.of(author));
+        ChangeSetSelection selection = new ChangeSetSelection(filter);
+        for (Path changeSetFile : List.of(stampFile, conceptFile)) {
+            try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile)) {
+                reader.addStamps(selection);
+            }
+        }
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(conceptFile);
+             Stream<TinkarMsg> messages = reader.messages(selection)) {
+            List<TinkarMsg> selected = messages.toList();
+            assertEquals(1, selected.size());
+            assertEquals(List.of(concept.getConceptChronology().getConceptVersions(0)),
+                    selected.getFirst().getConceptChronology().getConceptVersionsList());
+        }
+        // The stamps of the change set alone do not select the concept.
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(conceptFile);
+             Stream<TinkarMsg> messages = reader.messages(filter)) {
+            assertEquals(0, messages.count());
+        }
+    }
+
+    private static TinkarMsg stamp(PublicId stamp, UUID author) {
+        PublicId concept = publicId(UUID.randomUUID());
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(stamp)
+                        .setFirstStampVersion(StampVersion.newBuilder()
+                                .setStatusPublicId(concept)
+                                .setTime(System.currentTimeMillis())
+                                .setAuthorPublicId(publicId(author))
+                                .setModulePublicId(concept)
+                                .setPathPublicId(concept)
+                                .build()))
+                .build();
+    }
+
+    private static TinkarMsg concept(PublicId... stamps) {
+        ConceptChronology.Builder builder = ConceptChronology.newBuilder().setPublicId(publicId(UUID.randomUUID()));
+        for (PublicId stamp : stamps) {
+            builder.addConceptVersions(ConceptVersion.newBuilder().setStampChronologyPublicId(stamp));
+        }
+        return TinkarMsg.newBuilder().setConceptChronology(builder).build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+
+    /**
+     * Writes a version 1 change set of length-delimited records, without a manifest.
+     */
+    private Path writeChangeSet(String name, TinkarMsg... messages) throws IOException {
+        Path changeSetFile = changeSetFolder.resolve(name);
+        try (OutputStream out = Files.newOutputStream(changeSetFile);
+             ZipOutputStream zos = new ZipOutputStream(out)) {
+            zos.putNextEntry(new ZipEntry(SegmentSealer.ENTITIES_ENTRY));
+            for (TinkarMsg message : messages) {
+                message.writeDelimitedTo(zos);
+            }
+            zos.closeEntry();
+        }
+        return changeSetFile;
+    }
+}
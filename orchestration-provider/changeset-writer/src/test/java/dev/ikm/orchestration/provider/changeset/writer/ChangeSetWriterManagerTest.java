@@ -0,0 +1,203 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetImport;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetRolloverPolicy;
+import dev.ikm.tinkar.common.service.CachingService;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.ServiceKeys;
+import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetWriterManagerTest {
+    @TempDir
+    Path dataStoreRoot;
+    PublicId stamp = publicId(UUID.randomUUID());
+    PublicId firstConcept = publicId(UUID.randomUUID());
+    PublicId secondConcept = publicId(UUID.randomUUID());
+    int firstNid;
+    int secondNid;
+    ChangeSetWriterManager manager;
+
+    @BeforeEach
+    void startWriter() {
+        CachingService.clearAll();
+        ServiceProperties.set(ServiceKeys.DATA_STORE_ROOT, dataStoreRoot.toFile());
+        PrimitiveData.selectControllerByName("Load Ephemeral Store");
+        PrimitiveData.start();
+        put(stamp(stamp, firstConcept));
+        firstNid = put(concept(firstConcept, stamp));
+        secondNid = put(concept(secondConcept, stamp));
+        // Created once the entities are put, so it writes only the nids queued by each test.
+        manager = new ChangeSetWriterManager();
+    }
+
+    @AfterEach
+    void stopWriter() throws IOException {
+        manager.pause();
+        PrimitiveData.stop();
+    }
+
+    @Test
+    void rolloverSealsTheFileOnceThePolicyIsMet() throws Exception {
+        manager.setRolloverPolicy(ChangeSetRolloverPolicy.maxEntityCount(1));
+
+        // The policy is evaluated after each batch, and the file it seals is sealed on the sealer thread.
+        manager.write(firstNid);
+        awaitChangeSetFileCount(1);
+        manager.write(secondNid);
+        awaitChangeSetFileCount(2);
+
+        List<PublicId> written = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles()) {
+            List<TinkarMsg> messages = messages(changeSetFile);
+            assertEquals(1, messages.size());
+            written.add(messages.getFirst().getConceptChronology().getPublicId());
+        }
+        assertTrue(written.contains(firstConcept));
+        assertTrue(written.contains(secondConcept));
+    }
+
+    @Test
+    void sealHandsOffTheFileWhileTheWriterIsActive() throws Exception {
+        manager.write(firstNid);
+        Thread writer = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < 10_000; i++) {
+                manager.write(secondNid);
+            }
+        });
+
+        Optional<Path> sealed = manager.seal();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+
+        // The nid queued before the seal is in the sealed file, and the writer carried on writing without a resume.
+        assertTrue(sealed.isPresent());
+        assertTrue(conceptIds(sealed.get()).contains(firstConcept));
+        assertTrue(manager.getWriteStatus());
+        manager.write(firstNid);
+        Optional<Path> next = manager.seal();
+        assertTrue(next.isPresent());
+        assertNotEquals(sealed.get(), next.get());
+        assertTrue(conceptIds(next.get()).contains(firstConcept));
+        List<PublicId> written = new ArrayList<>();
+        for (Path changeSetFile : changeSetFiles()) {
+            written.addAll(conceptIds(changeSetFile));
+        }
+        assertTrue(written.contains(secondConcept));
+    }
+
+    @Test
+    void entitiesPutByAnImportAreNotWrittenAgain() throws Exception {
+        // The entity service broadcasts the nids an import task puts on the thread running the task.
+        try (ChangeSetImport changeSetImport = ChangeSetImport.begin("test")) {
+            changeSetImport.call(() -> {
+                manager.onNext(firstNid);
+                return null;
+            });
+        }
+        manager.onNext(secondNid);
+
+        Optional<Path> sealed = manager.seal();
+        assertTrue(sealed.isPresent());
+        assertEquals(List.of(secondConcept), conceptIds(sealed.get()));
+        assertEquals(1, manager.getMetrics().enqueuedCount());
+    }
+
+    private void awaitChangeSetFileCount(int fileCount) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (changeSetFiles().size() < fileCount && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(fileCount, changeSetFiles().size());
+    }
+
+    /**
+     * Returns the sealed change set files of the change set folder.
+     */
+    private List<Path> changeSetFiles() throws IOException {
+        try (Stream<Path> files = Files.list(manager.getChangeSetFolder())) {
+            return files.filter(file -> file.getFileName().toString().endsWith(ChangeSetImportTask.CHANGE_SET_SUFFIX))
+                    .sorted().toList();
+        }
+    }
+
+    /**
+     * Puts the entity of a message in the datastore, and returns its nid.
+     */
+    private static int put(TinkarMsg message) {
+        List<Entity<? extends EntityVersion>> entities = new ArrayList<>(1);
+        TinkarSchemaToEntityTransformer.getInstance().transform(message, entities::add, stampEntity -> { });
+        entities.forEach(EntityService.get()::putEntity);
+        return entities.getFirst().nid();
+    }
+
+    private static List<PublicId> conceptIds(Path changeSetFile) throws IOException {
+        return messages(changeSetFile).stream().map(message -> message.getConceptChronology().getPublicId()).toList();
+    }
+
+    private static List<TinkarMsg> messages(Path changeSetFile) throws IOException {
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+             Stream<TinkarMsg> messages = reader.messages()) {
+            return messages.toList();
+        }
+    }
+
+    /**
+     * Returns a committed stamp whose status, author, module and path are all the provided concept.
+     */
+    private static TinkarMsg stamp(PublicId stamp, PublicId concept) {
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(stamp)
+                        .setFirstStampVersion(StampVersion.newBuilder()
+                                .setStatusPublicId(concept)
+                                .setTime(System.currentTimeMillis())
+                                .setAuthorPublicId(concept)
+                                .setModulePublicId(concept)
+                                .setPathPublicId(concept)
+                                .build()))
+                .build();
+    }
+
+    private static TinkarMsg concept(PublicId concept, PublicId... stamps) {
+        ConceptChronology.Builder builder = ConceptChronology.newBuilder().setPublicId(concept);
+        for (PublicId stamp : stamps) {
+            builder.addConceptVersions(ConceptVersion.newBuilder().setStampChronologyPublicId(stamp));
+        }
+        return TinkarMsg.newBuilder().setConceptChronology(builder).build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+}
@@ -0,0 +1,156 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.tinkar.common.service.CachingService;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.ServiceKeys;
+import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.ConceptChronology;
+import dev.ikm.tinkar.schema.ConceptVersion;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChangeSetWriterTest {
+    @TempDir
+    Path dataStoreRoot;
+    Path changeSetFolder;
+    PublicId concept = publicId(UUID.randomUUID());
+    PublicId stamp = publicId(UUID.randomUUID());
+
+    @BeforeEach
+    void startDatastore() throws IOException {
+        changeSetFolder = Files.createDirectories(dataStoreRoot.resolve("changesets"));
+        CachingService.clearAll();
+        ServiceProperties.set(ServiceKeys.DATA_STORE_ROOT, dataStoreRoot.toFile());
+        PrimitiveData.selectControllerByName("Load Ephemeral Store");
+        PrimitiveData.start();
+    }
+
+    @AfterEach
+    void stopDatastore() {
+        PrimitiveData.stop();
+    }
+
+    @Test
+    void pipelinedDeltaWritesTheVersionsOfARepeatedNidOnce() throws IOException {
+        put(stamp(stamp, concept));
+        int nid = put(concept(concept, stamp));
+        Path changeSetFile = changeSetFolder.resolve("delta.proto.zip");
+        // The executor transforms each nid as it is submitted, before the record of the first one is appended.
+        ChangeSetWriter writer = new ChangeSetWriter(EntityService.get(), changeSetFile.toFile(),
+                new VersionDeltaTracker(Long.MIN_VALUE), Runnable::run, 4);
+
+        writer.write(new int[]{nid, nid}, 0, 2);
+        writer.close();
+
+        List<TinkarMsg> messages = messages(changeSetFile);
+        assertEquals(1, messages.size());
+        assertEquals(1, messages.getFirst().getConceptChronology().getConceptVersionsCount());
+    }
+
+    @Test
+    void rewriteReplacesTheEarlierRecordOfAnEntity() throws IOException {
+        PublicId secondStamp = publicId(UUID.randomUUID());
+        put(stamp(stamp, concept));
+        put(stamp(secondStamp, concept));
+        int nid = put(concept(concept, stamp));
+        Path changeSetFile = changeSetFolder.resolve("coalesced.proto.zip");
+        ChangeSetWriter writer = new ChangeSetWriter(EntityService.get(), changeSetFile.toFile());
+
+        writer.write(new int[]{nid}, 0, 1);
+        put(concept(concept, stamp, secondStamp));
+        writer.write(new int[]{nid}, 0, 1);
+        writer.close();
+
+        // The later record holds the entire chronology, so the earlier one is left out when the segment is sealed.
+        List<TinkarMsg> messages = messages(changeSetFile);
+        assertEquals(1, messages.size());
+        assertEquals(2, messages.getFirst().getConceptChronology().getConceptVersionsCount());
+        assertEquals("1", ChangeSetReader.manifest(changeSetFile).getMainAttributes().getValue("Total-Count"));
+    }
+
+    @Test
+    void committedStampIsWrittenOnce() throws IOException {
+        int nid = put(stamp(stamp, concept));
+        put(concept(concept, stamp));
+        Path changeSetFile = changeSetFolder.resolve("stamps.proto.zip");
+        ChangeSetWriter writer = new ChangeSetWriter(EntityService.get(), changeSetFile.toFile());
+
+        writer.write(new int[]{nid, nid}, 0, 2);
+        writer.write(new int[]{nid}, 0, 1);
+        writer.close();
+
+        List<TinkarMsg> messages = messages(changeSetFile);
+        assertEquals(1, messages.size());
+        assertEquals(stamp, messages.getFirst().getStampChronology().getPublicId());
+    }
+
+    /**
+     * Puts the entity of a message in the datastore, and returns its nid.
+     */
+    private static int put(TinkarMsg message) {
+        List<Entity<? extends EntityVersion>> entities = new ArrayList<>(1);
+        TinkarSchemaToEntityTransformer.getInstance().transform(message, entities::add, stampEntity -> { });
+        entities.forEach(EntityService.get()::putEntity);
+        return entities.getFirst().nid();
+    }
+
+    private static List<TinkarMsg> messages(Path changeSetFile) throws IOException {
+        try (MappedChangeSetReader reader = MappedChangeSetReader.open(changeSetFile);
+             Stream<TinkarMsg> messages = reader.messages()) {
+            return messages.toList();
+        }
+    }
+
+    /**
+     * Returns a committed stamp whose status, author, module and path are all the provided concept.
+     */
+    private static TinkarMsg stamp(PublicId stamp, PublicId concept) {
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(stamp)
+                        .setFirstStampVersion(StampVersion.newBuilder()
+                                .setStatusPublicId(concept)
+                                .setTime(System.currentTimeMillis())
+                                .setAuthorPublicId(concept)
+                                .setModulePublicId(concept)
+                                .setPathPublicId(concept)
+                                .build()))
+                .build();
+    }
+
+    private static TinkarMsg concept(PublicId concept, PublicId... stamps) {
+        ConceptChronology.Builder builder = ConceptChronology.newBuilder().setPublicId(concept);
+        for (PublicId stamp : stamps) {
+            builder.addConceptVersions(ConceptVersion.newBuilder().setStampChronologyPublicId(stamp));
+        }
+        return TinkarMsg.newBuilder().setConceptChronology(builder).build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+}
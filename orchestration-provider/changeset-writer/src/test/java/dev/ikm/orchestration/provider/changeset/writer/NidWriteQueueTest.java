@@ -0,0 +1,172 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NidWriteQueueTest {
+    @TempDir
+    Path spillFolder;
+
+    @Test
+    void drainsInArrivalOrder() throws InterruptedException {
+        try (NidWriteQueue queue = new NidWriteQueue(4, spillFolder)) {
+            queue.offerAll(new int[]{1, 2, 3}, 0, 3, BackpressurePolicy.BLOCK);
+            queue.offer(4, BackpressurePolicy.BLOCK);
+            assertArrayEquals(new int[]{1, 2, 3, 4}, drain(queue, 4));
+            assertEquals(0, queue.drainTo(new int[4], 0, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void failFastRejectsWhenFull() throws InterruptedException {
+        try (NidWriteQueue queue = new NidWriteQueue(2, spillFolder)) {
+            queue.offerAll(new int[]{1, 2}, 0, 2, BackpressurePolicy.FAIL_FAST);
+            assertThrows(IllegalStateException.class, () -> queue.offer(3, BackpressurePolicy.FAIL_FAST));
+            ChangeSetWriterMetrics metrics = queue.metrics();
+            assertEquals(1, metrics.rejectedCount());
+            assertEquals(2, metrics.enqueuedCount());
+            assertArrayEquals(new int[]{1, 2}, drain(queue, 2));
+        }
+    }
+
+    @Test
+    void spillKeepsArrivalOrder() throws InterruptedException {
+        try (NidWriteQueue queue = new NidWriteQueue(2, spillFolder)) {
+            for (int nid = 1; nid <= 6; nid++) {
+                queue.offer(nid, BackpressurePolicy.SPILL);
+            }
+            assertEquals(4, queue.metrics().spilledDepth());
+            // Space freed in memory is not used while nids remain on disk.
+            assertArrayEquals(new int[]{1, 2}, drain(queue, 2));
+            queue.offer(7, BackpressurePolicy.SPILL);
+            assertArrayEquals(new int[]{3, 4, 5, 6, 7}, drain(queue, 5));
+            assertEquals(0, queue.metrics().spilledDepth());
+        }
+    }
+
+    @Test
+    void spillKeepsArrivalOrderWhileDrainingConcurrently() throws Exception {
+        // Enough nids to fill several spill buffers, which are written to disk while the writer drains them.
+        int nidCount = 50_000;
+        try (NidWriteQueue queue = new NidWriteQueue(16, spillFolder)) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread producer = Thread.ofPlatform().start(() -> {
+                try {
+                    for (int nid = 1; nid <= nidCount; nid++) {
+                        queue.offer(nid, BackpressurePolicy.SPILL);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            int[] drained = drain(queue, nidCount);
+            producer.join(TimeUnit.SECONDS.toMillis(10));
+            assertEquals(null, failure.get());
+            for (int i = 0; i < nidCount; i++) {
+                assertEquals(i + 1, drained[i]);
+            }
+            assertEquals(0, queue.metrics().spilledDepth());
+        }
+    }
+
+    @Test
+    void blockedOfferDoesNotOvertakeSpilledNids() throws Exception {
+        try (NidWriteQueue queue = new NidWriteQueue(2, spillFolder)) {
+            queue.offerAll(new int[]{1, 2}, 0, 2, BackpressurePolicy.BLOCK);
+            Thread blocked = Thread.ofPlatform().start(() -> {
+                try {
+                    queue.offer(4, BackpressurePolicy.BLOCK);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            awaitWaiting(blocked);
+            queue.offer(3, BackpressurePolicy.SPILL);
+
+            // Draining wakes the blocked caller, which must queue its nid behind the spilled one.
+            assertArrayEquals(new int[]{1, 2}, drain(queue, 2));
+            blocked.join(TimeUnit.SECONDS.toMillis(10));
+            assertArrayEquals(new int[]{3, 4}, drain(queue, 2));
+        }
+    }
+
+    @Test
+    void closeFailsBlockedOffersAndEndsDraining() throws Exception {
+        NidWriteQueue queue = new NidWriteQueue(1, spillFolder);
+        queue.offer(1, BackpressurePolicy.BLOCK);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread blocked = Thread.ofPlatform().start(() -> {
+            try {
+                queue.offer(2, BackpressurePolicy.BLOCK);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        awaitWaiting(blocked);
+        queue.close();
+        blocked.join(TimeUnit.SECONDS.toMillis(10));
+        assertInstanceOf(IllegalStateException.class, failure.get());
+        assertThrows(IllegalStateException.class, () -> queue.offer(3, BackpressurePolicy.SPILL));
+        assertEquals(2, queue.metrics().rejectedCount());
+
+        // Nids queued before the queue was closed are still drained.
+        assertArrayEquals(new int[]{1}, drain(queue, 1));
+        assertEquals(-1, queue.drainTo(new int[1], 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void awaitDrainedReturnsOnceEveryNidIsWritten() throws Exception {
+        try (NidWriteQueue queue = new NidWriteQueue(2, spillFolder)) {
+            queue.offerAll(new int[]{1, 2, 3}, 0, 3, BackpressurePolicy.SPILL);
+            Thread waiter = Thread.ofPlatform().start(() -> {
+                try {
+                    queue.awaitDrained();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            drain(queue, 3);
+            waiter.join(TimeUnit.SECONDS.toMillis(10));
+            assertEquals(Thread.State.TERMINATED, waiter.getState());
+            assertEquals(3, queue.writtenCount());
+        }
+    }
+
+    /**
+     * Drains and acknowledges the expected number of nids, as the writer thread does.
+     */
+    private static int[] drain(NidWriteQueue queue, int expectedCount) throws InterruptedException {
+        int[] drained = new int[expectedCount];
+        int drainedCount = 0;
+        int[] batch = new int[expectedCount];
+        while (drainedCount < expectedCount) {
+            int count = queue.drainTo(batch, 1, TimeUnit.SECONDS);
+            if (count <= 0) {
+                return Arrays.copyOf(drained, drainedCount);
+            }
+            System.arraycopy(batch, 0, drained, drainedCount, Math.min(count, expectedCount - drainedCount));
+            drainedCount += count;
+            queue.markWritten(count);
+        }
+        return drained;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+}
@@ -0,0 +1,91 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import dev.ikm.tinkar.schema.PublicId;
+import dev.ikm.tinkar.schema.StampChronology;
+import dev.ikm.tinkar.schema.StampVersion;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentSealerTest {
+    @TempDir
+    Path dataStoreRoot;
+
+    @Test
+    void recoversTheCompleteRecordsOfASegment() throws IOException {
+        Path changeSetFolder = Files.createDirectories(dataStoreRoot.resolve("changesets"));
+        Path changeSetFile = changeSetFolder.resolve("recovered.proto.zip");
+        Path segmentFile = ChangeSetSegment.segmentFileFor(changeSetFile.toFile());
+        try (ChangeSetSegment segment = new ChangeSetSegment(segmentFile)) {
+            for (int i = 0; i < 3; i++) {
+                byte[] record = stamp().toByteArray();
+                segment.append(record, 0, record.length);
+            }
+        }
+        // The JVM was terminated while the last record was appended.
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        assertEquals(List.of(changeSetFile), SegmentSealer.recover(changeSetFolder));
+        assertFalse(Files.exists(segmentFile));
+        assertTrue(Files.exists(changeSetFile));
+
+        // The entities came from this datastore, so the recovered change set is recorded as applied.
+        ChangeSetLedger.Entry entry = ChangeSetLedger.forFolder(changeSetFolder).entry(changeSetFile);
+        assertNotNull(entry);
+        assertEquals(2, entry.entityCount());
+        assertTrue(entry.matches(Files.size(changeSetFile), Files.getLastModifiedTime(changeSetFile).toMillis()));
+        assertEquals(ChangeSetLedger.sha256(changeSetFile), entry.sha256());
+    }
+
+    @Test
+    void deletesSegmentsWithoutCompleteRecords() throws IOException {
+        Path changeSetFolder = Files.createDirectories(dataStoreRoot.resolve("changesets"));
+        Path changeSetFile = changeSetFolder.resolve("empty.proto.zip");
+        Path segmentFile = ChangeSetSegment.segmentFileFor(changeSetFile.toFile());
+        new ChangeSetSegment(segmentFile).close();
+
+        assertEquals(List.of(), SegmentSealer.recover(changeSetFolder));
+        assertFalse(Files.exists(segmentFile));
+        assertFalse(Files.exists(changeSetFile));
+        assertNull(ChangeSetLedger.forFolder(changeSetFolder).entry(changeSetFile));
+    }
+
+    private static TinkarMsg stamp() {
+        PublicId concept = publicId(UUID.randomUUID());
+        return TinkarMsg.newBuilder()
+                .setStampChronology(StampChronology.newBuilder()
+                        .setPublicId(publicId(UUID.randomUUID()))
+                        .setFirstStampVersion(StampVersion.newBuilder()
+                                .setStatusPublicId(concept)
+                                .setTime(System.currentTimeMillis())
+                                .setAuthorPublicId(concept)
+                                .setModulePublicId(concept)
+                                .setPathPublicId(concept)
+                                .build()))
+                .build();
+    }
+
+    private static PublicId publicId(UUID uuid) {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        return PublicId.newBuilder().addUuids(ByteString.copyFrom(bytes.array())).build();
+    }
+}
@@ -16,17 +16,40 @@
 package dev.ikm.orchestration.provider.data;
 
 import dev.ikm.orchestration.interfaces.OrchestrationService;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
+import dev.ikm.tinkar.common.service.PluggableService;
 import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.TinkExecutor;
 import dev.ikm.tinkar.common.service.TrackingCallable;
 import javafx.application.Platform;
 
+import java.nio.file.Path;
+import java.util.Optional;
+
 import static dev.ikm.orchestration.interfaces.Lifecycle.RUNNING;
 
 /**
  * The StartDataServiceTask class represents a task for starting a data service in an orchestrationService.
  * It extends the TrackingCallable class and overrides the compute() method to perform the task.
+ *
+ * If the {@value #IMPORT_ON_START} system property is {@code true}, the change sets not yet applied to the datastore
+ * are loaded once it starts, and the lifecycle moves to RUNNING as soon as their stamps, patterns and concepts are
+ * loaded, while their semantics continue to load in the background.
+ *
+ * If the {@value #FOLLOW_FOLDER} system property names a folder, such as the change set folder of an authoring node
+ * on a shared mount, the change sets written to it are applied to the datastore as they are written, until shutdown.
  */
 public class StartDataServiceTask extends TrackingCallable<Void> {
+    /**
+     * The system property that enables loading change sets when the data service starts.
+     */
+    public static final String IMPORT_ON_START = "dev.ikm.changeset.import.onStart";
+
+    /**
+     * The system property naming a change set folder to follow once the data service starts.
+     */
+    public static final String FOLLOW_FOLDER = "dev.ikm.changeset.follow.folder";
+
     final OrchestrationService orchestrationService;
 
     /**
@@ -52,7 +75,18 @@ public class StartDataServiceTask extends TrackingCallable<Void> {
     protected Void compute() throws Exception {
         try {
             PrimitiveData.start();
-            Platform.runLater(() -> this.orchestrationService.lifecycleProperty().set(RUNNING));
+            Runnable running = () -> Platform.runLater(() -> this.orchestrationService.lifecycleProperty().set(RUNNING));
+            String followFolder = System.getProperty(FOLLOW_FOLDER);
+            Optional<ChangeSetLoadService> loadService = Boolean.getBoolean(IMPORT_ON_START) || followFolder != null
+                    ? PluggableService.load(ChangeSetLoadService.class).findFirst() : Optional.empty();
+            if (loadService.isPresent() && Boolean.getBoolean(IMPORT_ON_START)) {
+                TinkExecutor.threadPool().submit(loadService.get().newProgressiveLoadTask(running));
+            } else {
+                running.run();
+            }
+            if (loadService.isPresent() && followFolder != null) {
+                TinkExecutor.threadPool().submit(loadService.get().newFollowTask(Path.of(followFolder)));
+            }
             return null;
         } catch (Throwable ex) {
             ex.printStackTrace();
@@ -1,24 +1,26 @@
 package dev.ikm.orchestration.provider.general.menu;
 
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
 import dev.ikm.orchestration.interfaces.menu.MenuService;
 import dev.ikm.tinkar.common.alert.AlertStreams;
 import dev.ikm.tinkar.common.service.PluggableService;
 import dev.ikm.tinkar.common.service.TinkExecutor;
 import dev.ikm.tinkar.entity.aggregator.TemporalEntityAggregator;
-import dev.ikm.tinkar.entity.load.LoadEntitiesFromProtobufFile;
 import javafx.scene.control.MenuItem;
 import javafx.stage.Window;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.api.multimap.ImmutableMultimap;
 import org.eclipse.collections.api.multimap.MutableMultimap;
 import org.eclipse.collections.impl.factory.Multimaps;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * The ChangeSetMenuProvider class implements the MenuService interface to provide menu items related to generate change sets.
@@ -45,8 +47,10 @@ public class ChangeSetMenuProvider implements MenuService {
                     if (changeSetWriterService.getWriteStatus() == false) {
                         changeSetWriterService.resume();
                     }
-                    temporalEntityAggregator.aggregate(changeSetWriterService::write);
-                    changeSetWriterService.pause();
+                    MutableIntList aggregatedNids = IntLists.mutable.empty();
+                    temporalEntityAggregator.aggregate(aggregatedNids::add);
+                    changeSetWriterService.write(aggregatedNids.toArray());
+                    changeSetWriterService.seal();
                 } catch (IOException e) {
                     AlertStreams.dispatchToRoot(e);
                 }
@@ -56,28 +60,44 @@ public class ChangeSetMenuProvider implements MenuService {
 
         MenuItem loadChangeSetsMenuItem = new MenuItem("Load Change Sets");
         loadChangeSetsMenuItem.setOnAction(event -> {
-            ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
-            try {
-                if (changeSetWriterService.getWriteStatus() == false) {
-                    changeSetWriterService.pause();
-                }
-                Path changeSetFolder = ChangeSetWriterService.changeSetFolder();
-                File[] matchingFiles = changeSetFolder.toFile().listFiles((dir, name) -> name.endsWith(".proto.zip"));
-                Arrays.stream(matchingFiles).forEach((protoFile) -> {
-                    TinkExecutor.ioThreadPool().submit(new LoadEntitiesFromProtobufFile(protoFile));
-                });
-            } catch (IOException ex) {
-                AlertStreams.dispatchToRoot(ex);
-            } finally {
+            // Only change sets not yet applied to the datastore are loaded, and the loaded entities are tagged
+            // as imported, so the change set writer keeps running without writing them into a new change set.
+            Future<Integer> loadFuture = TinkExecutor.threadPool()
+                    .submit(PluggableService.first(ChangeSetLoadService.class).newLoadTask());
+            TinkExecutor.ioThreadPool().submit(() -> {
                 try {
-                    changeSetWriterService.resume();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    loadFuture.get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        AlertStreams.dispatchToRoot(e.getCause());
+                    }
+                } catch (InterruptedException | CancellationException e) {
+                    // Cancelled by the user; the change sets loaded so far remain recorded as loaded.
                 }
-            }
+            });
         });
         menuItems.put("Edit", loadChangeSetsMenuItem);
 
+        MenuItem compactChangeSetsMenuItem = new MenuItem("Compact Change Sets");
+        compactChangeSetsMenuItem.setOnAction(event -> {
+            // Merges the older change set files into archives, as configured by the compaction policy.
+            ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
+            Future<Integer> compactFuture = TinkExecutor.threadPool()
+                    .submit(changeSetWriterService.newCompactionTask(changeSetWriterService.getCompactionPolicy()));
+            TinkExecutor.ioThreadPool().submit(() -> {
+                try {
+                    compactFuture.get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        AlertStreams.dispatchToRoot(e.getCause());
+                    }
+                } catch (InterruptedException | CancellationException e) {
+                    // Cancelled by the user; the archives completed so far have replaced their change sets.
+                }
+            });
+        });
+        menuItems.put("Edit", compactChangeSetsMenuItem);
+
         return menuItems.toImmutable();
     }
 }
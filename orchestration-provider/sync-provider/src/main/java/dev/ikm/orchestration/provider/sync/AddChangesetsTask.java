@@ -10,6 +10,7 @@ import org.eclipse.collections.api.list.MutableList;
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.RmCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -44,20 +45,24 @@ public class AddChangesetsTask extends TrackingCallable<Void> {
 
     /**
      * Computes and performs the task of adding changesets for synchronization.
-     * Extends the TrackingCallable class. This task pauses the ChangeSetWriterService
-     * which ensures that only completed zip files will be synchronized.
+     * Extends the TrackingCallable class. This task seals the open change set of the ChangeSetWriterService,
+     * which ensures that only completed zip files will be synchronized, without pausing the writer. Change sets
+     * and dictionaries deleted from the folder, such as the files merged by compaction, are staged as removed, so
+     * other nodes do not restore them and load them again.
      *
      */
     @Override
     protected Void compute() {
-        this.updateMessage("Pausing change set writer service");
+        this.updateMessage("Sealing open change set");
         ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
-        silentPauseChangesetWriter(changeSetWriterService);
 
         try {
+            changeSetWriterService.seal().ifPresent(sealedFile -> this.updateMessage("Sealed changeset " + sealedFile.getFileName()));
             Git git = Git.open(changeSetFolder.toFile());
 
-            ImmutableList<String> filesToAdd = filesToAdd(changeSetFolder, ".proto.zip");
+            // Dictionaries are needed to read change sets compressed with them, so they are synchronized too.
+            ImmutableList<String> filesToAdd = filesToAdd(changeSetFolder, ".proto.zip")
+                    .newWithAll(filesToAdd(changeSetFolder, ".dict"));
             AddCommand addCommand = git.add();
             addCommand.setUpdate(false);
             filesToAdd.forEach(s -> {
@@ -66,39 +71,30 @@ public class AddChangesetsTask extends TrackingCallable<Void> {
             });
 
             DirCache dirCache = addCommand.call();
+
+            ImmutableList<String> filesToRemove = Lists.immutable.fromStream(git.status().call().getMissing().stream()
+                    .filter(s -> s.endsWith(".proto.zip") || s.endsWith(".dict")));
+            if (filesToRemove.notEmpty()) {
+                RmCommand rmCommand = git.rm().setCached(true);
+                filesToRemove.forEach(s -> {
+                    rmCommand.addFilepattern(s);
+                    this.updateMessage("Removing changeset " + s);
+                });
+                rmCommand.call();
+            }
             CommitCommand commitCommand = git.commit();
             commitCommand.setMessage("Manual changeset add");
             commitCommand.setAll(true);
             RevCommit revCommit = commitCommand.call();
-            LOG.info(String.format("Successfully Committed %i files: %s", filesToAdd.size(), filesToAdd));
+            LOG.info(String.format("Successfully Committed %d files: %s, and removed %d files: %s",
+                    filesToAdd.size(), filesToAdd, filesToRemove.size(), filesToRemove));
         } catch (IOException | GitAPIException ex) {
             LOG.error(ex.getLocalizedMessage(), ex);
             AlertStreams.dispatchToRoot(ex);
-        } finally {
-            silentResumeChangesetWriter(changeSetWriterService);
-            this.updateMessage("Resumed change set writer service");
         }
         return null;
     }
 
-    // TODO: Implement better handling of IOException caused by closing changeset writer when it is not running
-    private void silentPauseChangesetWriter(ChangeSetWriterService changeSetWriterService) {
-        try {
-            changeSetWriterService.pause();
-        } catch (IOException ex) {
-            LOG.error(ex.getLocalizedMessage(), ex);
-        }
-    }
-
-    // TODO: Implement better handling of IOException caused by resuming changeset writer when it is already running
-    private void silentResumeChangesetWriter(ChangeSetWriterService changeSetWriterService) {
-        try {
-            changeSetWriterService.resume();
-        } catch (IOException ex) {
-            LOG.error(ex.getLocalizedMessage(), ex);
-        }
-    }
-
     /**
      * Computes the list of files to add for synchronization. Searches the provided directory and all subdirectories.
      *